@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BuildAgent;
+import jetbrains.buildServer.serverSide.buildDistribution.BuildDistributorInput;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.buildDistribution.WaitReason;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark of a single distribution cycle: every queued build is checked by the start build precondition,
+ * builds allowed to start are added to the builds scheduled to start, as the build distributor does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartBuildPreconditionBenchmark {
+
+  /**
+   * Total number of builds, half of them are running, half are queued
+   */
+  @Param({"10", "100", "1000", "10000"})
+  public int builds;
+
+  private SyntheticServer myServer;
+
+  private final BuildAgent myAgent = Stub.of(BuildAgent.class, "agent").create();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myServer = new SyntheticServer(builds, 42);
+  }
+
+  /**
+   * Every iteration starts from the same state, otherwise wait queue, metrics
+   * and promotion attributes grow across the iterations
+   */
+  @Setup(Level.Iteration)
+  public void resetState() {
+    myServer.resetRuntimeState();
+  }
+
+  /**
+   * @return number of builds allowed to start during the cycle
+   */
+  @Benchmark
+  public int distributionCycle() {
+    final BuildDistributorInput input = SyntheticServer.newDistributorInput();
+    final Map<QueuedBuildInfo, BuildAgent> canBeStarted = new LinkedHashMap<>();
+    for (QueuedBuildInfo queuedBuild: myServer.getQueuedBuilds()) {
+      final WaitReason reason = myServer.getPrecondition().canStart(queuedBuild, canBeStarted, input, false);
+      if (reason == null) {
+        canBeStarted.put(queuedBuild, myAgent);
+      }
+    }
+    return canBeStarted.size();
+  }
+}
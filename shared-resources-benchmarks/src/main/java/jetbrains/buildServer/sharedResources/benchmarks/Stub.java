@@ -0,0 +1,110 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.function.Function;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lightweight stub of a server interface.
+ *
+ * Only the methods used by the benchmarked code have to be answered,
+ * the rest of the methods return default values: {@code null}, zero, {@code false} or an empty collection
+ *
+ * @param <T> stubbed interface
+ */
+final class Stub<T> {
+
+  @NotNull
+  private final Class<T> myType;
+
+  @NotNull
+  private final String myName;
+
+  @NotNull
+  private final Map<String, Function<Object[], Object>> myAnswers = new HashMap<>();
+
+  private Stub(@NotNull final Class<T> type, @NotNull final String name) {
+    myType = type;
+    myName = name;
+  }
+
+  @NotNull
+  static <T> Stub<T> of(@NotNull final Class<T> type, @NotNull final String name) {
+    return new Stub<>(type, name);
+  }
+
+  /**
+   * Answers all calls of the method with the given name with a constant value
+   */
+  @NotNull
+  Stub<T> returns(@NotNull final String methodName, @Nullable final Object value) {
+    myAnswers.put(methodName, args -> value);
+    return this;
+  }
+
+  /**
+   * Answers all calls of the method with the given name with the result of the given function of the call arguments
+   */
+  @NotNull
+  Stub<T> answers(@NotNull final String methodName, @NotNull final Function<Object[], Object> answer) {
+    myAnswers.put(methodName, answer);
+    return this;
+  }
+
+  @NotNull
+  T create() {
+    final Object proxy = Proxy.newProxyInstance(myType.getClassLoader(), new Class[]{myType}, (self, method, args) -> {
+      final Function<Object[], Object> answer = myAnswers.get(method.getName());
+      if (answer != null) {
+        return answer.apply(args == null ? new Object[0] : args);
+      }
+      switch (method.getName()) {
+        case "equals":
+          return self == args[0];
+        case "hashCode":
+          return System.identityHashCode(self);
+        case "toString":
+          return myName;
+        default:
+          return defaultValue(method);
+      }
+    });
+    return myType.cast(proxy);
+  }
+
+  @Nullable
+  private static Object defaultValue(@NotNull final Method method) {
+    final Class<?> type = method.getReturnType();
+    if (type == boolean.class) return false;
+    if (type == int.class) return 0;
+    if (type == long.class) return 0L;
+    if (type == double.class) return 0.0d;
+    if (type == float.class) return 0.0f;
+    if (type == short.class) return (short)0;
+    if (type == byte.class) return (byte)0;
+    if (type == char.class) return '\0';
+    if (type == List.class || type == Collection.class) return Collections.emptyList();
+    if (type == Set.class) return Collections.emptySet();
+    if (type == Map.class) return Collections.emptyMap();
+    return null;
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
+import jetbrains.buildServer.serverSide.impl.buildDistribution.BuildDistributorInputEx;
+import jetbrains.buildServer.serverSide.priority.PriorityClass;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.server.ConfigurationInspector;
+import jetbrains.buildServer.sharedResources.server.SharedResourcesStartBuildPrecondition;
+import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
+import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.QueuePriorityComparator;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueue;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksImpl;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.FEATURE_TYPE;
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.ProjectFeatureParameters.*;
+import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams.LOCKS_FEATURE_PARAM_KEY;
+
+/**
+ * Synthetic server model for the benchmarks.
+ *
+ * Contains a three level project tree (root, project groups, projects) with resources defined on every level,
+ * a build configuration with shared resources feature for every build,
+ * and a population of builds: first half of the builds is running and has its locks stored,
+ * second half is queued.
+ *
+ * Plugin components are real, server entities are replaced with {@link Stub stubs}
+ */
+final class SyntheticServer {
+
+  private static final int ROOT_QUOTED_RESOURCES = 10;
+  private static final int ROOT_CUSTOM_RESOURCES = 5;
+  private static final int CUSTOM_VALUES = 20;
+  private static final int PROJECTS_IN_GROUP = 10;
+  private static final int BUILDS_IN_PROJECT = 10;
+
+  private final Map<String, SProject> myProjects = new HashMap<>();
+  private final List<RunningBuildEx> myRunningBuilds = new ArrayList<>();
+  private final List<QueuedBuildInfo> myQueuedBuilds = new ArrayList<>();
+  private final InMemoryLocksStorage myLocksStorage = new InMemoryLocksStorage();
+  private final List<Map<String, Object>> myPromotionAttributes = new ArrayList<>();
+
+  private final Locks myLocks;
+  private final SharedResourcesFeatures myFeatures;
+  private final Resources myResources;
+  private final ConfigurationInspector myInspector;
+  private final QueuePriorityComparator myPriorityComparator;
+  private final RunningBuildsManagerEx myRunningBuildsManager;
+
+  private TakenLocksImpl myTakenLocks;
+  private SharedResourcesStartBuildPrecondition myPrecondition;
+
+  SyntheticServer(final int builds, final long seed) {
+    final Random random = new Random(seed);
+    final SProject root = createProject("_Root", Collections.emptyList(), rootResources());
+    final int projectsCount = Math.max(1, builds / BUILDS_IN_PROJECT);
+    final List<SProject> projects = new ArrayList<>(projectsCount);
+    SProject group = null;
+    for (int i = 0; i < projectsCount; i++) {
+      if (i % PROJECTS_IN_GROUP == 0) {
+        final String groupId = "Group_" + i / PROJECTS_IN_GROUP;
+        group = createProject(groupId, Collections.singletonList(root), Collections.singletonList(quoted("group_quoted", 10)));
+      }
+      final String projectId = "Project_" + i;
+      projects.add(createProject(projectId, Arrays.asList(root, group), Collections.singletonList(quoted("project_quoted", 2))));
+    }
+
+    myLocks = new LocksImpl();
+    myFeatures = new SharedResourcesFeaturesImpl(new SharedResourcesFeatureFactoryImpl(myLocks));
+    final ProjectManager projectManager = Stub.of(ProjectManager.class, "projectManager")
+                                              .answers("findProjectById", args -> myProjects.get((String)args[0]))
+                                              .create();
+    myResources = new ResourcesImpl(projectManager, new ResourceProjectFeaturesImpl(), EventDispatcher.create(BuildServerListener.class));
+    final PriorityClass defaultPriority = Stub.of(PriorityClass.class, "defaultPriority").create();
+    final PriorityClassManager priorityClassManager = Stub.of(PriorityClassManager.class, "priorityClassManager")
+                                                          .returns("getBuildTypePriorityClass", defaultPriority)
+                                                          .create();
+    myPriorityComparator = new QueuePriorityComparator(priorityClassManager);
+    myRunningBuildsManager = Stub.of(RunningBuildsManagerEx.class, "runningBuildsManager")
+                                 .answers("getRunningBuildsEx", args -> myRunningBuilds)
+                                 .create();
+    myInspector = new ConfigurationInspector(myFeatures, myResources);
+    resetRuntimeState();
+
+    for (int i = 0; i < builds; i++) {
+      final SProject project = projects.get(i % projects.size());
+      final String locks = randomLocks(random);
+      final BuildPromotionEx promotion = createPromotion(i, project, locks);
+      if (i < builds / 2) {
+        myRunningBuilds.add(Stub.of(RunningBuildEx.class, "running-" + i)
+                                .returns("getBuildPromotion", promotion)
+                                .returns("isStartedOnAgent", true)
+                                .create());
+        final Map<Lock, String> takenLocks = new HashMap<>();
+        myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, locks)).values().forEach(lock -> {
+          // running builds hold some value of the custom resources they lock
+          final String value = lock.isAnyValueLock() && lock.getName().startsWith("custom") ? "value_" + random.nextInt(CUSTOM_VALUES) : lock.getValue();
+          takenLocks.put(lock, value);
+        });
+        myLocksStorage.store(promotion, takenLocks);
+      } else {
+        myQueuedBuilds.add(Stub.of(QueuedBuildInfo.class, "queued-" + i)
+                               .returns("getBuildPromotionInfo", promotion)
+                               .create());
+      }
+    }
+  }
+
+  /**
+   * Drops the state accumulated by the previous distribution cycles:
+   * attributes of the build promotions, resource wait queue, metrics and phase timings.
+   * Configuration of the server, running builds and their stored locks are preserved
+   */
+  void resetRuntimeState() {
+    myPromotionAttributes.forEach(Map::clear);
+    if (myTakenLocks != null) {
+      myTakenLocks.dispose();
+    }
+    final ResourceWaitQueue waitQueue = new ResourceWaitQueue(EventDispatcher.create(BuildServerListener.class));
+    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures, myPriorityComparator, waitQueue);
+    myPrecondition = new SharedResourcesStartBuildPrecondition(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager,
+                                                               myInspector, myLocksStorage, myResources,
+                                                               new ResourceMetrics(EventDispatcher.create(BuildServerListener.class)),
+                                                               new PhaseTimings(), waitQueue);
+  }
+
+  @NotNull
+  Locks getLocks() {
+    return myLocks;
+  }
+
+  @NotNull
+  TakenLocksImpl getTakenLocks() {
+    return myTakenLocks;
+  }
+
+  @NotNull
+  SharedResourcesStartBuildPrecondition getPrecondition() {
+    return myPrecondition;
+  }
+
+  @NotNull
+  List<RunningBuildEx> getRunningBuilds() {
+    return myRunningBuilds;
+  }
+
+  @NotNull
+  List<QueuedBuildInfo> getQueuedBuilds() {
+    return myQueuedBuilds;
+  }
+
+  /**
+   * Creates input of a new distribution cycle
+   */
+  @NotNull
+  static BuildDistributorInputEx newDistributorInput() {
+    final Map<String, Object> customData = new HashMap<>();
+    return Stub.of(BuildDistributorInputEx.class, "distributorInput")
+               .answers("getCustomData", args -> ((Class<?>)args[1]).cast(customData.get((String)args[0])))
+               .answers("setCustomData", args -> customData.put((String)args[0], args[1]))
+               .create();
+  }
+
+  @NotNull
+  private static String randomLocks(@NotNull final Random random) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("quoted_").append(random.nextInt(ROOT_QUOTED_RESOURCES)).append(" readLock\n");
+    final int custom = random.nextInt(ROOT_CUSTOM_RESOURCES);
+    if (random.nextInt(4) == 0) {
+      // specific value
+      sb.append("custom_").append(custom).append(" readLock value_").append(random.nextInt(CUSTOM_VALUES)).append("\n");
+    } else {
+      // any value
+      sb.append("custom_").append(custom).append(" readLock\n");
+    }
+    sb.append("group_quoted readLock\n");
+    if (random.nextInt(20) == 0) {
+      sb.append("project_quoted writeLock\n");
+    }
+    sb.append("infinite readLock");
+    return sb.toString();
+  }
+
+  @NotNull
+  private static List<Map<String, String>> rootResources() {
+    final List<Map<String, String>> result = new ArrayList<>();
+    for (int i = 0; i < ROOT_QUOTED_RESOURCES; i++) {
+      result.add(quoted("quoted_" + i, 50));
+    }
+    final StringBuilder values = new StringBuilder();
+    for (int i = 0; i < CUSTOM_VALUES; i++) {
+      values.append("value_").append(i).append("\n");
+    }
+    for (int i = 0; i < ROOT_CUSTOM_RESOURCES; i++) {
+      final Map<String, String> resource = new HashMap<>();
+      resource.put(NAME, "custom_" + i);
+      resource.put(TYPE, "custom");
+      resource.put(VALUES, values.toString());
+      result.add(resource);
+    }
+    result.add(quoted("infinite", -1));
+    return result;
+  }
+
+  @NotNull
+  private static Map<String, String> quoted(@NotNull final String name, final int quota) {
+    final Map<String, String> result = new HashMap<>();
+    result.put(NAME, name);
+    result.put(TYPE, "quoted");
+    result.put(QUOTA, Integer.toString(quota));
+    return result;
+  }
+
+  @NotNull
+  private SProject createProject(@NotNull final String projectId,
+                                 @NotNull final List<SProject> ancestors,
+                                 @NotNull final List<Map<String, String>> resources) {
+    final List<SProjectFeatureDescriptor> descriptors = new ArrayList<>();
+    for (int i = 0; i < resources.size(); i++) {
+      final String featureId = projectId + "_PROJECT_EXT_" + i;
+      descriptors.add(Stub.of(SProjectFeatureDescriptor.class, featureId)
+                          .returns("getId", featureId)
+                          .returns("getProjectId", projectId)
+                          .returns("getType", FEATURE_TYPE)
+                          .returns("getParameters", resources.get(i))
+                          .create());
+    }
+    final List<SProject> path = new ArrayList<>(ancestors);
+    final SProject project = Stub.of(SProject.class, projectId)
+                                 .returns("getProjectId", projectId)
+                                 .returns("getExtendedFullName", projectId)
+                                 .returns("getProjectPath", Collections.unmodifiableList(path))
+                                 .answers("getOwnFeaturesOfType", args -> FEATURE_TYPE.equals(args[0]) ? descriptors : Collections.emptyList())
+                                 .create();
+    path.add(project);
+    myProjects.put(projectId, project);
+    return project;
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(final int id, @NotNull final SProject project, @NotNull final String locks) {
+    final String buildTypeId = project.getProjectId() + "_Build_" + id;
+    final BuildTypeEx buildType = Stub.of(BuildTypeEx.class, buildTypeId)
+                                      .returns("getProject", project)
+                                      .returns("getProjectId", project.getProjectId())
+                                      .returns("getExtendedFullName", buildTypeId)
+                                      .create();
+    final Collection<SBuildFeatureDescriptor> features = Collections.singletonList(
+      Stub.of(SBuildFeatureDescriptor.class, "BUILD_EXT_" + id)
+          .returns("getId", "BUILD_EXT_" + id)
+          .returns("getType", FEATURE_TYPE)
+          .returns("getParameters", Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, locks))
+          .create()
+    );
+    final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    myPromotionAttributes.add(attributes);
+    return Stub.of(BuildPromotionEx.class, "promotion-" + id)
+               .returns("getId", (long)id)
+               .returns("getBuildType", buildType)
+               .returns("getProjectId", project.getProjectId())
+               .answers("getBuildFeaturesOfType", args -> FEATURE_TYPE.equals(args[0]) ? features : Collections.emptyList())
+               .answers("getAttribute", args -> attributes.get((String)args[0]))
+               .answers("setAttribute", args -> attributes.put((String)args[0], args[1]))
+               .create();
+  }
+
+  /**
+   * Locks storage without persistence
+   */
+  private static final class InMemoryLocksStorage implements LocksStorage {
+
+    private final Map<BuildPromotion, Map<String, Lock>> myTakenLocks = new HashMap<>();
+
+    @Override
+    public void store(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<Lock, String> takenLocks) {
+      final Map<String, Lock> locks = new HashMap<>();
+      takenLocks.forEach((lock, value) -> locks.put(lock.getName(), Lock.createFrom(lock, value)));
+      myTakenLocks.put(buildPromotion, locks);
+    }
+
+    @NotNull
+    @Override
+    public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
+      return myTakenLocks.getOrDefault(buildPromotion, Collections.emptyMap());
+    }
+
+    @NotNull
+    @Override
+    public Map<BuildPromotion, Map<String, Lock>> getAllTakenLocks() {
+      return myTakenLocks;
+    }
+
+    @Override
+    public boolean locksStored(@NotNull final BuildPromotion buildPromotion) {
+      return myTakenLocks.containsKey(buildPromotion);
+    }
+  }
+}
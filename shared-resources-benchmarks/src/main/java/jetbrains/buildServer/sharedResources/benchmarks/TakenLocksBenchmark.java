@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of taken locks collection and of the availability check of the locks requested by queued builds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TakenLocksBenchmark {
+
+  /**
+   * Total number of builds, half of them are running, half are queued
+   */
+  @Param({"10", "100", "1000", "10000"})
+  public int builds;
+
+  private SyntheticServer myServer;
+
+  private Map<Resource, TakenLock> myTakenLocks;
+
+  private List<Map<String, Lock>> myLocksToTake;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    myServer = new SyntheticServer(builds, 42);
+    myLocksToTake = new ArrayList<>();
+    for (QueuedBuildInfo qb: myServer.getQueuedBuilds()) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)qb.getBuildPromotionInfo();
+      myLocksToTake.add(myServer.getLocks().fromFeatureParameters(promotion.getBuildFeaturesOfType(SharedResourcesPluginConstants.FEATURE_TYPE).iterator().next()));
+    }
+  }
+
+  /**
+   * Every iteration starts from the same state, otherwise wait queue
+   * and promotion attributes grow across the iterations
+   */
+  @Setup(Level.Iteration)
+  public void resetState() {
+    myServer.resetRuntimeState();
+    myTakenLocks = myServer.getTakenLocks().collectTakenLocks(myServer.getRunningBuilds(), Collections.emptyList());
+  }
+
+  @Benchmark
+  public Map<Resource, TakenLock> collectTakenLocks() {
+    return myServer.getTakenLocks().collectTakenLocks(myServer.getRunningBuilds(), Collections.emptyList());
+  }
+
+  /**
+   * Checks locks of every queued build against the locks taken by the running builds within a single distribution cycle
+   */
+  @Benchmark
+  public void getUnavailableLocks(final Blackhole blackhole) {
+    final DistributionDataAccessor accessor = new DistributionDataAccessor(SyntheticServer.newDistributorInput());
+    final List<QueuedBuildInfo> queuedBuilds = myServer.getQueuedBuilds();
+    for (int i = 0; i < queuedBuilds.size(); i++) {
+      final BuildPromotionEx promotion = (BuildPromotionEx)queuedBuilds.get(i).getBuildPromotionInfo();
+      blackhole.consume(myServer.getTakenLocks().getUnavailableLocks(myLocksToTake.get(i).values(), myTakenLocks, promotion.getProjectId(), accessor, promotion));
+    }
+  }
+}
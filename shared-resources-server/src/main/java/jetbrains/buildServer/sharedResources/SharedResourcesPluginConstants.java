@@ -43,6 +43,11 @@ public class SharedResourcesPluginConstants {
 
     String ACTIONS = "/sharedResourcesActions.html";
 
+    /**
+     * Aggregated time spent by the plugin in the build distribution and in the build start, per-resource wait and contention metrics
+     */
+    String TIMINGS = "/sharedResourcesTimings.html";
+
     String PARAM_PROJECT_ID = "project_id";
     String PARAM_OLD_RESOURCE_NAME = "old_resource_name";
 
@@ -71,6 +76,82 @@ public class SharedResourcesPluginConstants {
 
   public static final String RESOURCES_IN_CHAINS_ENABLED = "teamcity.sharedResources.buildChains.enabled";
 
+  /**
+   * Maximum number of distinct lock definitions, which parsed locks are kept in memory
+   */
+  public static final String PARSED_LOCKS_CACHE_SIZE = "teamcity.sharedResources.parsedLocksCache.size";
+
+  /**
+   * Maximum number of diagnostic artifacts waiting to be written in background.
+   * If the queue is full, artifacts are written by the calling thread
+   */
+  public static final String ARTIFACTS_WRITER_QUEUE_SIZE = "teamcity.sharedResources.artifactsWriter.queueSize";
+
+  /**
+   * Whether diagnostic artifacts (taken locks and used resources) are written in background
+   */
+  public static final String ARTIFACTS_WRITER_ASYNC = "teamcity.sharedResources.artifactsWriter.async";
+
+  /**
+   * Whether usage of the resources by the builds is recorded to the usage history
+   */
+  public static final String USAGE_HISTORY_ENABLED = "teamcity.sharedResources.usageHistory.enabled";
+
+  /**
+   * Number of days the usage history is kept for
+   */
+  public static final String USAGE_HISTORY_RETENTION_DAYS = "teamcity.sharedResources.usageHistory.retentionDays";
+
+  /**
+   * Number of days before the start of the queried time window that are searched for the locks still held in the window
+   */
+  public static final String USAGE_HISTORY_LOOKBACK_DAYS = "teamcity.sharedResources.usageHistory.lookbackDays";
+
+  /**
+   * Maximum number of usage history records waiting to be written in background.
+   * If the queue is full, records are written by the calling thread
+   */
+  public static final String USAGE_HISTORY_QUEUE_SIZE = "teamcity.sharedResources.usageHistory.queueSize";
+
+  /**
+   * Whether time spent by the start build precondition and the context processor is measured
+   */
+  public static final String PHASE_TIMINGS_ENABLED = "teamcity.sharedResources.timings.enabled";
+
+  /**
+   * Number of seconds a queued build waits for a resource before it gets precedence over the builds that waited less.
+   * Zero or negative value disables aging, aging is disabled by default
+   */
+  public static final String WAIT_AGING_THRESHOLD_SECONDS = "teamcity.sharedResources.aging.thresholdSeconds";
+
+  /**
+   * Number of seconds a queued build stays in the queues of the resources without being checked by the start build precondition.
+   * Builds that were not checked for longer, e.g. because another precondition holds them back, do not get into the fair set
+   * and are removed from the queues. Zero or negative value disables initialization of the fair set from the queues
+   */
+  public static final String WAIT_QUEUE_EVALUATION_TIMEOUT_SECONDS = "teamcity.sharedResources.waitQueue.evaluationTimeoutSeconds";
+
+  /**
+   * Whether a busy resource is reserved across distribution cycles for the build that waits for write lock on it the longest
+   */
+  public static final String RESERVATIONS_ENABLED = "teamcity.sharedResources.reservations.enabled";
+
+  /**
+   * Number of seconds the resource stays reserved for the same waiting build
+   */
+  public static final String RESERVATION_TIMEOUT_SECONDS = "teamcity.sharedResources.reservations.timeoutSeconds";
+
+  /**
+   * Number of build promotions starting from which the taken locks are collected in parallel.
+   * Zero or negative value disables parallel collection
+   */
+  public static final String PARALLEL_COLLECTION_THRESHOLD = "teamcity.sharedResources.takenLocks.parallelThreshold";
+
+  /**
+   * Maximum number of threads collecting the taken locks in parallel
+   */
+  public static final String PARALLEL_COLLECTION_THREADS = "teamcity.sharedResources.takenLocks.parallelThreads";
+
   public static String getReservedResourceAttributeKey(@NotNull final String resourceId) {
     return "teamcity.sharedResources." + resourceId;
   }
@@ -2,24 +2,55 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
+import gnu.trove.TLongObjectHashMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.server.runtime.ReservedValuesProvider;
+import jetbrains.buildServer.sharedResources.server.runtime.TakenLocksSnapshot;
 import org.jetbrains.annotations.NotNull;
 
 public class DistributionData {
 
   private final Map<String, List<BuildPromotion>> myFairSet = new HashMap<>();
   private final ReservedValuesProvider myReservedValuesProvider = new ReservedValuesProvider();
+  private final TakenLocksSnapshot myTakenLocksSnapshot = new TakenLocksSnapshot();
+  private boolean myFairSetInitialized;
+
+  /**
+   * Composite promotion id -> locks of the running composite build resolved against the resources
+   */
+  private final TLongObjectHashMap<Map<Resource, Lock>> myResolvedChainLocks = new TLongObjectHashMap<>();
 
   public Map<String, List<BuildPromotion>> getFairSet() {
     return myFairSet;
   }
 
+  /**
+   * Marks the fair set as initialized with the builds waiting since the previous distribution cycles
+   *
+   * @return {@code true} if the fair set was not initialized before
+   */
+  public boolean markFairSetInitialized() {
+    final boolean result = !myFairSetInitialized;
+    myFairSetInitialized = true;
+    return result;
+  }
+
   @NotNull
   public ReservedValuesProvider getReservedValuesProvider() {
     return myReservedValuesProvider;
   }
-}
\ No newline at end of file
+
+  @NotNull
+  public TakenLocksSnapshot getTakenLocksSnapshot() {
+    return myTakenLocksSnapshot;
+  }
+
+  @NotNull
+  public TLongObjectHashMap<Map<Resource, Lock>> getResolvedChainLocks() {
+    return myResolvedChainLocks;
+  }
+}
@@ -14,6 +14,17 @@ public class Lock {
   @NotNull
   private static final String NO_VALUE = "";
 
+  /**
+   * Weight of the locks that do not declare it
+   */
+  public static final int DEFAULT_WEIGHT = 1;
+
+  /**
+   * Weight of the locks that declare a weight which is not a positive integer.
+   * Such locks are reported by the configuration inspector and are never taken
+   */
+  public static final int INVALID_WEIGHT = 0;
+
   /**
    * Name of the lock
    */
@@ -32,10 +43,24 @@ public class Lock {
   @NotNull
   private final String myValue;
 
+  /**
+   * Number of quota units of the quoted resource taken by the read lock
+   */
+  private final int myWeight;
+
   public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value) {
+    this(name, type, value, DEFAULT_WEIGHT);
+  }
+
+  public Lock(@NotNull final String name, @NotNull final LockType type, @NotNull final String value, final int weight) {
     myName = name;
     myType = type;
     myValue = value;
+    if (weight == INVALID_WEIGHT) {
+      myWeight = INVALID_WEIGHT;
+    } else {
+      myWeight = type == LockType.READ ? Math.max(DEFAULT_WEIGHT, weight) : DEFAULT_WEIGHT;
+    }
   }
 
   public Lock(@NotNull final String name, @NotNull final LockType type) {
@@ -51,7 +76,7 @@ public class Lock {
    * @return copy of combined lock definition and custom value
    */
   public static Lock createFrom(@NotNull final Lock from, @NotNull final String value) {
-    return new Lock(from.getName(), from.getType(), value);
+    return new Lock(from.getName(), from.getType(), value, from.getWeight());
   }
 
   @NotNull
@@ -69,6 +94,23 @@ public class Lock {
     return myValue;
   }
 
+  /**
+   * Weight of the lock. Only read locks can have weight other than {@link #DEFAULT_WEIGHT}
+   *
+   * @return number of quota units of the quoted resource taken by the lock
+   */
+  public int getWeight() {
+    return myWeight;
+  }
+
+  public boolean hasValidWeight() {
+    return myWeight != INVALID_WEIGHT;
+  }
+
+  public boolean isWeighted() {
+    return myWeight != DEFAULT_WEIGHT;
+  }
+
   public boolean isAnyValueLock() {
     return myValue.isEmpty();
   }
@@ -80,7 +122,8 @@ public class Lock {
     Lock lock = (Lock) o;
     return myName.equals(lock.myName)
             && myType == lock.myType
-            && myValue.equals(lock.myValue);
+            && myValue.equals(lock.myValue)
+            && myWeight == lock.myWeight;
 
   }
 
@@ -89,6 +132,7 @@ public class Lock {
     int result = myName.hashCode();
     result = 31 * result + myType.hashCode();
     result = 31 * result + myValue.hashCode();
+    result = 31 * result + myWeight;
     return result;
   }
 
@@ -98,6 +142,7 @@ public class Lock {
             "myName='" + myName + '\'' +
             ", myType=" + myType +
             ", myValue='" + myValue + '\'' +
+            (isWeighted() ? ", myWeight=" + myWeight : "") +
             '}';
   }
 }
\ No newline at end of file
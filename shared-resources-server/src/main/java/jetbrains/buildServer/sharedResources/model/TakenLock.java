@@ -2,62 +2,266 @@
 
 package jetbrains.buildServer.sharedResources.model;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+import java.util.*;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * Class {@code TakenLock}.
  *
  * For each resource, instance of this class contains locks that are acquired
  *
+ * Locks are kept by promotion id, lock values are interned and referenced by index.
+ * View of the taken lock without the locks of some promotions, e.g. of the build chain members, shares the data with the taken lock
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class TakenLock {
 
+  private static final int[] NO_VALUES = new int[0];
+
   @NotNull
   private final Resource myResource;
 
+  /**
+   * Promotion id -> promotion of the build holding the lock
+   */
+  @NotNull
+  private final TLongObjectHashMap<BuildPromotionEx> myPromotions;
+
+  /**
+   * Promotion id -> index of the value of the read lock
+   */
+  @NotNull
+  private final TLongIntHashMap myReadLocks;
+
+  /**
+   * Promotion id -> index of the value of the write lock
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myReadLocks = new HashMap<>();
+  private final TLongIntHashMap myWriteLocks;
 
+  /**
+   * Weights of the weighted read locks. Read locks that are not present here have default weight
+   */
   @NotNull
-  private final Map<BuildPromotionEx, String> myWriteLocks = new HashMap<>();
+  private final TLongIntHashMap myReadWeights;
+
+  @NotNull
+  private final List<String> myValues;
+
+  @NotNull
+  private final Map<String, Integer> myValueIndices;
+
+  /**
+   * Index of the interned value -> indices of the resource values it refers to, empty if the resource has no custom values
+   */
+  @NotNull
+  private final List<int[]> myResolvedValues;
+
+  /**
+   * Ids of the promotions whose locks are not visible, {@code null} for the taken lock itself
+   */
+  @Nullable
+  private final TLongHashSet myExcluded;
 
   public TakenLock(@NotNull final Resource resource) {
     myResource = resource;
+    myPromotions = new TLongObjectHashMap<>();
+    myReadLocks = new TLongIntHashMap();
+    myWriteLocks = new TLongIntHashMap();
+    myReadWeights = new TLongIntHashMap();
+    myValues = new ArrayList<>();
+    myValueIndices = new HashMap<>();
+    myResolvedValues = new ArrayList<>();
+    myExcluded = null;
   }
 
   public TakenLock(@NotNull final Resource resource,
                    @NotNull final Map<BuildPromotionEx, String> readLocks,
                    @NotNull final Map<BuildPromotionEx, String> writeLocks) {
-    myResource = resource;
-    myReadLocks.putAll(readLocks);
-    myWriteLocks.putAll(writeLocks);
+    this(resource, readLocks, writeLocks, Collections.emptyMap());
+  }
+
+  public TakenLock(@NotNull final Resource resource,
+                   @NotNull final Map<BuildPromotionEx, String> readLocks,
+                   @NotNull final Map<BuildPromotionEx, String> writeLocks,
+                   @NotNull final Map<BuildPromotionEx, Integer> readWeights) {
+    this(resource);
+    readLocks.forEach((promotion, value) -> {
+      myPromotions.put(promotion.getId(), promotion);
+      myReadLocks.put(promotion.getId(), intern(value));
+      final Integer weight = readWeights.get(promotion);
+      if (weight != null) {
+        myReadWeights.put(promotion.getId(), weight);
+      }
+    });
+    writeLocks.forEach((promotion, value) -> {
+      myPromotions.put(promotion.getId(), promotion);
+      myWriteLocks.put(promotion.getId(), intern(value));
+    });
+  }
+
+  private TakenLock(@NotNull final TakenLock takenLock, @NotNull final TLongHashSet excluded) {
+    myResource = takenLock.myResource;
+    myPromotions = takenLock.myPromotions;
+    myReadLocks = takenLock.myReadLocks;
+    myWriteLocks = takenLock.myWriteLocks;
+    myReadWeights = takenLock.myReadWeights;
+    myValues = takenLock.myValues;
+    myValueIndices = takenLock.myValueIndices;
+    myResolvedValues = takenLock.myResolvedValues;
+    myExcluded = excluded;
   }
 
   public void addLock(@NotNull final BuildPromotionEx info, @NotNull final Lock lock) {
+    if (myExcluded != null) {
+      throw new IllegalStateException("Locks can not be added to the view of the taken lock on resource " + myResource.getName());
+    }
     switch (lock.getType()) {
       case READ:
-        myReadLocks.put(info, lock.getValue());
+        addReadLock(info, lock.getValue(), lock.getWeight());
         break;
       case WRITE:
-        myWriteLocks.put(info, lock.getValue());
+        addWriteLock(info, lock.getValue());
         break;
     }
   }
 
+  /**
+   * Adds visible locks of another taken lock on the same resource
+   *
+   * @param other taken lock to add locks from
+   */
+  public void addAll(@NotNull final TakenLock other) {
+    if (myExcluded != null) {
+      throw new IllegalStateException("Locks can not be added to the view of the taken lock on resource " + myResource.getName());
+    }
+    other.forEachReadLock(this::addReadLock);
+    other.forEachWriteLock((promotion, value, weight) -> addWriteLock(promotion, value));
+  }
+
+  private void addReadLock(@NotNull final BuildPromotionEx promotion, @NotNull final String value, final int weight) {
+    final long id = promotion.getId();
+    myPromotions.put(id, promotion);
+    myReadLocks.put(id, intern(value));
+    if (weight != Lock.DEFAULT_WEIGHT) {
+      myReadWeights.put(id, weight);
+    } else {
+      myReadWeights.remove(id);
+    }
+  }
+
+  private void addWriteLock(@NotNull final BuildPromotionEx promotion, @NotNull final String value) {
+    final long id = promotion.getId();
+    myPromotions.put(id, promotion);
+    myWriteLocks.put(id, intern(value));
+  }
+
+  /**
+   * Creates view of the taken lock that does not contain locks of the given promotions.
+   * The view reflects later changes of the taken lock and can not be modified itself
+   *
+   * @param excluded ids of the promotions to exclude
+   * @return view of the taken lock
+   */
+  @NotNull
+  public TakenLock without(@NotNull final TLongHashSet excluded) {
+    if (excluded.isEmpty() && myExcluded == null) {
+      return this;
+    }
+    if (myExcluded != null) {
+      final TLongHashSet union = new TLongHashSet(myExcluded.toArray());
+      union.addAll(excluded.toArray());
+      return new TakenLock(this, union);
+    }
+    return new TakenLock(this, excluded);
+  }
+
+  /**
+   * Passes every visible read lock to the consumer
+   */
+  public void forEachReadLock(@NotNull final LockConsumer consumer) {
+    myReadLocks.forEachEntry((id, valueIndex) -> {
+      if (isVisible(id)) {
+        final int weight = myReadWeights.containsKey(id) ? myReadWeights.get(id) : Lock.DEFAULT_WEIGHT;
+        consumer.accept(myPromotions.get(id), myValues.get(valueIndex), weight);
+      }
+      return true;
+    });
+  }
+
+  /**
+   * Passes every visible write lock to the consumer
+   */
+  public void forEachWriteLock(@NotNull final LockConsumer consumer) {
+    myWriteLocks.forEachEntry((id, valueIndex) -> {
+      if (isVisible(id)) {
+        consumer.accept(myPromotions.get(id), myValues.get(valueIndex), Lock.DEFAULT_WEIGHT);
+      }
+      return true;
+    });
+  }
+
+  /**
+   * Passes indices of the resource values of every visible read lock to the consumer.
+   * Values of the weighted lock are resolved into several indices
+   */
+  public void forEachReadLockValues(@NotNull final ValueIndicesConsumer consumer) {
+    myReadLocks.forEachEntry((id, valueIndex) -> {
+      if (isVisible(id)) {
+        consumer.accept(myPromotions.get(id), myResolvedValues.get(valueIndex));
+      }
+      return true;
+    });
+  }
+
+  /**
+   * Passes indices of the resource values of every visible write lock to the consumer
+   */
+  public void forEachWriteLockValues(@NotNull final ValueIndicesConsumer consumer) {
+    myWriteLocks.forEachEntry((id, valueIndex) -> {
+      if (isVisible(id)) {
+        consumer.accept(myPromotions.get(id), myResolvedValues.get(valueIndex));
+      }
+      return true;
+    });
+  }
+
   @NotNull
   public Map<BuildPromotionEx, String> getReadLocks() {
-    return Collections.unmodifiableMap(myReadLocks);
+    final Map<BuildPromotionEx, String> result = new HashMap<>();
+    forEachReadLock((promotion, value, weight) -> result.put(promotion, value));
+    return Collections.unmodifiableMap(result);
   }
 
   @NotNull
   public Map<BuildPromotionEx, String> getWriteLocks() {
-    return Collections.unmodifiableMap(myWriteLocks);
+    final Map<BuildPromotionEx, String> result = new HashMap<>();
+    forEachWriteLock((promotion, value, weight) -> result.put(promotion, value));
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Returns builds holding read locks
+   */
+  @NotNull
+  public List<BuildPromotionEx> getReadLockHolders() {
+    return getHolders(myReadLocks);
+  }
+
+  /**
+   * Returns builds holding write locks
+   */
+  @NotNull
+  public List<BuildPromotionEx> getWriteLockHolders() {
+    return getHolders(myWriteLocks);
   }
 
   /**
@@ -71,20 +275,106 @@ public class TakenLock {
     return myResource;
   }
 
+  @NotNull
+  public Map<BuildPromotionEx, Integer> getReadWeights() {
+    final Map<BuildPromotionEx, Integer> result = new HashMap<>();
+    forEachReadLock((promotion, value, weight) -> {
+      if (myReadWeights.containsKey(promotion.getId())) {
+        result.put(promotion, weight);
+      }
+    });
+    return Collections.unmodifiableMap(result);
+  }
+
   /**
    * Gets overall locks count without differentiation by type
    * @return overall locks count
    */
   public int getLocksCount() {
-    return myReadLocks.size() + myWriteLocks.size();
+    return count(myReadLocks) + count(myWriteLocks);
+  }
+
+  /**
+   * Gets number of quota units taken by the locks. Each lock takes as many units as its weight
+   *
+   * @return number of taken quota units
+   */
+  public int getTakenUnits() {
+    final int[] result = {getLocksCount()};
+    myReadWeights.forEachEntry((id, weight) -> {
+      if (isVisible(id)) {
+        result[0] += weight - Lock.DEFAULT_WEIGHT;
+      }
+      return true;
+    });
+    return result[0];
   }
 
   public boolean hasReadLocks() {
-    return !myReadLocks.isEmpty();
+    return hasVisible(myReadLocks);
   }
 
   public boolean hasWriteLocks() {
-    return !myWriteLocks.isEmpty();
+    return hasVisible(myWriteLocks);
+  }
+
+  private int intern(@NotNull final String value) {
+    return myValueIndices.computeIfAbsent(value, v -> {
+      myValues.add(v);
+      myResolvedValues.add(myResource instanceof CustomResource ? ((CustomResource)myResource).resolveValueIndices(v) : NO_VALUES);
+      return myValues.size() - 1;
+    });
+  }
+
+  private boolean isVisible(final long promotionId) {
+    return myExcluded == null || !myExcluded.contains(promotionId);
+  }
+
+  private int count(@NotNull final TLongIntHashMap locks) {
+    if (myExcluded == null) {
+      return locks.size();
+    }
+    final int[] result = {0};
+    locks.forEachKey(id -> {
+      if (isVisible(id)) {
+        result[0]++;
+      }
+      return true;
+    });
+    return result[0];
   }
 
-}
\ No newline at end of file
+  private boolean hasVisible(@NotNull final TLongIntHashMap locks) {
+    if (myExcluded == null) {
+      return !locks.isEmpty();
+    }
+    // stops at the first visible lock
+    return !locks.forEachKey(id -> !isVisible(id));
+  }
+
+  @NotNull
+  private List<BuildPromotionEx> getHolders(@NotNull final TLongIntHashMap locks) {
+    final List<BuildPromotionEx> result = new ArrayList<>(locks.size());
+    locks.forEachKey(id -> {
+      if (isVisible(id)) {
+        result.add(myPromotions.get(id));
+      }
+      return true;
+    });
+    return result;
+  }
+
+  /**
+   * Consumer of the taken locks
+   */
+  public interface LockConsumer {
+    void accept(@NotNull BuildPromotionEx promotion, @NotNull String value, int weight);
+  }
+
+  /**
+   * Consumer of the indices of the resource values taken by the locks, see {@link CustomResource#getValueIndex(String)}
+   */
+  public interface ValueIndicesConsumer {
+    void accept(@NotNull BuildPromotionEx promotion, @NotNull int[] valueIndices);
+  }
+}
@@ -2,10 +2,7 @@
 
 package jetbrains.buildServer.sharedResources.model.resources;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -13,13 +10,46 @@ import org.jetbrains.annotations.NotNull;
  *
  * Represents resource with custom value space
  *
+ * Distinct values of the resource are indexed once, when the resource is created,
+ * so that occupancy of the values can be tracked by value index instead of by value.
+ * Position of the value in the list of values is called a slot, duplicate values occupy several slots.
+ *
+ * A weighted read lock takes several values at once. The values taken by such lock are stored and exposed
+ * to the build joined with {@link #VALUES_SEPARATOR}, the same way as the values of the write lock
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class CustomResource extends AbstractResource {
 
+  public static final String VALUES_SEPARATOR = ";";
+
   @NotNull
   private final List<String> myValues;
 
+  /**
+   * Distinct value -> value index
+   */
+  @NotNull
+  private final Map<String, Integer> myValueIndices;
+
+  /**
+   * Value index -> distinct value
+   */
+  @NotNull
+  private final List<String> myDistinctValues;
+
+  /**
+   * Value index -> slots with this value, in ascending order
+   */
+  @NotNull
+  private final int[][] mySlots;
+
+  /**
+   * Slot -> value index
+   */
+  @NotNull
+  private final int[] mySlotValueIndices;
+
   private CustomResource(@NotNull final String id,
                          @NotNull final String projectId,
                          @NotNull final String name,
@@ -27,6 +57,28 @@ public class CustomResource extends AbstractResource {
                          boolean state) {
     super(id, projectId, name, ResourceType.CUSTOM, state);
     myValues = new ArrayList<>(values);
+    final int size = myValues.size();
+    myValueIndices = new HashMap<>(size * 2);
+    myDistinctValues = new ArrayList<>(size);
+    mySlotValueIndices = new int[size];
+    final int[] slotCounts = new int[size];
+    for (int slot = 0; slot < size; slot++) {
+      final int index = myValueIndices.computeIfAbsent(myValues.get(slot), v -> {
+        myDistinctValues.add(v);
+        return myDistinctValues.size() - 1;
+      });
+      mySlotValueIndices[slot] = index;
+      slotCounts[index]++;
+    }
+    mySlots = new int[myDistinctValues.size()][];
+    for (int i = 0; i < mySlots.length; i++) {
+      mySlots[i] = new int[slotCounts[i]];
+      slotCounts[i] = 0;
+    }
+    for (int slot = 0; slot < size; slot++) {
+      final int index = mySlotValueIndices[slot];
+      mySlots[index][slotCounts[index]++] = slot;
+    }
   }
 
   @NotNull
@@ -43,6 +95,71 @@ public class CustomResource extends AbstractResource {
     return Collections.unmodifiableList(myValues);
   }
 
+  /**
+   * Returns index of the given value
+   *
+   * @param value value of the resource
+   * @return index of the value or {@code -1} if the resource does not have such value
+   */
+  public int getValueIndex(@NotNull final String value) {
+    final Integer result = myValueIndices.get(value);
+    return result == null ? -1 : result;
+  }
+
+  /**
+   * Resolves value of the lock into value indices.
+   * Value of the weighted lock contains several values joined by {@link #VALUES_SEPARATOR}.
+   * Values that the resource does not have are skipped
+   *
+   * @param lockValue value of the lock
+   * @return indices of the values
+   */
+  @NotNull
+  public int[] resolveValueIndices(@NotNull final String lockValue) {
+    final int index = getValueIndex(lockValue);
+    if (index != -1) {
+      return new int[]{index};
+    }
+    return splitValues(lockValue).stream()
+                                 .mapToInt(this::getValueIndex)
+                                 .filter(i -> i != -1)
+                                 .toArray();
+  }
+
+  @NotNull
+  public String getValue(final int valueIndex) {
+    return myDistinctValues.get(valueIndex);
+  }
+
+  /**
+   * Returns value index of the given slot
+   */
+  public int getSlotValueIndex(final int slot) {
+    return mySlotValueIndices[slot];
+  }
+
+  /**
+   * Returns slots with the value of the given index in ascending order. Returned array must not be modified
+   */
+  @NotNull
+  public int[] getSlots(final int valueIndex) {
+    return mySlots[valueIndex];
+  }
+
+  public int getSlotsCount() {
+    return myValues.size();
+  }
+
+  @NotNull
+  public static String joinValues(@NotNull final Collection<String> values) {
+    return String.join(VALUES_SEPARATOR, values);
+  }
+
+  @NotNull
+  public static List<String> splitValues(@NotNull final String joinedValues) {
+    return Arrays.asList(joinedValues.split(VALUES_SEPARATOR, -1));
+  }
+
   @NotNull
   @Override
   public Map<String, String> getParameters() {
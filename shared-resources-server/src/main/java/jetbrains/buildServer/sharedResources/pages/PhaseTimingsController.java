@@ -0,0 +1,77 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.pages;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.serverSide.auth.SecurityContext;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+/**
+ * Diagnostics page with the time spent by the plugin in the build distribution and in the build start
+ * and with the wait and contention metrics of the resources
+ */
+public class PhaseTimingsController extends BaseController {
+
+  @NotNull
+  private final PhaseTimings myTimings;
+
+  @NotNull
+  private final ResourceMetrics myMetrics;
+
+  @NotNull
+  private final SecurityContext mySecurityContext;
+
+  public PhaseTimingsController(@NotNull final WebControllerManager web,
+                                @NotNull final PhaseTimings timings,
+                                @NotNull final ResourceMetrics metrics,
+                                @NotNull final SecurityContext securityContext) {
+    myTimings = timings;
+    myMetrics = metrics;
+    mySecurityContext = securityContext;
+    web.registerController(SharedResourcesPluginConstants.WEB.TIMINGS, this);
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull final HttpServletRequest request,
+                                  @NotNull final HttpServletResponse response) throws IOException {
+    final SUser user = (SUser)mySecurityContext.getAuthorityHolder().getAssociatedUser();
+    if (user == null || !user.isPermissionGrantedGlobally(Permission.VIEW_USAGE_STATISTICS)) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return null;
+    }
+    final StringBuilder out = new StringBuilder();
+    myTimings.report(out);
+    out.append("\nResources\n\n");
+    myMetrics.report(out);
+    response.setContentType("text/plain; charset=utf-8");
+    response.getWriter().write(out.toString());
+    return null;
+  }
+}
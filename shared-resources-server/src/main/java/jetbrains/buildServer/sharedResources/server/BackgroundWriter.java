@@ -0,0 +1,180 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded queue of write tasks processed in batches by a single daemon thread.
+ *
+ * The thread is started on the first task. The caller processes the task itself if the queue is full
+ * or the writer is shut down, see {@link #offer}.
+ *
+ * @param <T> type of the tasks
+ */
+public class BackgroundWriter<T> {
+
+  private static final Logger LOG = Logger.getInstance(BackgroundWriter.class.getName());
+
+  private static final int MAX_BATCH_SIZE = 64;
+
+  @NotNull
+  private final String myName;
+
+  @NotNull
+  private final BlockingQueue<T> myQueue;
+
+  @NotNull
+  private final Consumer<List<T>> myProcessor;
+
+  private final Object myLock = new Object();
+
+  @Nullable
+  private Thread myWorker = null;
+
+  /**
+   * Batch being processed by the worker
+   */
+  @NotNull
+  private List<T> myInFlight = Collections.emptyList();
+
+  private volatile boolean myShutdown = false;
+
+  /**
+   * @param name      name of the worker thread
+   * @param capacity  maximum number of the queued tasks
+   * @param processor processes a batch of the tasks in the worker thread
+   */
+  public BackgroundWriter(@NotNull final String name, final int capacity, @NotNull final Consumer<List<T>> processor) {
+    myName = name;
+    myQueue = new LinkedBlockingQueue<>(Math.max(1, capacity));
+    myProcessor = processor;
+  }
+
+  /**
+   * Queues the task
+   *
+   * @return {@code false} if the queue is full or the writer is shut down, the task must be processed by the caller then
+   */
+  public boolean offer(@NotNull final T task) {
+    if (myShutdown || !myQueue.offer(task)) {
+      return false;
+    }
+    synchronized (myLock) {
+      if (myWorker == null && !myShutdown) {
+        final Thread worker = new Thread(this::processQueue, myName);
+        worker.setDaemon(true);
+        worker.start();
+        myWorker = worker;
+      }
+      myLock.notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Removes queued tasks matching the filter and waits until the tasks matching the filter which are processed by the worker are done
+   *
+   * @return removed tasks, they must be processed by the caller
+   */
+  @NotNull
+  public List<T> takePending(@NotNull final Predicate<T> filter) {
+    final List<T> result = new ArrayList<>();
+    synchronized (myLock) {
+      // the worker moves tasks from the queue to the batch under the lock, so every task is either queued or in flight here
+      myQueue.removeIf(task -> {
+        if (filter.test(task)) {
+          result.add(task);
+          return true;
+        }
+        return false;
+      });
+      try {
+        while (myInFlight.stream().anyMatch(filter)) {
+          myLock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Stops the worker after it finishes the current batch
+   *
+   * @return tasks that were not processed, they must be processed by the caller
+   */
+  @NotNull
+  public List<T> shutdown() {
+    myShutdown = true;
+    final Thread worker;
+    synchronized (myLock) {
+      worker = myWorker;
+      myWorker = null;
+    }
+    if (worker != null) {
+      worker.interrupt();
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    final List<T> result = new ArrayList<>();
+    myQueue.drainTo(result);
+    return result;
+  }
+
+  private void processQueue() {
+    final List<T> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    try {
+      while (!myShutdown) {
+        synchronized (myLock) {
+          while (myQueue.isEmpty()) {
+            myLock.wait();
+          }
+          myQueue.drainTo(batch, MAX_BATCH_SIZE);
+          myInFlight = batch;
+        }
+        try {
+          myProcessor.accept(batch);
+        } catch (RuntimeException e) {
+          LOG.warnAndDebugDetails("Failed to process tasks in " + myName, e);
+        } finally {
+          synchronized (myLock) {
+            myInFlight = Collections.emptyList();
+            batch.clear();
+            myLock.notifyAll();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      // shutdown
+    }
+  }
+}
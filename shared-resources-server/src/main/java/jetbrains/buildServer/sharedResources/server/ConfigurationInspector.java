@@ -3,6 +3,8 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
 import jetbrains.buildServer.serverSide.SBuildType;
@@ -27,6 +29,9 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
  *
  * Inspects build configuration settings and reports errors
  *
+ * Results of the inspections of the queued builds are cached by project and locks of the build
+ * until the resources or the project hierarchy change
+ *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class ConfigurationInspector {
@@ -37,6 +42,14 @@ public class ConfigurationInspector {
   @NotNull
   private final Resources myResources;
 
+  /**
+   * Results of the inspections of the queued builds, valid for {@link #myCacheVersion} of the resources
+   */
+  @NotNull
+  private final ConcurrentMap<InspectionKey, Map<Lock, String>> myCache = new ConcurrentHashMap<>();
+
+  private volatile long myCacheVersion = Resources.UNTRACKED_VERSION;
+
   public ConfigurationInspector(@NotNull final SharedResourcesFeatures features,
                                 @NotNull final Resources resources) {
     myFeatures = features;
@@ -48,11 +61,43 @@ public class ConfigurationInspector {
     return getInvalidLocks(type.getProject(), myFeatures.searchForFeatures(type));
   }
 
+  /**
+   * Inspects locks of the queued build. Result is cached and must not be modified
+   *
+   * @param promotion promotion of the queued build
+   * @return invalid locks with their errors
+   */
   @NotNull
   public Map<Lock, String> inspect(@NotNull final BuildPromotionEx promotion) {
     SBuildType buildType = promotion.getBuildType();
     if (buildType == null) return Collections.emptyMap();
-    return getInvalidLocks(buildType.getProject(), myFeatures.searchForFeatures(promotion));
+    final SProject project = buildType.getProject();
+    final Map<String, Lock> locks = collectLocks(myFeatures.searchForFeatures(promotion));
+    if (locks.isEmpty()) return Collections.emptyMap();
+    final long version = myResources.getVersion();
+    if (version == Resources.UNTRACKED_VERSION) {
+      return getInvalidLocks(project, locks);
+    }
+    if (myCacheVersion != version) {
+      synchronized (myCache) {
+        if (myCacheVersion != version) {
+          myCache.clear();
+          myCacheVersion = version;
+        }
+      }
+    }
+    final InspectionKey key = new InspectionKey(project.getProjectId(), locks);
+    final Map<Lock, String> cached = myCache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    final Map<Lock, String> result = Collections.unmodifiableMap(getInvalidLocks(project, new HashMap<>(locks)));
+    myCache.put(key, result);
+    if (myResources.getVersion() != version) {
+      // resources were changed during the inspection
+      myCache.remove(key, result);
+    }
+    return result;
   }
 
   @NotNull
@@ -141,9 +186,24 @@ public class ConfigurationInspector {
 
   private Map<Lock, String> getInvalidLocks(@NotNull final SProject project,
                                             @NotNull final Collection<SharedResourcesFeature> features) {
-    final Map<Lock, String> result = new HashMap<>();
+    return getInvalidLocks(project, collectLocks(features));
+  }
+
+  @NotNull
+  private static Map<String, Lock> collectLocks(@NotNull final Collection<SharedResourcesFeature> features) {
     final Map<String, Lock> locks = new HashMap<>();
     features.stream().map(SharedResourcesFeature::getLockedResources).forEach(locks::putAll);
+    return locks;
+  }
+
+  /**
+   * Resolves the locks against the resources of the project path
+   *
+   * @param locks locks to resolve, resolved locks are removed from the map
+   */
+  private Map<Lock, String> getInvalidLocks(@NotNull final SProject project,
+                                            @NotNull final Map<String, Lock> locks) {
+    final Map<Lock, String> result = new HashMap<>();
     if (locks.isEmpty()) {
       return result;
     }
@@ -199,6 +259,9 @@ public class ConfigurationInspector {
 
   @NotNull
   private String tryMatch(@NotNull final Resource r, @NotNull final Lock lock) {
+    if (!lock.hasValidWeight()) {
+      return "Lock on resource '" + lock.getName() + "' has invalid weight: weight must be a positive integer";
+    }
     if (!lock.isAnyValueLock()) {
       if (ResourceType.CUSTOM == r.getType()) {
         if (!((CustomResource) r).getValues().contains(lock.getValue())) {
@@ -210,6 +273,51 @@ public class ConfigurationInspector {
         return "Resource '" + lock.getName() + "' has wrong type: expected 'custom' got " + (((QuotedResource) r).isInfinite() ? "'infinite'" : "'quoted'");
       }
     }
+    if (lock.isWeighted()) {
+      if (ResourceType.CUSTOM == r.getType()) {
+        // weighted lock on custom resource takes several values
+        final List<String> values = ((CustomResource) r).getValues();
+        if (!lock.isAnyValueLock()) {
+          return "Lock on resource '" + lock.getName() + "' requires " + lock.getWeight() + " values and cannot specify the value";
+        }
+        if (lock.getWeight() > values.size()) {
+          return "Lock on resource '" + lock.getName() + "' requires " + lock.getWeight() + " values, but the resource has " + values.size();
+        }
+        if (values.stream().anyMatch(value -> value.contains(CustomResource.VALUES_SEPARATOR))) {
+          return "Resource '" + lock.getName() + "' has values containing '" + CustomResource.VALUES_SEPARATOR + "' and cannot be locked by several values at once";
+        }
+        return OK;
+      }
+      final QuotedResource quoted = (QuotedResource) r;
+      if (!quoted.isInfinite() && lock.getWeight() > quoted.getQuota()) {
+        return "Lock on resource '" + lock.getName() + "' requires " + lock.getWeight() + " units, but the quota is " + quoted.getQuota();
+      }
+    }
     return OK;
   }
-}
\ No newline at end of file
+
+  private static final class InspectionKey {
+    @NotNull
+    private final String myProjectId;
+    @NotNull
+    private final Map<String, Lock> myLocks;
+
+    InspectionKey(@NotNull final String projectId, @NotNull final Map<String, Lock> locks) {
+      myProjectId = projectId;
+      myLocks = locks;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) return true;
+      if (!(o instanceof InspectionKey)) return false;
+      final InspectionKey key = (InspectionKey)o;
+      return myProjectId.equals(key.myProjectId) && myLocks.equals(key.myLocks);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * myProjectId.hashCode() + myLocks.hashCode();
+    }
+  }
+}
@@ -2,8 +2,8 @@
 
 package jetbrains.buildServer.sharedResources.server;
 
+import com.google.common.util.concurrent.Striped;
 import com.intellij.openapi.diagnostic.Logger;
-import gnu.trove.TLongHashSet;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -17,9 +17,11 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceType;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.history.ResourceUsageHistory;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
-import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.getReservedResourceAttributeKey;
@@ -34,8 +36,13 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   @NotNull
   private static final Logger LOG = Logger.getInstance(SharedResourcesContextProcessor.class.getName());
 
+  /**
+   * Number of stripes used to serialize processing of the builds sharing composite builds or custom resources
+   */
+  private static final int STRIPES_COUNT = 64;
+
   @NotNull
-  private final Object o = new Object();
+  private final Striped<java.util.concurrent.locks.Lock> myStripes = Striped.lock(STRIPES_COUNT);
 
   @NotNull
   private final SharedResourcesFeatures myFeatures;
@@ -52,16 +59,31 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
   @NotNull
   private final BuildUsedResourcesReport myBuildUsedResourcesReport;
 
+  @NotNull
+  private final ResourceUsageHistory myUsageHistory;
+
+  @NotNull
+  private final ResourceMetrics myMetrics;
+
+  @NotNull
+  private final PhaseTimings myTimings;
+
   public SharedResourcesContextProcessor(@NotNull final SharedResourcesFeatures features,
                                          @NotNull final Locks locks,
                                          @NotNull final Resources resources,
                                          @NotNull final LocksStorage locksStorage,
-                                         @NotNull final BuildUsedResourcesReport buildUsedResourcesReport) {
+                                         @NotNull final BuildUsedResourcesReport buildUsedResourcesReport,
+                                         @NotNull final ResourceUsageHistory usageHistory,
+                                         @NotNull final ResourceMetrics metrics,
+                                         @NotNull final PhaseTimings timings) {
     myFeatures = features;
     myLocks = locks;
     myResources = resources;
     myLocksStorage = locksStorage;
     myBuildUsedResourcesReport = buildUsedResourcesReport;
+    myUsageHistory = usageHistory;
+    myMetrics = metrics;
+    myTimings = timings;
   }
 
   /**
@@ -81,30 +103,73 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
    */
   @Override
   public void updateParameters(@NotNull final BuildStartContext context) {
+    final long started = myTimings.start();
+    try {
+      doUpdateParameters(context);
+    } finally {
+      myTimings.stop(PhaseTimings.Phase.UPDATE_PARAMETERS, started);
+    }
+  }
+
+  private void doUpdateParameters(@NotNull final BuildStartContext context) {
     final SRunningBuild startingBuild = context.getBuild();
     final BuildPromotionEx startingBuildPromotion = (BuildPromotionEx)startingBuild.getBuildPromotion();
-    final TLongHashSet compositeIds = new TLongHashSet();
     // projectID -> Map of custom resources
     final Map<String, Map<String, CustomResource>> projectTreeCustomResources = new HashMap<>();
     // projectId -> Map of all resources
     final Map<String, Map<String, Resource>> projectTreeResources = new HashMap<>();
-    // several locks on same resource may be taken by the chain
-    synchronized (o) {
-      if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && startingBuildPromotion.isPartOfBuildChain()) {
-        // get all dependent composite promotions
-        final List<BuildPromotionEx> depPromos = startingBuildPromotion.getDependentCompositePromotions();
-        // collect promotion ids of composite builds in chain.
-        // we don't need to check the values against them
-        depPromos.forEach(promo -> compositeIds.add(promo.getId()));
-        // some build promotions in composite chain may not have the locks stored -> we need to process and store locks
-        depPromos.stream()
-                 .filter(promo -> !myLocksStorage.locksStored(promo))
-                 .forEach(promo -> processBuild(context, promo, projectTreeResources, projectTreeCustomResources));
+    final List<BuildPromotionEx> depPromos;
+    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && startingBuildPromotion.isPartOfBuildChain()) {
+      // get all dependent composite promotions
+      depPromos = startingBuildPromotion.getDependentCompositePromotions();
+    } else {
+      depPromos = Collections.emptyList();
+    }
+    // several locks on same resource may be taken by the chain,
+    // so only builds sharing a composite build or a custom resource are processed one at a time
+    final List<java.util.concurrent.locks.Lock> stripes = new ArrayList<>();
+    myStripes.bulkGet(getStripeKeys(startingBuildPromotion, depPromos, projectTreeResources)).forEach(stripes::add);
+    stripes.forEach(java.util.concurrent.locks.Lock::lock);
+    try {
+      // some build promotions in composite chain may not have the locks stored -> we need to process and store locks
+      depPromos.stream()
+               .filter(promo -> !myLocksStorage.locksStored(promo))
+               .forEach(promo -> processBuild(context, promo, projectTreeResources, projectTreeCustomResources));
+      processBuild(context, startingBuildPromotion, projectTreeResources, projectTreeCustomResources);
+    } finally {
+      for (int i = stripes.size() - 1; i >= 0; i--) {
+        stripes.get(i).unlock();
       }
-      processBuild(context, startingBuild.getBuildPromotion(), projectTreeResources, projectTreeCustomResources);
     }
   }
 
+  /**
+   * Returns keys of the stripes the starting build must hold while its locks are processed:
+   * ids of the composite builds of its chain and ids of the custom resources it locks.
+   * Builds without locks outside of build chains do not need any stripes
+   */
+  @NotNull
+  private List<Object> getStripeKeys(@NotNull final BuildPromotionEx startingBuildPromotion,
+                                     @NotNull final List<BuildPromotionEx> depPromos,
+                                     @NotNull final Map<String, Map<String, Resource>> projectTreeResources) {
+    final List<Object> result = new ArrayList<>();
+    depPromos.forEach(promo -> result.add(promo.getId()));
+    final String projectId = startingBuildPromotion.getProjectId();
+    if (projectId != null && !startingBuildPromotion.isCompositeBuild()) {
+      final Map<String, Lock> locks = extractLocks(startingBuildPromotion);
+      if (!locks.isEmpty()) {
+        final Map<String, Resource> resources = getResources(projectId, projectTreeResources);
+        locks.keySet().forEach(name -> {
+          final Resource resource = resources.get(name);
+          if (resource instanceof CustomResource) {
+            result.add(resource.getId());
+          }
+        });
+      }
+    }
+    return result;
+  }
+
   private void processBuild(@NotNull final BuildStartContext context,
                             @NotNull final BuildPromotion currentBuildPromotion,
                             @NotNull final Map<String, Map<String, Resource>> projectTreeResources,
@@ -145,7 +210,7 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
               }
               myTakenValues.put(currentLock, reservedValue);
             } else { // ALL lock
-              reservedValue = StringUtil.join(values, ";");
+              reservedValue = CustomResource.joinValues(values);
             }
             context.addSharedParameter(paramName, reservedValue);
           }
@@ -154,6 +219,8 @@ public class SharedResourcesContextProcessor implements BuildStartContextProcess
     }
     myLocksStorage.store(currentBuildPromotion, myTakenValues);
     myBuildUsedResourcesReport.save((BuildPromotionEx)currentBuildPromotion, projectResources, myTakenValues);
+    myUsageHistory.recordAcquired(currentBuildPromotion, projectResources, myTakenValues);
+    myMetrics.onAcquired(currentBuildPromotion, projectResources, myTakenValues);
   }
 
   private Map<String, Lock> extractLocks(@NotNull final BuildPromotion buildPromotion) {
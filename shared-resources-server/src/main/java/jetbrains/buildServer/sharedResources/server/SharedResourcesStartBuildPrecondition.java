@@ -16,10 +16,14 @@
 
 package jetbrains.buildServer.sharedResources.server;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.TLongObjectHashMap;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongPredicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.BuildAgent;
@@ -36,14 +40,19 @@ import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
 import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.QuotedResource;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
+import jetbrains.buildServer.sharedResources.server.runtime.CustomValueSlots;
 import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.sharedResources.server.runtime.ReservedValuesProvider;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueue;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
 import jetbrains.buildServer.util.impl.Lazy;
 import jetbrains.buildServer.util.positioning.PositionAware;
@@ -79,13 +88,25 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
   @NotNull
   private final Resources myResources;
 
+  @NotNull
+  private final ResourceMetrics myMetrics;
+
+  @NotNull
+  private final PhaseTimings myTimings;
+
+  @NotNull
+  private final ResourceWaitQueue myWaitQueue;
+
   public SharedResourcesStartBuildPrecondition(@NotNull final SharedResourcesFeatures features,
                                            @NotNull final Locks locks,
                                            @NotNull final TakenLocks takenLocks,
                                            @NotNull final RunningBuildsManagerEx runningBuildsManager,
                                            @NotNull final ConfigurationInspector inspector,
                                            @NotNull final LocksStorage locksStorage,
-                                           @NotNull final Resources resources) {
+                                           @NotNull final Resources resources,
+                                           @NotNull final ResourceMetrics metrics,
+                                           @NotNull final PhaseTimings timings,
+                                           @NotNull final ResourceWaitQueue waitQueue) {
     myFeatures = features;
     myLocks = locks;
     myTakenLocks = takenLocks;
@@ -93,6 +114,9 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
     myInspector = inspector;
     myLocksStorage = locksStorage;
     myResources = resources;
+    myMetrics = metrics;
+    myTimings = timings;
+    myWaitQueue = waitQueue;
   }
 
   @Nullable
@@ -101,104 +125,143 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
                              @NotNull Map<QueuedBuildInfo, BuildAgent> canBeStarted,
                              @NotNull BuildDistributorInput buildDistributorInput,
                              boolean isEmulationMode) {
+    final long started = myTimings.start();
+    try {
+      return doCanStart(queuedBuildInfo, canBeStarted, buildDistributorInput, isEmulationMode);
+    } finally {
+      myTimings.stop(PhaseTimings.Phase.CAN_START, started);
+    }
+  }
+
+  @Nullable
+  private WaitReason doCanStart(@NotNull final QueuedBuildInfo queuedBuildInfo,
+                                @NotNull final Map<QueuedBuildInfo, BuildAgent> canBeStarted,
+                                @NotNull final BuildDistributorInput buildDistributorInput,
+                                final boolean isEmulationMode) {
+    final BuildPromotionEx myPromotion = (BuildPromotionEx)queuedBuildInfo.getBuildPromotionInfo();
+    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && myPromotion.isPartOfBuildChain()) {
+      LOG.debug("Queued build is part of build chain");
+      final List<BuildPromotionEx> depPromos = myPromotion.getDependentCompositePromotions();
+      if (!depPromos.isEmpty()) {
+        return processChain(myPromotion, depPromos, canBeStarted, buildDistributorInput, isEmulationMode);
+      }
+      LOG.debug("Queued build does not have dependent composite promotions");
+    }
+    // fast path: most of the builds do not use shared resources at all.
+    // They are let through before any distribution data, taken locks or resources are touched
+    final String projectId = myPromotion.getProjectId();
+    final SBuildType buildType = myPromotion.getBuildType();
+    if (buildType == null || projectId == null) {
+      return null;
+    }
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(myPromotion);
+    if (features.isEmpty()) {
+      return null;
+    }
     final DistributionDataAccessor accessor = new DistributionDataAccessor(buildDistributorInput);
-    Supplier<Map<Resource, TakenLock>> takenLocksSupplier = new Lazy<Map<Resource, TakenLock>>() {
+    cleanupReservedValues(accessor, canBeStarted);
+    return processSingleBuild(myPromotion, projectId, features, accessor, createTakenLocksSupplier(accessor, canBeStarted), isEmulationMode);
+  }
+
+  @NotNull
+  private Supplier<Map<Resource, TakenLock>> createTakenLocksSupplier(@NotNull final DistributionDataAccessor accessor,
+                                                                      @NotNull final Map<QueuedBuildInfo, BuildAgent> canBeStarted) {
+    return new Lazy<Map<Resource, TakenLock>>() {
       @Override
       protected Map<Resource, TakenLock> createValue() {
-        return myTakenLocks.collectTakenLocks(myRunningBuildsManager.getRunningBuildsEx(), canBeStarted.keySet());
+        // taken locks are collected once per distribution cycle and are updated as more builds are scheduled to start
+        final long started = myTimings.start();
+        try {
+          return accessor.getTakenLocksSnapshot().getTakenLocks(myTakenLocks, myRunningBuildsManager::getRunningBuildsEx, canBeStarted.keySet());
+        } finally {
+          myTimings.stop(PhaseTimings.Phase.TAKEN_LOCKS, started);
+        }
       }
     };
+  }
 
-    CachingProjectResourcesMap resourcesMap = new CachingProjectResourcesMap(myResources);
-
-    // get or create our collection of resources
-    WaitReason reason = null;
-    final BuildPromotionEx myPromotion = (BuildPromotionEx)queuedBuildInfo.getBuildPromotionInfo();
-
+  private void cleanupReservedValues(@NotNull final DistributionDataAccessor accessor,
+                                     @NotNull final Map<QueuedBuildInfo, BuildAgent> canBeStarted) {
     // we're preserving the values of distributed builds only, if our filter allowed some previous build
     // to start and reserved a value for it, there can be another filter for the same build which actually
-    // prevented it from starting; by doing this cleanup we're removing reserved values of builds which could not start
+    // prevented it from starting; by doing this cleanup we're removing reserved values of builds which could not start.
+    // Values are only read while processing builds with locks, so the cleanup is skipped for the builds without them
     final ReservedValuesProvider reservedValuesProvider = accessor.getReservedValuesProvider();
     reservedValuesProvider.cleanupValuesReservedByObsoleteBuilds(() -> canBeStarted.keySet().stream()
                                                                                    .map(QueuedBuildInfo::getBuildPromotionInfo)
                                                                                    .map(BuildPromotionInfo::getId)
                                                                                    .collect(Collectors.toSet()));
+  }
 
-    if (TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.RESOURCES_IN_CHAINS_ENABLED) && myPromotion.isPartOfBuildChain()) {
-      LOG.debug("Queued build is part of build chain");
-      final List<BuildPromotionEx> depPromos = myPromotion.getDependentCompositePromotions();
-      if (depPromos.isEmpty()) {
-        LOG.debug("Queued build does not have dependent composite promotions");
-        reason = processSingleBuild(myPromotion, accessor, takenLocksSupplier, myPromotion, isEmulationMode);
-      } else {
-        LOG.debug("Queued build does have " + depPromos.size() + " dependent composite " + StringUtil.pluralize("promotion", depPromos.size()));
-        // contains resources and locks that are INSIDE the build chain
-        final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks = new HashMap<>(); // resource -> {promotion -> lock}
-        // first - get top of the chain. Builds that are already running.
-        // they have locks already taken
-        depPromos.forEach(promo -> {
-                   if (myLocksStorage.locksStored(promo)) {
-                     final BuildTypeEx buildType = promo.getBuildType();
-                     if (buildType == null) return;
-                     LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
-                     final Map<String, Lock> currentNodeLocks = myLocksStorage.load(promo);
-                     if (!currentNodeLocks.isEmpty()) {
-                       // if there are locks - resolve locks against resources according to project hierarchy of composite build
-                       resolve(chainLocks, resourcesMap.getResourcesMap(promo.getBuildType().getProject()), promo, currentNodeLocks);
-                     }
-                   }
-                 });
-
-        // rest are queued builds.
-        // make sure queued builds can start.
-        // builds inside composite build chain are not affected by the locks taken in the same chain
-        final List<SQueuedBuild> queued = depPromos.stream()
-                                                   .map(BuildPromotion::getQueuedBuild)
-                                                   .filter(Objects::nonNull)
-                                                   .collect(Collectors.toList());
-        for (SQueuedBuild compositeQueuedBuild : queued) {
-          final BuildPromotion compositeBp = compositeQueuedBuild.getBuildPromotion();
-          SBuildType compositeBuildType = compositeBp.getBuildType();
-          if (compositeBuildType == null) continue;
-
-          final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(compositeBp);
-          if (!features.isEmpty()) {
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
-            if (!locksToTake.isEmpty()) {
-              // resolve locks that build wants to take against actual resources
-              reason = processBuildInChain(accessor, takenLocksSupplier,
-                                           resourcesMap.getResourcesMap(compositeBuildType.getProject()),
-                                           chainLocks, locksToTake, compositeBp, isEmulationMode);
-              if (reason != null) {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug("Preventing start of the queued build [" + compositeQueuedBuild + "] with reason: [" + reason.getDescription() + "]");
-                }
-                break;
-              }
+  @Nullable
+  private WaitReason processChain(@NotNull final BuildPromotionEx myPromotion,
+                                  @NotNull final List<BuildPromotionEx> depPromos,
+                                  @NotNull final Map<QueuedBuildInfo, BuildAgent> canBeStarted,
+                                  @NotNull final BuildDistributorInput buildDistributorInput,
+                                  final boolean isEmulationMode) {
+    final DistributionDataAccessor accessor = new DistributionDataAccessor(buildDistributorInput);
+    final Supplier<Map<Resource, TakenLock>> takenLocksSupplier = createTakenLocksSupplier(accessor, canBeStarted);
+    final CachingProjectResourcesMap resourcesMap = new CachingProjectResourcesMap(myResources);
+    cleanupReservedValues(accessor, canBeStarted);
+
+    WaitReason reason = null;
+    LOG.debug("Queued build does have " + depPromos.size() + " dependent composite " + StringUtil.pluralize("promotion", depPromos.size()));
+    // contains resources and locks that are INSIDE the build chain
+    final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks = new HashMap<>(); // resource -> {promotion -> lock}
+    // first - get top of the chain. Builds that are already running.
+    // they have locks already taken
+    final long resolutionStarted = myTimings.start();
+    depPromos.forEach(promo -> getCompositeLocks(accessor, resourcesMap, promo).forEach(
+      (resource, lock) -> chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, lock))
+    );
+    myTimings.stop(PhaseTimings.Phase.CHAIN_RESOLUTION, resolutionStarted);
+
+    // rest are queued builds.
+    // make sure queued builds can start.
+    // builds inside composite build chain are not affected by the locks taken in the same chain
+    final List<SQueuedBuild> queued = depPromos.stream()
+                                               .map(BuildPromotion::getQueuedBuild)
+                                               .filter(Objects::nonNull)
+                                               .collect(Collectors.toList());
+    for (SQueuedBuild compositeQueuedBuild : queued) {
+      final BuildPromotion compositeBp = compositeQueuedBuild.getBuildPromotion();
+      SBuildType compositeBuildType = compositeBp.getBuildType();
+      if (compositeBuildType == null) continue;
+
+      final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(compositeBp);
+      if (!features.isEmpty()) {
+        final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+        if (!locksToTake.isEmpty()) {
+          // resolve locks that build wants to take against actual resources
+          reason = processBuildInChain(accessor, takenLocksSupplier,
+                                       resourcesMap.getResourcesMap(compositeBuildType.getProject()),
+                                       chainLocks, locksToTake, compositeBp, isEmulationMode);
+          if (reason != null) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Preventing start of the queued build [" + compositeQueuedBuild + "] with reason: [" + reason.getDescription() + "]");
             }
+            break;
           }
         }
+      }
+    }
 
-        // process build itself
-        if (reason == null) {
-          final BuildTypeEx promoBuildType = myPromotion.getBuildType();
-          if (promoBuildType != null) {
-            final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(myPromotion);
+    // process build itself
+    if (reason == null) {
+      final BuildTypeEx promoBuildType = myPromotion.getBuildType();
+      if (promoBuildType != null) {
+        final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(myPromotion);
 
-            if (!features.isEmpty()) {
-              reason = checkForInvalidLocks(myPromotion);
-            }
-            final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
-            if (!locksToTake.isEmpty()) {
-              reason = processBuildInChain(accessor, takenLocksSupplier, resourcesMap.getResourcesMap(promoBuildType.getProject()), chainLocks, locksToTake, myPromotion, isEmulationMode);
-            }
-          }
+        if (!features.isEmpty()) {
+          reason = checkForInvalidLocks(myPromotion);
+        }
+        final Map<String, Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features);
+        if (!locksToTake.isEmpty()) {
+          reason = processBuildInChain(accessor, takenLocksSupplier, resourcesMap.getResourcesMap(promoBuildType.getProject()), chainLocks, locksToTake, myPromotion,
+                                       isEmulationMode);
         }
       }
-    } else {
-      reason = processSingleBuild(myPromotion, accessor, takenLocksSupplier, myPromotion, isEmulationMode);
     }
-
     return reason;
   }
 
@@ -213,9 +276,14 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
     final String projectId = buildPromotion.getProjectId();
     WaitReason reason = null;
     if (projectId != null) {
-      final Map<Resource, String> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocksSupplier.get(), accessor, chainNodeResources, chainLocks, buildPromotion);
+      final Map<Resource, TakenLock> takenLocks = takenLocksSupplier.get();
+      final long started = myTimings.start();
+      final Map<Resource, String> unavailableLocks = checkWaitingBuilds(buildPromotion, locksToTake.values(), chainNodeResources, takenLocks, accessor,
+                                                                      myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, accessor, chainNodeResources, chainLocks, buildPromotion),
+                                                                      emulationMode);
+      myTimings.stop(PhaseTimings.Phase.CHECK_RESOURCES, started);
       if (!unavailableLocks.isEmpty()) {
-        reason = createWaitReason(unavailableLocks);
+        reason = createWaitReason(buildPromotion, locksToTake.values(), chainNodeResources, unavailableLocks, accessor, emulationMode);
       } else {
         storeResourcesAffinity((BuildPromotionEx)buildPromotion, projectId, takenLocksSupplier.get(), locksToTake.values(), accessor, emulationMode); // assign ANY locks here
         // if we are here, then the build will pass on to be started
@@ -224,33 +292,33 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
     return reason;
   }
 
+  @Nullable
   private WaitReason processSingleBuild(@NotNull final BuildPromotionEx buildPromotion,
+                                        @NotNull final String projectId,
+                                        @NotNull final Collection<SharedResourcesFeature> features,
                                         @NotNull final DistributionDataAccessor accessor,
                                         @NotNull final Supplier<Map<Resource, TakenLock>> takenLocksSupplier,
-                                        @NotNull final BuildPromotion promotion,
                                         final boolean emulationMode) {
-    final String projectId = buildPromotion.getProjectId();
-    final SBuildType buildType = buildPromotion.getBuildType();
-    WaitReason reason = null;
-    if (buildType != null && projectId != null) {
-      final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(buildPromotion);
-      if (!features.isEmpty()) {
-        reason = checkForInvalidLocks(buildPromotion);
-        if (reason == null) {
-          // Collection<Lock> ---> Collection<ResolvedLock> (i.e. lock against resolved resource. With project and so on)
-          final Collection<Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features).values();
-          if (!locksToTake.isEmpty()) {
-            // Collection<Lock> --> Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
-            final Map<Resource, String> unavailableLocks = myTakenLocks.getUnavailableLocks(locksToTake, takenLocksSupplier.get(), projectId, accessor, promotion);
-            if (!unavailableLocks.isEmpty()) {
-              reason = createWaitReason(unavailableLocks);
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Preventing start of the queued build [" + buildPromotion.getQueuedBuild() + "] with reason: [" + reason.getDescription() + "]");
-              }
-            } else {
-              storeResourcesAffinity(buildPromotion, projectId, takenLocksSupplier.get(), locksToTake, accessor, emulationMode); // assign ANY locks here
-            }
+    WaitReason reason = checkForInvalidLocks(buildPromotion);
+    if (reason == null) {
+      // Collection<Lock> ---> Collection<ResolvedLock> (i.e. lock against resolved resource. With project and so on)
+      final Collection<Lock> locksToTake = myLocks.fromBuildFeaturesAsMap(features).values();
+      if (!locksToTake.isEmpty()) {
+        // Collection<Lock> --> Collection<ResolvedLock>. For quoted - number of insufficient quotes, for custom -> custom values
+        final Map<Resource, TakenLock> takenLocks = takenLocksSupplier.get();
+        final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
+        final long started = myTimings.start();
+        final Map<Resource, String> unavailableLocks = checkWaitingBuilds(buildPromotion, locksToTake, resources, takenLocks, accessor,
+                                                                        myTakenLocks.getUnavailableLocks(locksToTake, takenLocks, projectId, accessor, buildPromotion),
+                                                                        emulationMode);
+        myTimings.stop(PhaseTimings.Phase.CHECK_RESOURCES, started);
+        if (!unavailableLocks.isEmpty()) {
+          reason = createWaitReason(buildPromotion, locksToTake, resources, unavailableLocks, accessor, emulationMode);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("Preventing start of the queued build [" + buildPromotion.getQueuedBuild() + "] with reason: [" + reason.getDescription() + "]");
           }
+        } else {
+          storeResourcesAffinity(buildPromotion, projectId, takenLocksSupplier.get(), locksToTake, accessor, emulationMode); // assign ANY locks here
         }
       }
     }
@@ -267,93 +335,197 @@ public class SharedResourcesStartBuildPrecondition implements StartBuildPrecondi
 
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
     final Map<String, String> affinityMap = new HashMap<>();
+    final Map<String, int[]> reservedValues = new HashMap<>();
     for (Lock lock: locksToTake) {
       if (lock.getType() != LockType.READ) continue;
 
       Resource r = resources.get(lock.getName());
       if (r instanceof CustomResource) {
+        final CustomResource resource = (CustomResource)r;
         if (lock.isAnyValueLock()) {
-          // if lock is ANY lock -> choose next available value
-          final String nextVal = getNextAvailableValue((CustomResource)r, takenLocks, accessor);
-          if (nextVal == null) {
+          // if lock is ANY lock -> choose next available values, as many as the lock weight
+          final int[] nextValues = getNextAvailableValues(resource, takenLocks, accessor, lock.getWeight());
+          if (nextValues == null) {
             LOG.warn("Could not find a free shared resource value for promotion: " + promotion + ", resource: " + r);
           } else {
-            affinityMap.put(r.getId(), nextVal);
+            final List<String> values = new ArrayList<>(nextValues.length);
+            for (int valueIndex : nextValues) {
+              values.add(resource.getValue(valueIndex));
+            }
+            affinityMap.put(r.getId(), CustomResource.joinValues(values));
+            reservedValues.put(r.getId(), nextValues);
           }
         } else {
           // if lock is SPECIFIC lock - choose lock value
           affinityMap.put(r.getId(), lock.getValue());
+          reservedValues.put(r.getId(), resource.resolveValueIndices(lock.getValue()));
         }
       }
     }
 
     if (!affinityMap.isEmpty()) {
       // store assigned values in affinity set to be used by other builds inside current distribution cycle
-      accessor.getReservedValuesProvider().rememberReservedValues(promotion, affinityMap);
+      accessor.getReservedValuesProvider().rememberReservedValues(promotion, reservedValues);
 
       // store assigned value from resource affinity inside build promotion
       affinityMap.forEach((resourceId, value) -> promotion.setAttribute(getReservedResourceAttributeKey(resourceId), value));
     }
   }
 
+  /**
+   * Chooses free values of the resource. Either all requested values are chosen or none
+   *
+   * @return indices of the chosen values or {@code null} if there are not enough free values
+   */
   @Nullable
-  private String getNextAvailableValue(@NotNull final CustomResource resource,
+  private int[] getNextAvailableValues(@NotNull final CustomResource resource,
                                        @NotNull final Map<Resource, TakenLock> takenLocks,
-                                       @NotNull final DistributionDataAccessor accessor) {
-    final List<String> allValues = new ArrayList<>(resource.getValues());
-    // remove all values reserved by other builds in current distribution cycle
-    Map<Long, String> reservedOnDistributionCycle = accessor.getReservedValuesProvider().getReservedValues(resource);
-    List<String> reservedValues = new ArrayList<>(reservedOnDistributionCycle.values());
-    // remove values from taken locks
-    final TakenLock takenLock = takenLocks.get(resource);
-    if (takenLock != null) {
-      takenLock.getReadLocks().forEach((bp, val) -> {
-        if (reservedOnDistributionCycle.containsKey(bp.getId())) return; // already added
-        reservedValues.add(val);
-      });
-    }
+                                       @NotNull final DistributionDataAccessor accessor,
+                                       final int count) {
+    // values reserved by other builds in current distribution cycle and values from taken locks are occupied
+    final TLongObjectHashMap<int[]> reservedOnDistributionCycle = accessor.getReservedValuesProvider().getReservedValues(resource);
+    return CustomValueSlots.occupiedBy(resource, takenLocks.get(resource), reservedOnDistributionCycle).getNextFreeValueIndices(count);
+  }
 
-    for (String reserved: reservedValues) {
-      Iterator<String> availableIt = allValues.iterator();
-      while (availableIt.hasNext()) {
-        String value = availableIt.next();
-        if (reserved.equals(value)) {
-          availableIt.remove();
-          // we should only remove one value, not all of them
-          // because some resources have duplicate values configured
-          break;
-        }
-      }
-    }
 
-    return allValues.isEmpty() ? null : allValues.iterator().next();
+  /**
+   * Gets locks of the running composite build resolved against the resources.
+   * Locks of every composite build are loaded and resolved once per distribution cycle after they are stored,
+   * a composite build that has not stored its locks yet is checked again on the next call
+   *
+   * @param promo composite build promotion
+   * @return locks of the composite build in format {@code resource -> lock}, empty if the build is not running or has no locks
+   */
+  @NotNull
+  @VisibleForTesting
+  Map<Resource, Lock> getCompositeLocks(@NotNull final DistributionDataAccessor accessor,
+                                        @NotNull final CachingProjectResourcesMap resourcesMap,
+                                        @NotNull final BuildPromotionEx promo) {
+    final TLongObjectHashMap<Map<Resource, Lock>> resolvedChainLocks = accessor.getResolvedChainLocks();
+    Map<Resource, Lock> result = resolvedChainLocks.get(promo.getId());
+    if (result != null) {
+      return result;
+    }
+    final BuildTypeEx buildType = promo.getBuildType();
+    if (buildType == null || !myLocksStorage.locksStored(promo)) {
+      // locks of the build can be stored later in the same distribution cycle
+      return Collections.emptyMap();
+    }
+    LOG.debug("build promotion" + promo.getId() + " is running. Loading locks");
+    final Map<String, Lock> currentNodeLocks = myLocksStorage.load(promo);
+    // if there are locks - resolve locks against resources according to project hierarchy of composite build
+    result = currentNodeLocks.isEmpty() ? Collections.emptyMap() : resolve(resourcesMap.getResourcesMap(buildType.getProject()), currentNodeLocks);
+    resolvedChainLocks.put(promo.getId(), result);
+    return result;
   }
 
   /**
    * Resolves lock names into resources for given node of the build chain
    *
-   * @param chainLocks    locks already obtained by the build chain
    * @param nodeResources actual resources for the project of current node
-   * @param promo         build promotion of the current node
    * @param nodeLocks     locks requested by the current node in the build chain
+   * @return locks of the node in format {@code resource -> lock}
    */
-  private void resolve(@NotNull final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks,
-                       @NotNull final Map<String, Resource> nodeResources,
-                       @NotNull final BuildPromotionEx promo,
-                       @NotNull final Map<String, Lock> nodeLocks) {
+  @NotNull
+  private Map<Resource, Lock> resolve(@NotNull final Map<String, Resource> nodeResources,
+                                      @NotNull final Map<String, Lock> nodeLocks) {
+    final Map<Resource, Lock> result = new HashMap<>();
     nodeLocks.forEach((name, lock) -> {
       Resource resource = nodeResources.get(name);
       if (resource == null) {
         // todo: handle. this should not happen as configuration inspector should prevent this
         throw new RuntimeException("Invalid configuration!");
       }
-      // here list instead of set as we need to know how much quota we should ignore
-      chainLocks.computeIfAbsent(resource, k -> new HashMap<>()).put(promo, lock);
+      result.put(resource, lock);
     });
+    return result;
+  }
+
+
+  /**
+   * Holds back the resources reserved for other builds waiting for write lock
+   * and the last free quota unit or value of the resource for the build that waits for the resource longer than the aging threshold.
+   * Aging is applied to read locks only, builds waiting for write locks are served in order through the fair set and the reservations
+   *
+   * @param unavailableLocks locks of the build that are already known to be unavailable
+   * @param emulationMode    whether the distribution is emulated. Reservations are not changed in emulation mode
+   * @return unavailable locks including the ones held back for the waiting builds
+   */
+  @NotNull
+  private Map<Resource, String> checkWaitingBuilds(@NotNull final BuildPromotion promotion,
+                                                 @NotNull final Collection<Lock> locksToTake,
+                                                 @NotNull final Map<String, Resource> resources,
+                                                 @NotNull final Map<Resource, TakenLock> takenLocks,
+                                                 @NotNull final DistributionDataAccessor accessor,
+                                                 @NotNull final Map<Resource, String> unavailableLocks,
+                                                 final boolean emulationMode) {
+    // builds scheduled to start in the current distribution cycle already have their locks taken.
+    // Taken locks are obtained before the check, so the snapshot knows all the builds scheduled to start
+    final LongPredicate scheduledToStart = accessor.getTakenLocksSnapshot()::isScheduledToStart;
+    Map<Resource, String> result = unavailableLocks;
+    for (Lock lock : locksToTake) {
+      final Resource resource = resources.get(lock.getName());
+      if (resource == null || result.containsKey(resource)) continue;
+      String reason = null;
+      final Long reservedFor = emulationMode ? myWaitQueue.getReservation(resource, scheduledToStart) : myWaitQueue.reserve(resource, scheduledToStart);
+      if (reservedFor != null && reservedFor != promotion.getId()) {
+        reason = "(reserved for a build waiting for write lock)";
+      } else if (lock.getType() == LockType.READ && leavesNoRoom(resource, takenLocks.get(resource), lock)) {
+        final Long waitTime = myWaitQueue.findAgedPredecessor(resource, promotion.getId(), scheduledToStart);
+        if (waitTime != null) {
+          reason = "(reserved for a build waiting for " + TimeUnit.MILLISECONDS.toMinutes(waitTime) + " min)";
+        }
+      }
+      if (reason != null) {
+        if (result == unavailableLocks) {
+          result = new HashMap<>(unavailableLocks);
+        }
+        result.put(resource, reason);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether no quota or values of the resource would be left after the lock is taken
+   */
+  private boolean leavesNoRoom(@NotNull final Resource resource, @Nullable final TakenLock takenLock, @NotNull final Lock lock) {
+    final int takenUnits = takenLock == null ? 0 : takenLock.getTakenUnits();
+    if (resource instanceof QuotedResource) {
+      final QuotedResource quoted = (QuotedResource)resource;
+      return !quoted.isInfinite() && takenUnits + lock.getWeight() >= quoted.getQuota();
+    }
+    if (resource instanceof CustomResource && lock.isAnyValueLock()) {
+      return takenUnits + lock.getWeight() >= ((CustomResource)resource).getValues().size();
+    }
+    return false;
   }
 
   @NotNull
-  private WaitReason createWaitReason(@NotNull final Map<Resource, String> unavailableLocks) {
+  private WaitReason createWaitReason(@NotNull final BuildPromotion promotion,
+                                      @NotNull final Collection<Lock> locksToTake,
+                                      @NotNull final Map<String, Resource> resources,
+                                      @NotNull final Map<Resource, String> unavailableLocks,
+                                      @NotNull final DistributionDataAccessor accessor,
+                                      final boolean emulationMode) {
+    if (!emulationMode) {
+      myMetrics.onBlocked(promotion, unavailableLocks.keySet(), accessor.getFairSet());
+      // the build keeps its place in the queues of the resources it waits for and leaves the queues of the available ones
+      final Map<Resource, Lock> blockedBy = new HashMap<>();
+      final List<Resource> passed = new ArrayList<>();
+      locksToTake.forEach(lock -> {
+        final Resource resource = resources.get(lock.getName());
+        if (resource != null) {
+          if (unavailableLocks.containsKey(resource)) {
+            blockedBy.put(resource, lock);
+          } else {
+            passed.add(resource);
+          }
+        }
+      });
+      myWaitQueue.onBlocked(promotion, blockedBy);
+      myWaitQueue.onPassed(promotion, passed);
+    }
     final String description = unavailableLocks.entrySet().stream().map(e -> e.getKey().getName() + " " + e.getValue()).collect(Collectors.joining(", "));
     final String reasonDescription = "Build is waiting for the following "
                                      + StringUtil.pluralize("resource", unavailableLocks.size())
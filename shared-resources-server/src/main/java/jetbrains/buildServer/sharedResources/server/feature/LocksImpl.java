@@ -2,8 +2,12 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.util.*;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.util.StringUtil;
@@ -19,6 +23,20 @@ import static jetbrains.buildServer.sharedResources.server.feature.FeatureParams
  */
 public final class LocksImpl implements Locks {
 
+  /**
+   * Separates weight of the lock from its type in the lock definition
+   */
+  private static final char WEIGHT_SEPARATOR = ':';
+
+  /**
+   * Parsed locks, keyed by the locks feature parameter.
+   * Identical lock definitions are parsed once and the resulting immutable map is shared
+   */
+  @NotNull
+  private final Cache<String, Map<String, Lock>> myParsedLocks = CacheBuilder.newBuilder()
+                                                                         .maximumSize(TeamCityProperties.getInteger(SharedResourcesPluginConstants.PARSED_LOCKS_CACHE_SIZE, 10000))
+                                                                         .build();
+
   @NotNull
   @Override
   public Map<String, Lock> fromFeatureParameters(@NotNull final SBuildFeatureDescriptor descriptor) {
@@ -67,7 +85,11 @@ public final class LocksImpl implements Locks {
       final StringBuilder builder = new StringBuilder();
       for (Lock lock: locks) {
         builder.append(lock.getName()).append(" ");
-        builder.append(lock.getType()).append(" ");
+        builder.append(lock.getType());
+        if (lock.isWeighted()) {
+          builder.append(WEIGHT_SEPARATOR).append(lock.getWeight());
+        }
+        builder.append(" ");
         builder.append(lock.getValue()).append("\n");
       }
       result = builder.substring(0, builder.length() - 1);
@@ -100,19 +122,33 @@ public final class LocksImpl implements Locks {
   @NotNull
   private Map<String, Lock> fromFeatureParametersInternal(@NotNull final Map<String, String> featureParameters) {
     final String locksString = featureParameters.get(LOCKS_FEATURE_PARAM_KEY);
+    if (locksString == null || "".equals(locksString)) {
+      return Collections.emptyMap();
+    }
+    Map<String, Lock> result = myParsedLocks.getIfPresent(locksString);
+    if (result == null) {
+      result = Collections.unmodifiableMap(parseLocks(locksString));
+      myParsedLocks.put(locksString, result);
+    }
+    return result;
+  }
+
+  @NotNull
+  private Map<String, Lock> parseLocks(@NotNull final String locksString) {
     final Map<String, Lock> result = new LinkedHashMap<>();
-    if (locksString != null && !"".equals(locksString)) {
-      final List<String> serializedLocks = StringUtil.split(locksString, true, '\n');
-      for (String str: serializedLocks) {
-        final Lock lock = getSingleLockFromString(str);
-        if (lock != null) {
-          result.put(lock.getName(), lock);
-        }
+    final List<String> serializedLocks = StringUtil.split(locksString, true, '\n');
+    for (String str: serializedLocks) {
+      final Lock lock = getSingleLockFromString(str);
+      if (lock != null) {
+        result.put(lock.getName(), lock);
       }
     }
     return result;
   }
 
+  /**
+   * Parses single lock definition: {@code <name> <type>[:<weight>] [<value>]}
+   */
   @Nullable
   private Lock getSingleLockFromString(@NotNull final String str) {
     // get location of Type
@@ -129,15 +165,32 @@ public final class LocksImpl implements Locks {
     if (type != null) {
       final String name = str.substring(0, t).trim();
       int m = str.indexOf(' ', t + 1);
+      final int weight = parseWeight(str, t + type.getName().length(), m > 0 ? m : str.length());
       // lock is valid
       if (m > 0) {
         // values
-        result = new Lock(name, type, str.substring(m + 1).trim());
+        result = new Lock(name, type, str.substring(m + 1).trim(), weight);
       } else {
         // no values
-        result = new Lock(name, type);
+        result = new Lock(name, type, "", weight);
       }
     }
     return result;
   }
+
+  /**
+   * @return weight declared after the type, {@link Lock#DEFAULT_WEIGHT} if there is none
+   * or {@link Lock#INVALID_WEIGHT} if it is not a positive integer
+   */
+  private static int parseWeight(@NotNull final String str, final int from, final int to) {
+    if (from >= to || str.charAt(from) != WEIGHT_SEPARATOR) {
+      return Lock.DEFAULT_WEIGHT;
+    }
+    try {
+      final int result = Integer.parseInt(str.substring(from + 1, to).trim());
+      return result > 0 ? result : Lock.INVALID_WEIGHT;
+    } catch (NumberFormatException e) {
+      return Lock.INVALID_WEIGHT;
+    }
+  }
 }
\ No newline at end of file
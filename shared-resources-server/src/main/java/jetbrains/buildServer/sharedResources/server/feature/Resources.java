@@ -16,6 +16,11 @@ import org.jetbrains.annotations.NotNull;
  */
 public interface Resources {
 
+  /**
+   * Version returned by {@link #getVersion()} when changes of the resources are not tracked
+   */
+  long UNTRACKED_VERSION = -1;
+
   /**
    * Gets all resources for project with given {@code projectId} and all its ancestors
    *
@@ -76,4 +81,11 @@ public interface Resources {
    * @return number of visible resources
    */
   int getCount(@NotNull final SProject project);
-}
\ No newline at end of file
+
+  /**
+   * Gets version of the resources. Version changes on every change of the resource definitions or of the project hierarchy
+   *
+   * @return version of the resources or {@link #UNTRACKED_VERSION} if the changes are not tracked
+   */
+  long getVersion();
+}
@@ -3,14 +3,21 @@
 package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import jetbrains.buildServer.serverSide.ProjectManager;
-import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.FEATURE_TYPE;
 
 /**
  * Created with IntelliJ IDEA.
@@ -25,11 +32,88 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   private final ProjectManager myProjectManager;
 
+  /**
+   * Resolved resources of the projects, {@code null} if caching is disabled
+   */
+  @Nullable
+  private final ConcurrentMap<String, ResolvedResources> myResolvedCache;
+
+  /**
+   * Own resources of the projects, {@code null} if caching is disabled
+   */
+  @Nullable
+  private final ConcurrentMap<String, VersionedValue<List<Resource>>> myOwnCache;
+
+  /**
+   * Version of project resources. Is incremented on every change of resource project features or project hierarchy
+   */
+  private final AtomicLong myVersion = new AtomicLong();
 
   public ResourcesImpl(@NotNull final ProjectManager projectManager,
                        @NotNull final ResourceProjectFeatures resourceProjectFeatures) {
     myProjectManager = projectManager;
     myFeatures = resourceProjectFeatures;
+    myResolvedCache = null;
+    myOwnCache = null;
+  }
+
+  public ResourcesImpl(@NotNull final ProjectManager projectManager,
+                       @NotNull final ResourceProjectFeatures resourceProjectFeatures,
+                       @NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    myProjectManager = projectManager;
+    myFeatures = resourceProjectFeatures;
+    myResolvedCache = new ConcurrentHashMap<>();
+    myOwnCache = new ConcurrentHashMap<>();
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void projectFeatureAdded(@NotNull final SProject project, @NotNull final SProjectFeatureDescriptor projectFeature) {
+        if (FEATURE_TYPE.equals(projectFeature.getType())) {
+          invalidate();
+        }
+      }
+
+      @Override
+      public void projectFeatureRemoved(@NotNull final SProject project, @NotNull final SProjectFeatureDescriptor projectFeature) {
+        if (FEATURE_TYPE.equals(projectFeature.getType())) {
+          invalidate();
+        }
+      }
+
+      @Override
+      public void projectFeatureChanged(@NotNull final SProject project,
+                                        @NotNull final SProjectFeatureDescriptor before,
+                                        @NotNull final SProjectFeatureDescriptor after) {
+        if (FEATURE_TYPE.equals(before.getType()) || FEATURE_TYPE.equals(after.getType())) {
+          invalidate();
+        }
+      }
+
+      @Override
+      public void projectCreated(@NotNull final String projectId, @Nullable final SUser user) {
+        invalidate();
+      }
+
+      @Override
+      public void projectRemoved(@NotNull final SProject project) {
+        invalidate();
+      }
+
+      @Override
+      public void projectMoved(@NotNull final SProject project, @NotNull final SProject originalParentProject) {
+        invalidate();
+      }
+
+      @Override
+      public void projectRestored(@NotNull final String projectId) {
+        invalidate();
+      }
+
+      @Override
+      public void projectPersisted(@NotNull final String projectId) {
+        // settings may have been reloaded from disk
+        invalidate();
+      }
+    });
   }
 
   @NotNull
@@ -37,8 +121,7 @@ public final class ResourcesImpl implements Resources {
   public Map<String, Resource> getResourcesMap(@NotNull final String projectId) {
     final SProject project = myProjectManager.findProjectById(projectId);
     if (project != null) {
-      return getResources(project).stream()
-                                  .collect(Collectors.toMap(Resource::getName, Function.identity()));
+      return getResolvedResources(project).myResourcesMap;
     } else {
       return Collections.emptyMap();
     }
@@ -57,6 +140,21 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getOwnResources(@NotNull final SProject project) {
+    if (myOwnCache == null) {
+      return computeOwnResources(project);
+    }
+    final long version = myVersion.get();
+    final VersionedValue<List<Resource>> cached = myOwnCache.get(project.getProjectId());
+    if (cached != null && cached.myVersion == version) {
+      return cached.myValue;
+    }
+    final List<Resource> result = Collections.unmodifiableList(computeOwnResources(project));
+    cache(myOwnCache, project.getProjectId(), new VersionedValue<>(version, result));
+    return result;
+  }
+
+  @NotNull
+  private List<Resource> computeOwnResources(@NotNull final SProject project) {
     return myFeatures.getOwnFeatures(project).stream()
                      .map(ResourceProjectFeature::getResource)
                      .filter(Objects::nonNull)
@@ -80,6 +178,48 @@ public final class ResourcesImpl implements Resources {
   @NotNull
   @Override
   public List<Resource> getResources(@NotNull final SProject project) {
+    return getResolvedResources(project).myValue;
+  }
+
+  @NotNull
+  private ResolvedResources getResolvedResources(@NotNull final SProject project) {
+    if (myResolvedCache == null) {
+      return new ResolvedResources(myVersion.get(), computeResources(project));
+    }
+    final long version = myVersion.get();
+    final ResolvedResources cached = myResolvedCache.get(project.getProjectId());
+    if (cached != null && cached.myVersion == version) {
+      return cached;
+    }
+    final ResolvedResources result = new ResolvedResources(version, Collections.unmodifiableList(computeResources(project)));
+    cache(myResolvedCache, project.getProjectId(), result);
+    return result;
+  }
+
+  /**
+   * Stores computed value in cache unless the resources were changed during the computation
+   */
+  private <T extends VersionedValue<?>> void cache(@NotNull final ConcurrentMap<String, T> cache,
+                                                  @NotNull final String projectId,
+                                                  @NotNull final T value) {
+    cache.put(projectId, value);
+    if (myVersion.get() != value.myVersion) {
+      cache.remove(projectId, value);
+    }
+  }
+
+  private void invalidate() {
+    myVersion.incrementAndGet();
+    if (myResolvedCache != null) {
+      myResolvedCache.clear();
+    }
+    if (myOwnCache != null) {
+      myOwnCache.clear();
+    }
+  }
+
+  @NotNull
+  private List<Resource> computeResources(@NotNull final SProject project) {
     final Set<String> names = new HashSet<>();
     final Set<Resource> result = new HashSet<>();
     final List<SProject> path = project.getProjectPath();
@@ -98,4 +238,30 @@ public final class ResourcesImpl implements Resources {
   public int getCount(@NotNull final SProject project) {
     return getResources(project).size();
   }
-}
\ No newline at end of file
+
+  @Override
+  public long getVersion() {
+    return myOwnCache == null ? UNTRACKED_VERSION : myVersion.get();
+  }
+
+  private static class VersionedValue<T> {
+    final long myVersion;
+    @NotNull
+    final T myValue;
+
+    VersionedValue(final long version, @NotNull final T value) {
+      myVersion = version;
+      myValue = value;
+    }
+  }
+
+  private static final class ResolvedResources extends VersionedValue<List<Resource>> {
+    @NotNull
+    final Map<String, Resource> myResourcesMap;
+
+    ResolvedResources(final long version, @NotNull final List<Resource> resources) {
+      super(version, resources);
+      myResourcesMap = Collections.unmodifiableMap(resources.stream().collect(Collectors.toMap(Resource::getName, Function.identity())));
+    }
+  }
+}
@@ -4,6 +4,7 @@ package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildTypeSettings;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
@@ -26,8 +27,11 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
   @NotNull
   private final SBuildFeatureDescriptor myDescriptor;
 
+  /**
+   * Parsed locks. The map may be shared between features with identical lock definitions, so it is never modified in place
+   */
   @NotNull
-  private final Map<String, Lock> myLockedResources;
+  private Map<String, Lock> myLockedResources;
 
 
   SharedResourcesFeatureImpl(@NotNull final Locks locks,
@@ -48,16 +52,18 @@ public final class SharedResourcesFeatureImpl implements SharedResourcesFeature
                             @NotNull final String oldName,
                             @NotNull final String newName) {
     boolean result = false;
-    final Lock lock = myLockedResources.remove(oldName);
+    final Map<String, Lock> lockedResources = new LinkedHashMap<>(myLockedResources);
+    final Lock lock = lockedResources.remove(oldName);
     if (lock != null) {
       // save its type
       result = true;
       final LockType lockType = lock.getType();
       final String lockValue = lock.getValue();
-      // add lock with new resource name and saved type
-      myLockedResources.put(newName, new Lock(newName, lockType, lockValue));
+      // add lock with new resource name and saved type and weight
+      lockedResources.put(newName, new Lock(newName, lockType, lockValue, lock.getWeight()));
+      myLockedResources = lockedResources;
       // serialize locks
-      final String locksAsString = myLocks.asFeatureParameter(myLockedResources.values());
+      final String locksAsString = myLocks.asFeatureParameter(lockedResources.values());
       // update build feature parameters
       final Map<String, String> newParams = new HashMap<>(myDescriptor.getParameters());
       newParams.put(LOCKS_FEATURE_PARAM_KEY, locksAsString);
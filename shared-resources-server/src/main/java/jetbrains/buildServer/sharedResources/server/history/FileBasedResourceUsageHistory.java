@@ -0,0 +1,569 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.history;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import gnu.trove.TLongHashSet;
+import gnu.trove.TLongLongHashMap;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.server.BackgroundWriter;
+import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Usage history kept in the plugin data directory.
+ *
+ * History is an append-only log partitioned by days (UTC), one file per day.
+ * Each file starts with a header followed by binary records:
+ * <ul>
+ *   <li>acquisition: time, promotion id, queued time and the list of (resource id, lock type, value)</li>
+ *   <li>release: time, promotion id</li>
+ * </ul>
+ * The index by resource id is not persisted: it is built in memory by reading the whole file of a day.
+ * Index of the current day is kept up to date, indexes of up to {@link #CACHED_PARTITIONS} previous days are cached.
+ * So the first query after the server restart reads every day file in its window (plus the lookback days) completely,
+ * the cost grows with the number of records per day rather than with the number of usages of the resource.
+ *
+ * Index is updated by the calling thread, records are appended to the files in background by a single daemon thread,
+ * so that starting builds do not wait for the disk. The queue of the records is bounded: if it is full,
+ * the record is written by the calling thread. Queued records are written when the history is closed.
+ */
+public class FileBasedResourceUsageHistory implements ResourceUsageHistory {
+
+  private static final Logger LOG = Logger.getInstance(FileBasedResourceUsageHistory.class.getName());
+
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private static final String FILE_EXTENSION = ".usage";
+
+  private static final int MAGIC = 0x53525548;
+
+  private static final byte FORMAT_VERSION = 2;
+
+  private static final byte ACQUIRED = 1;
+
+  private static final byte RELEASED = 2;
+
+  private static final int DEFAULT_RETENTION_DAYS = 90;
+
+  private static final int DEFAULT_LOOKBACK_DAYS = 2;
+
+  private static final int CACHED_PARTITIONS = 32;
+
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  /**
+   * Writes binary contents of the record
+   */
+  private interface RecordContent {
+    void writeTo(@NotNull DataOutputStream output) throws IOException;
+  }
+
+  @NotNull
+  private final File myDirectory;
+
+  private final Object myLock = new Object();
+
+  /**
+   * Ids of the promotions holding the locks that were not released yet
+   */
+  private final TLongHashSet myHolders = new TLongHashSet();
+
+  /**
+   * Partition the records are appended to
+   */
+  @Nullable
+  private Partition myCurrent = null;
+
+  @NotNull
+  private final BackgroundWriter<Record> myWriter;
+
+  /**
+   * Guards the output. If both locks are needed, myLock is taken first
+   */
+  private final Object myOutputLock = new Object();
+
+  /**
+   * Day of the partition file the records are appended to
+   */
+  private long myOutputDay = Long.MIN_VALUE;
+
+  @Nullable
+  private DataOutputStream myCurrentOutput = null;
+
+  /**
+   * Indexes of the previous days
+   */
+  @NotNull
+  private final Cache<Long, Partition> myPartitions = CacheBuilder.newBuilder().maximumSize(CACHED_PARTITIONS).build();
+
+  public FileBasedResourceUsageHistory(@NotNull final ServerPaths serverPaths,
+                                       @NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                       @NotNull final LocksStorage locksStorage) {
+    this(new File(serverPaths.getPluginDataDirectory(), "sharedResources/usageHistory"));
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        // builds that were started before the restart release their locks when they finish
+        final Set<BuildPromotion> holders = locksStorage.getAllTakenLocks().keySet();
+        synchronized (myLock) {
+          holders.forEach(promotion -> myHolders.add(promotion.getId()));
+        }
+      }
+
+      @Override
+      public void buildFinished(@NotNull SRunningBuild build) {
+        recordReleased(build.getBuildPromotion().getId(), System.currentTimeMillis());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull SRunningBuild build) {
+        recordReleased(build.getBuildPromotion().getId(), System.currentTimeMillis());
+      }
+
+      @Override
+      public void serverShutdown() {
+        close();
+      }
+    });
+  }
+
+  FileBasedResourceUsageHistory(@NotNull final File directory) {
+    myDirectory = directory;
+    myWriter = new BackgroundWriter<>("Shared Resources usage history writer",
+                                      TeamCityProperties.getInteger(SharedResourcesPluginConstants.USAGE_HISTORY_QUEUE_SIZE, DEFAULT_QUEUE_SIZE),
+                                      this::write);
+  }
+
+  @Override
+  public void recordAcquired(@NotNull final BuildPromotion promotion,
+                             @NotNull final Map<String, Resource> resources,
+                             @NotNull final Map<Lock, String> takenLocks) {
+    if (takenLocks.isEmpty() || !TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.USAGE_HISTORY_ENABLED)) {
+      return;
+    }
+    final SBuild build = promotion.getAssociatedBuild();
+    final long queuedTime = build == null ? ResourceUsage.UNKNOWN : build.getQueuedDate().getTime();
+    final long now = System.currentTimeMillis();
+    final List<ResourceUsage> usages = new ArrayList<>(takenLocks.size());
+    takenLocks.forEach((lock, value) -> {
+      final Resource resource = resources.get(lock.getName());
+      if (resource != null) {
+        usages.add(new ResourceUsage(resource.getId(), promotion.getId(), lock.getType(), value, queuedTime, now, ResourceUsage.UNKNOWN));
+      }
+    });
+    recordAcquired(promotion.getId(), usages, now);
+  }
+
+  void recordAcquired(final long promotionId, @NotNull final List<ResourceUsage> usages, final long time) {
+    if (usages.isEmpty()) return;
+    synchronized (myLock) {
+      final Partition partition = getWritablePartition(time);
+      usages.forEach(partition::addAcquired);
+      myHolders.add(promotionId);
+      enqueue(new Record(partition, output -> {
+        output.writeByte(ACQUIRED);
+        output.writeLong(time);
+        output.writeLong(promotionId);
+        output.writeLong(usages.get(0).getQueuedTime());
+        output.writeShort(usages.size());
+        for (ResourceUsage usage : usages) {
+          writeString(output, usage.getResourceId());
+          output.writeByte(usage.getLockType().ordinal());
+          writeString(output, usage.getValue());
+        }
+      }));
+    }
+  }
+
+  void recordReleased(final long promotionId, final long time) {
+    synchronized (myLock) {
+      if (!myHolders.remove(promotionId)) return;
+      final Partition partition = getWritablePartition(time);
+      partition.addReleased(promotionId, time);
+      enqueue(new Record(partition, output -> {
+        output.writeByte(RELEASED);
+        output.writeLong(time);
+        output.writeLong(promotionId);
+      }));
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<ResourceUsage> getUsages(@NotNull final String resourceId, final long from, final long to) {
+    if (to <= from) {
+      return Collections.emptyList();
+    }
+    final long today = toDay(System.currentTimeMillis());
+    final long firstDay = toDay(from) - TeamCityProperties.getInteger(SharedResourcesPluginConstants.USAGE_HISTORY_LOOKBACK_DAYS, DEFAULT_LOOKBACK_DAYS);
+    final long lastDay = Math.min(toDay(to), today);
+    final List<ResourceUsage> acquired = new ArrayList<>();
+    for (long day = firstDay; day <= lastDay; day++) {
+      withPartition(day, partition -> acquired.addAll(partition.getAcquired(resourceId)));
+    }
+    if (acquired.isEmpty()) {
+      return Collections.emptyList();
+    }
+    // locks released after the end of the window are searched in the next day too
+    final long releasesLastDay = Math.min(lastDay + 1, today);
+    final List<ResourceUsage> result = new ArrayList<>(acquired.size());
+    final long firstAcquiredDay = acquired.stream().mapToLong(usage -> toDay(usage.getAcquiredTime())).min().orElse(firstDay);
+    final TLongLongHashMap releases = new TLongLongHashMap();
+    for (long day = firstAcquiredDay; day <= releasesLastDay; day++) {
+      withPartition(day, partition -> acquired.forEach(usage -> {
+        final long released = partition.getReleased(usage.getPromotionId());
+        if (released != ResourceUsage.UNKNOWN && !releases.containsKey(usage.getPromotionId())) {
+          releases.put(usage.getPromotionId(), released);
+        }
+      }));
+    }
+    for (ResourceUsage usage : acquired) {
+      final ResourceUsage withRelease = releases.containsKey(usage.getPromotionId()) ? usage.releasedAt(releases.get(usage.getPromotionId())) : usage;
+      if (withRelease.getAcquiredTime() < to && (withRelease.getReleasedTime() == ResourceUsage.UNKNOWN || withRelease.getReleasedTime() > from)) {
+        result.add(withRelease);
+      }
+    }
+    result.sort(Comparator.comparingLong(ResourceUsage::getAcquiredTime));
+    return result;
+  }
+
+  @NotNull
+  @Override
+  public ResourceUtilization getUtilization(@NotNull final String resourceId, final long from, final long to) {
+    return ResourceUtilization.compute(getUsages(resourceId, from, to), from, Math.min(to, Math.max(from, System.currentTimeMillis())));
+  }
+
+  /**
+   * Writes the queued records and closes the output. Records added after the history is closed are written by the calling thread
+   */
+  void close() {
+    synchronized (myLock) {
+      // the batch taken by the worker is written before the output is closed
+      final List<Record> pending = myWriter.shutdown();
+      synchronized (myOutputLock) {
+        pending.forEach(this::append);
+        closeCurrentOutput();
+        myOutputDay = Long.MIN_VALUE;
+      }
+      myCurrent = null;
+    }
+  }
+
+  private void withPartition(final long day, @NotNull final Consumer<Partition> processor) {
+    synchronized (myLock) {
+      if (myCurrent != null && myCurrent.myDay == day) {
+        processor.accept(myCurrent);
+        return;
+      }
+    }
+    if (day >= toDay(System.currentTimeMillis())) {
+      // partition of the current day can still be appended to
+      processor.accept(readPartition(day));
+      return;
+    }
+    try {
+      processor.accept(myPartitions.get(day, () -> readPartition(day)));
+    } catch (ExecutionException e) {
+      LOG.warnAndDebugDetails("Failed to read resources usage history for " + LocalDate.ofEpochDay(day), e);
+    }
+  }
+
+  /**
+   * Returns partition the records with the given time are appended to, switches to the new partition on the next day
+   */
+  @NotNull
+  private Partition getWritablePartition(final long time) {
+    final long day = toDay(time);
+    Partition result = myCurrent;
+    if (result != null && result.myDay >= day) {
+      return result;
+    }
+    if (result != null) {
+      myPartitions.put(result.myDay, result);
+    }
+    myPartitions.invalidate(day);
+    result = readPartition(day);
+    myCurrent = result;
+    return result;
+  }
+
+  private void enqueue(@NotNull final Record record) {
+    if (!myWriter.offer(record)) {
+      // back-pressure: the writer does not keep up, the caller has to wait for the record to be written
+      write(Collections.singletonList(record));
+    }
+  }
+
+  private void write(@NotNull final List<Record> records) {
+    synchronized (myOutputLock) {
+      records.forEach(this::append);
+      if (myCurrentOutput != null) {
+        try {
+          myCurrentOutput.flush();
+        } catch (IOException e) {
+          onWriteFailure(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends the record to the file of its partition, opens the file of the next day when the day changes.
+   * Must be called under myOutputLock
+   */
+  private void append(@NotNull final Record record) {
+    if (record.myDay > myOutputDay) {
+      closeCurrentOutput();
+      myOutputDay = record.myDay;
+      openOutput(record.myDay, record.myValidLength);
+    }
+    if (myCurrentOutput != null) {
+      try {
+        record.myContent.writeTo(myCurrentOutput);
+      } catch (IOException e) {
+        onWriteFailure(e);
+      }
+    }
+  }
+
+  private void openOutput(final long day, final long validLength) {
+    final File file = getPartitionFile(day);
+    try {
+      if (FileUtil.createParentDirs(file)) {
+        final boolean newFile = !file.isFile() || validLength == 0;
+        if (!newFile && file.length() > validLength) {
+          // last record was not written completely
+          try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(validLength);
+          }
+        }
+        myCurrentOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !newFile)));
+        if (newFile) {
+          myCurrentOutput.writeInt(MAGIC);
+          myCurrentOutput.writeByte(FORMAT_VERSION);
+          myCurrentOutput.flush();
+        }
+      } else {
+        LOG.warn("Failed to create directory for resources usage history: " + file.getParent());
+      }
+    } catch (IOException e) {
+      onWriteFailure(e);
+    }
+    removeObsoletePartitions(day);
+  }
+
+  private void onWriteFailure(@NotNull final IOException e) {
+    LOG.warnAndDebugDetails("Failed to write resources usage history", e);
+    // the partition is reopened when the next day starts
+    closeCurrentOutput();
+  }
+
+  private void closeCurrentOutput() {
+    if (myCurrentOutput != null) {
+      try {
+        myCurrentOutput.close();
+      } catch (IOException e) {
+        LOG.debug("Failed to close resources usage history", e);
+      }
+      myCurrentOutput = null;
+    }
+  }
+
+  private void removeObsoletePartitions(final long currentDay) {
+    final long firstKeptDay = currentDay - TeamCityProperties.getInteger(SharedResourcesPluginConstants.USAGE_HISTORY_RETENTION_DAYS, DEFAULT_RETENTION_DAYS);
+    final File[] files = myDirectory.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+    if (files == null) return;
+    for (File file : files) {
+      final String name = file.getName();
+      try {
+        final long day = LocalDate.parse(name.substring(0, name.length() - FILE_EXTENSION.length())).toEpochDay();
+        if (day < firstKeptDay) {
+          FileUtil.delete(file);
+          myPartitions.invalidate(day);
+        }
+      } catch (DateTimeParseException e) {
+        LOG.debug("Unexpected file in resources usage history directory: " + file);
+      }
+    }
+  }
+
+  @NotNull
+  private Partition readPartition(final long day) {
+    final Partition result = new Partition(day);
+    final File file = getPartitionFile(day);
+    if (!file.isFile()) {
+      return result;
+    }
+    final byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file.toPath());
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read resources usage history from " + file, e);
+      return result;
+    }
+    final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+    try {
+      if (input.readInt() != MAGIC || input.readByte() != FORMAT_VERSION) {
+        LOG.warn("Unsupported format of resources usage history in " + file + ", the file is ignored");
+        return result;
+      }
+      result.myValidLength = bytes.length - input.available();
+      while (input.available() > 0) {
+        final byte type = input.readByte();
+        final long time = input.readLong();
+        final long promotionId = input.readLong();
+        if (type == ACQUIRED) {
+          final long queuedTime = input.readLong();
+          final int count = input.readUnsignedShort();
+          final List<ResourceUsage> usages = new ArrayList<>(count);
+          for (int i = 0; i < count; i++) {
+            final String resourceId = readString(input);
+            final LockType lockType = LockType.values()[input.readByte()];
+            usages.add(new ResourceUsage(resourceId, promotionId, lockType, readString(input), queuedTime, time, ResourceUsage.UNKNOWN));
+          }
+          usages.forEach(result::addAcquired);
+        } else if (type == RELEASED) {
+          result.addReleased(promotionId, time);
+        } else {
+          LOG.warn("Unexpected record in resources usage history in " + file + ", the rest of the file is ignored");
+          break;
+        }
+        result.myValidLength = bytes.length - input.available();
+      }
+    } catch (EOFException e) {
+      LOG.debug("Last record of resources usage history in " + file + " is incomplete");
+    } catch (IOException | ArrayIndexOutOfBoundsException e) {
+      LOG.warnAndDebugDetails("Failed to read resources usage history from " + file, e);
+    }
+    return result;
+  }
+
+  /**
+   * Writes the string as its length followed by UTF-8 bytes. Unlike writeUTF, the length is not limited to 64K bytes
+   */
+  private static void writeString(@NotNull final DataOutputStream output, @NotNull final String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  @NotNull
+  private static String readString(@NotNull final DataInputStream input) throws IOException {
+    final int length = input.readInt();
+    if (length < 0) {
+      throw new IOException("Unexpected string length " + length);
+    }
+    if (length > input.available()) {
+      // record was not written completely
+      throw new EOFException();
+    }
+    final byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @NotNull
+  private File getPartitionFile(final long day) {
+    return new File(myDirectory, LocalDate.ofEpochDay(day) + FILE_EXTENSION);
+  }
+
+  private static long toDay(final long time) {
+    return Math.floorDiv(time, DAY);
+  }
+
+  /**
+   * Record waiting to be appended to the file of its partition
+   */
+  private static final class Record {
+
+    private final long myDay;
+
+    /**
+     * Length of the partition file containing only complete records when the partition was read
+     */
+    private final long myValidLength;
+
+    @NotNull
+    private final RecordContent myContent;
+
+    Record(@NotNull final Partition partition, @NotNull final RecordContent content) {
+      myDay = partition.myDay;
+      myValidLength = partition.myValidLength;
+      myContent = content;
+    }
+  }
+
+  /**
+   * Records of a single day indexed by resource id
+   */
+  private static final class Partition {
+
+    private final long myDay;
+
+    @NotNull
+    private final Map<String, List<ResourceUsage>> myAcquired = new HashMap<>();
+
+    @NotNull
+    private final TLongLongHashMap myReleased = new TLongLongHashMap();
+
+    /**
+     * Length of the file containing only complete records
+     */
+    private long myValidLength = 0;
+
+    Partition(final long day) {
+      myDay = day;
+    }
+
+    void addAcquired(@NotNull final ResourceUsage usage) {
+      myAcquired.computeIfAbsent(usage.getResourceId(), id -> new ArrayList<>()).add(usage);
+    }
+
+    void addReleased(final long promotionId, final long time) {
+      myReleased.put(promotionId, time);
+    }
+
+    @NotNull
+    List<ResourceUsage> getAcquired(@NotNull final String resourceId) {
+      return myAcquired.getOrDefault(resourceId, Collections.emptyList());
+    }
+
+    long getReleased(final long promotionId) {
+      return myReleased.containsKey(promotionId) ? myReleased.get(promotionId) : ResourceUsage.UNKNOWN;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.history;
+
+import jetbrains.buildServer.sharedResources.model.LockType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Single usage of a resource by a build: lock taken on the resource from the build start till the build finish
+ */
+public final class ResourceUsage {
+
+  /**
+   * Returned by {@link #getReleasedTime()} and {@link #getQueuedTime()} if the time is not known
+   */
+  public static final long UNKNOWN = -1;
+
+  @NotNull
+  private final String myResourceId;
+
+  private final long myPromotionId;
+
+  @NotNull
+  private final LockType myLockType;
+
+  @NotNull
+  private final String myValue;
+
+  private final long myQueuedTime;
+
+  private final long myAcquiredTime;
+
+  private final long myReleasedTime;
+
+  ResourceUsage(@NotNull final String resourceId,
+                final long promotionId,
+                @NotNull final LockType lockType,
+                @NotNull final String value,
+                final long queuedTime,
+                final long acquiredTime,
+                final long releasedTime) {
+    myResourceId = resourceId;
+    myPromotionId = promotionId;
+    myLockType = lockType;
+    myValue = value;
+    myQueuedTime = queuedTime;
+    myAcquiredTime = acquiredTime;
+    myReleasedTime = releasedTime;
+  }
+
+  @NotNull
+  ResourceUsage releasedAt(final long releasedTime) {
+    return new ResourceUsage(myResourceId, myPromotionId, myLockType, myValue, myQueuedTime, myAcquiredTime, releasedTime);
+  }
+
+  @NotNull
+  public String getResourceId() {
+    return myResourceId;
+  }
+
+  public long getPromotionId() {
+    return myPromotionId;
+  }
+
+  @NotNull
+  public LockType getLockType() {
+    return myLockType;
+  }
+
+  /**
+   * @return value of custom resource taken by the build, empty string for other resources
+   */
+  @NotNull
+  public String getValue() {
+    return myValue;
+  }
+
+  /**
+   * @return time the build was added to the queue or {@link #UNKNOWN}
+   */
+  public long getQueuedTime() {
+    return myQueuedTime;
+  }
+
+  public long getAcquiredTime() {
+    return myAcquiredTime;
+  }
+
+  /**
+   * @return time the lock was released or {@link #UNKNOWN} if the build is still running
+   */
+  public long getReleasedTime() {
+    return myReleasedTime;
+  }
+
+  @Override
+  public String toString() {
+    return "ResourceUsage{" + myResourceId + ", promotion " + myPromotionId + ", " + myLockType + ", [" + myAcquiredTime + ", " + myReleasedTime + "]}";
+  }
+}
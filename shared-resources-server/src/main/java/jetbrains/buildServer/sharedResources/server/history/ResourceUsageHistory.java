@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.history;
+
+import java.util.List;
+import java.util.Map;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * History of the resources usage by the builds.
+ *
+ * Locks are recorded when they are taken by a starting build and are released when the build finishes
+ */
+public interface ResourceUsageHistory {
+
+  /**
+   * Records locks taken by the starting build
+   *
+   * @param promotion  build promotion of the starting build
+   * @param resources  resources visible to the build, by name
+   * @param takenLocks locks taken by the build with taken values
+   */
+  void recordAcquired(@NotNull BuildPromotion promotion,
+                      @NotNull Map<String, Resource> resources,
+                      @NotNull Map<Lock, String> takenLocks);
+
+  /**
+   * Returns usages of the resource that overlap the given time window
+   *
+   * @param resourceId id of the resource
+   * @param from       start of the window, ms
+   * @param to         end of the window, ms
+   * @return usages ordered by acquisition time
+   */
+  @NotNull
+  List<ResourceUsage> getUsages(@NotNull String resourceId, long from, long to);
+
+  /**
+   * Returns utilization of the resource over the given time window
+   *
+   * @param resourceId id of the resource
+   * @param from       start of the window, ms
+   * @param to         end of the window, ms
+   */
+  @NotNull
+  ResourceUtilization getUtilization(@NotNull String resourceId, long from, long to);
+}
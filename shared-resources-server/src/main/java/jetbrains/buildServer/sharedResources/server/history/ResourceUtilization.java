@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.history;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Utilization of a resource over a time window
+ */
+public final class ResourceUtilization {
+
+  private final long myFrom;
+
+  private final long myTo;
+
+  private final int myUsagesCount;
+
+  private final long myBusyTime;
+
+  private final long myHoldTime;
+
+  private final long myTotalWaitTime;
+
+  private final int myWaitsCount;
+
+  private ResourceUtilization(final long from,
+                              final long to,
+                              final int usagesCount,
+                              final long busyTime,
+                              final long holdTime,
+                              final long totalWaitTime,
+                              final int waitsCount) {
+    myFrom = from;
+    myTo = to;
+    myUsagesCount = usagesCount;
+    myBusyTime = busyTime;
+    myHoldTime = holdTime;
+    myTotalWaitTime = totalWaitTime;
+    myWaitsCount = waitsCount;
+  }
+
+  /**
+   * Computes utilization over the window from usages overlapping it
+   *
+   * @param usages usages of a single resource
+   * @param from   start of the window
+   * @param to     end of the window. Usages that were not released yet are considered to be held till the end of the window
+   */
+  @NotNull
+  static ResourceUtilization compute(@NotNull final Collection<ResourceUsage> usages, final long from, final long to) {
+    final List<long[]> intervals = new ArrayList<>(usages.size());
+    long holdTime = 0;
+    long totalWaitTime = 0;
+    int waitsCount = 0;
+    for (ResourceUsage usage : usages) {
+      final long start = Math.max(from, usage.getAcquiredTime());
+      final long end = Math.min(to, usage.getReleasedTime() == ResourceUsage.UNKNOWN ? to : usage.getReleasedTime());
+      if (end > start) {
+        intervals.add(new long[]{start, end});
+        holdTime += end - start;
+      }
+      // waiting is attributed to the window the lock was acquired in
+      if (usage.getQueuedTime() != ResourceUsage.UNKNOWN && usage.getAcquiredTime() >= from && usage.getAcquiredTime() < to) {
+        totalWaitTime += Math.max(0, usage.getAcquiredTime() - usage.getQueuedTime());
+        waitsCount++;
+      }
+    }
+    intervals.sort((i1, i2) -> Long.compare(i1[0], i2[0]));
+    long busyTime = 0;
+    long currentStart = -1;
+    long currentEnd = -1;
+    for (long[] interval : intervals) {
+      if (interval[0] > currentEnd) {
+        busyTime += currentEnd - currentStart;
+        currentStart = interval[0];
+        currentEnd = interval[1];
+      } else {
+        currentEnd = Math.max(currentEnd, interval[1]);
+      }
+    }
+    busyTime += currentEnd - currentStart;
+    return new ResourceUtilization(from, to, usages.size(), busyTime, holdTime, totalWaitTime, waitsCount);
+  }
+
+  public long getFrom() {
+    return myFrom;
+  }
+
+  public long getTo() {
+    return myTo;
+  }
+
+  /**
+   * @return number of times the resource was locked during the window
+   */
+  public int getUsagesCount() {
+    return myUsagesCount;
+  }
+
+  /**
+   * @return time the resource was held by at least one build during the window, ms
+   */
+  public long getBusyTime() {
+    return myBusyTime;
+  }
+
+  /**
+   * @return total time the resource was held by all the builds during the window, ms
+   */
+  public long getHoldTime() {
+    return myHoldTime;
+  }
+
+  /**
+   * @return fraction of the window the resource was held by at least one build
+   */
+  public double getBusyRatio() {
+    return myTo > myFrom ? (double)myBusyTime / (myTo - myFrom) : 0;
+  }
+
+  /**
+   * @return average number of builds holding the resource during the window
+   */
+  public double getAverageHolders() {
+    return myTo > myFrom ? (double)myHoldTime / (myTo - myFrom) : 0;
+  }
+
+  /**
+   * @return average time the builds which locked the resource during the window spent in the queue, ms
+   */
+  public long getAverageWaitTime() {
+    return myWaitsCount == 0 ? 0 : myTotalWaitTime / myWaitsCount;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thread-safe histogram with fixed buckets
+ */
+public final class Histogram {
+
+  /**
+   * Upper bounds of the buckets, in the units of the observed values
+   */
+  @NotNull
+  private final long[] myBounds;
+
+  @NotNull
+  private final LongAdder[] myBuckets;
+
+  @NotNull
+  private final LongAdder mySum = new LongAdder();
+
+  Histogram(@NotNull final long[] bounds) {
+    myBounds = bounds;
+    myBuckets = new LongAdder[bounds.length + 1];
+    for (int i = 0; i < myBuckets.length; i++) {
+      myBuckets[i] = new LongAdder();
+    }
+  }
+
+  public void observe(final long observed) {
+    final long value = Math.max(0, observed);
+    int i = 0;
+    while (i < myBounds.length && value > myBounds[i]) {
+      i++;
+    }
+    myBuckets[i].increment();
+    mySum.add(value);
+  }
+
+  /**
+   * @return upper bounds of the buckets, the last bucket is unbounded
+   */
+  @NotNull
+  public long[] getBounds() {
+    return myBounds.clone();
+  }
+
+  /**
+   * @return cumulative counts of the buckets, the last one is the total count
+   */
+  @NotNull
+  public long[] getCumulativeCounts() {
+    final long[] result = new long[myBuckets.length];
+    long count = 0;
+    for (int i = 0; i < myBuckets.length; i++) {
+      count += myBuckets[i].sum();
+      result[i] = count;
+    }
+    return result;
+  }
+
+  public long getCount() {
+    long result = 0;
+    for (LongAdder bucket : myBuckets) {
+      result += bucket.sum();
+    }
+    return result;
+  }
+
+  public long getSum() {
+    return mySum.sum();
+  }
+}
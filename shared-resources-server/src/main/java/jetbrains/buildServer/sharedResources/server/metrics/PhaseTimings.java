@@ -0,0 +1,150 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.BooleanSupplier;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Latency of the hot paths of the plugin: build distribution and build start.
+ *
+ * Timings are collected only if enabled by {@link SharedResourcesPluginConstants#PHASE_TIMINGS_ENABLED}.
+ * When disabled, the cost of the measurement is a single property check per phase
+ */
+public class PhaseTimings {
+
+  public enum Phase {
+    CAN_START("canStart"),
+    TAKEN_LOCKS("canStart: taken locks collection"),
+    CHAIN_RESOLUTION("canStart: chain locks resolution"),
+    CHECK_RESOURCES("canStart: check against resources"),
+    UPDATE_PARAMETERS("updateParameters");
+
+    @NotNull
+    private final String myDescription;
+
+    Phase(@NotNull final String description) {
+      myDescription = description;
+    }
+
+    @NotNull
+    public String getDescription() {
+      return myDescription;
+    }
+  }
+
+  /**
+   * Returned by {@link #start()} if timings are disabled
+   */
+  private static final long NOT_STARTED = Long.MIN_VALUE;
+
+  /**
+   * Upper bounds of the buckets, microseconds
+   */
+  private static final long[] BOUNDS = {10, 50, 100, 500, 1_000, 5_000, 10_000, 50_000, 100_000, 500_000, 1_000_000};
+
+  @NotNull
+  private final BooleanSupplier myEnabled;
+
+  @NotNull
+  private final Map<Phase, PhaseStats> myStats = new EnumMap<>(Phase.class);
+
+  public PhaseTimings() {
+    this(() -> TeamCityProperties.getBoolean(SharedResourcesPluginConstants.PHASE_TIMINGS_ENABLED));
+  }
+
+  PhaseTimings(@NotNull final BooleanSupplier enabled) {
+    myEnabled = enabled;
+    for (Phase phase : Phase.values()) {
+      myStats.put(phase, new PhaseStats());
+    }
+  }
+
+  /**
+   * Starts measurement of a phase
+   *
+   * @return start time to be passed to {@link #stop(Phase, long)}
+   */
+  public long start() {
+    return myEnabled.getAsBoolean() ? System.nanoTime() : NOT_STARTED;
+  }
+
+  /**
+   * Records the time spent in the phase
+   *
+   * @param phase   measured phase
+   * @param started value returned by {@link #start()}
+   */
+  public void stop(@NotNull final Phase phase, final long started) {
+    if (started == NOT_STARTED) return;
+    final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started);
+    final PhaseStats stats = myStats.get(phase);
+    stats.myHistogram.observe(micros);
+    stats.myMax.accumulate(micros);
+  }
+
+  /**
+   * Writes aggregated statistics of all phases as a plain text table
+   */
+  public void report(@NotNull final StringBuilder out) {
+    out.append("Timings are ").append(myEnabled.getAsBoolean() ? "enabled" : "disabled")
+       .append(" (").append(SharedResourcesPluginConstants.PHASE_TIMINGS_ENABLED).append(")\n\n");
+    out.append(String.format("%-40s %10s %12s %12s %12s %12s %12s %14s%n", "phase", "count", "mean, us", "p50, us", "p90, us", "p99, us", "max, us", "total, ms"));
+    for (Phase phase : Phase.values()) {
+      final PhaseStats stats = myStats.get(phase);
+      final long[] counts = stats.myHistogram.getCumulativeCounts();
+      final long count = counts[counts.length - 1];
+      final long sum = stats.myHistogram.getSum();
+      out.append(String.format("%-40s %10d %12d %12s %12s %12s %12d %14d%n",
+                               phase.getDescription(),
+                               count,
+                               count == 0 ? 0 : sum / count,
+                               percentile(counts, count, 0.5),
+                               percentile(counts, count, 0.9),
+                               percentile(counts, count, 0.99),
+                               stats.myMax.get(),
+                               TimeUnit.MICROSECONDS.toMillis(sum)));
+    }
+  }
+
+  /**
+   * Estimates percentile as the upper bound of the bucket that contains it
+   */
+  @NotNull
+  static String percentile(@NotNull final long[] cumulativeCounts, final long count, final double quantile) {
+    if (count == 0) return "-";
+    final double rank = quantile * count;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      if (cumulativeCounts[i] >= rank) {
+        return "<=" + BOUNDS[i];
+      }
+    }
+    return ">" + BOUNDS[BOUNDS.length - 1];
+  }
+
+  private static final class PhaseStats {
+    private final Histogram myHistogram = new Histogram(BOUNDS);
+    private final LongAccumulator myMax = new LongAccumulator(Math::max, 0);
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Per-resource wait and contention metrics.
+ *
+ * Metrics are fed by the start build precondition (blocked evaluations, fair set length),
+ * by the context processor (locks taken by the starting builds) and by the build lifecycle events (locks released).
+ * Metrics are kept in memory and are reported as plain text on the plugin diagnostics page, next to the phase timings
+ */
+public class ResourceMetrics {
+
+  private static final long[] BOUNDS = {
+    TimeUnit.SECONDS.toMillis(1),
+    TimeUnit.SECONDS.toMillis(10),
+    TimeUnit.SECONDS.toMillis(30),
+    TimeUnit.MINUTES.toMillis(1),
+    TimeUnit.MINUTES.toMillis(5),
+    TimeUnit.MINUTES.toMillis(15),
+    TimeUnit.MINUTES.toMillis(30),
+    TimeUnit.HOURS.toMillis(1),
+    TimeUnit.HOURS.toMillis(4)
+  };
+
+  @NotNull
+  private final ConcurrentMap<String, PerResource> myResources = new ConcurrentHashMap<>();
+
+  /**
+   * Promotion id -> (resource id -> time the resource blocked the queued build for the first time)
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Map<String, Long>> myBlockedSince = new ConcurrentHashMap<>();
+
+  /**
+   * Promotion id -> locks taken by the running build
+   */
+  @NotNull
+  private final ConcurrentMap<Long, Held> myHeld = new ConcurrentHashMap<>();
+
+  public ResourceMetrics(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildRemovedFromQueue(@NotNull SQueuedBuild queued, User user, String comment) {
+        // removed builds that were not started
+        if (queued.getBuildPromotion().getAssociatedBuild() == null) {
+          myBlockedSince.remove(queued.getBuildPromotion().getId());
+        }
+      }
+
+      @Override
+      public void buildFinished(@NotNull SRunningBuild build) {
+        onReleased(build.getBuildPromotion().getId(), System.currentTimeMillis());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull SRunningBuild build) {
+        onReleased(build.getBuildPromotion().getId(), System.currentTimeMillis());
+      }
+    });
+  }
+
+  /**
+   * Records that the queued build can not start because of the given resources
+   *
+   * @param promotion build promotion of the queued build
+   * @param blockedBy resources that are not available
+   * @param fairSet   current fair set: resource id -> builds waiting for write lock on the resource
+   */
+  public void onBlocked(@NotNull final BuildPromotion promotion,
+                        @NotNull final Collection<Resource> blockedBy,
+                        @NotNull final Map<String, List<BuildPromotion>> fairSet) {
+    final long now = System.currentTimeMillis();
+    final Map<String, Long> since = myBlockedSince.computeIfAbsent(promotion.getId(), id -> new ConcurrentHashMap<>());
+    for (Resource resource : blockedBy) {
+      final PerResource metrics = getMetrics(resource);
+      metrics.myBlockedEvaluations.increment();
+      final List<BuildPromotion> waiting = fairSet.get(resource.getId());
+      metrics.myFairSetLength.set(waiting == null ? 0 : waiting.size());
+      since.putIfAbsent(resource.getId(), now);
+    }
+  }
+
+  /**
+   * Records locks taken by the starting build
+   *
+   * @param promotion  build promotion of the starting build
+   * @param resources  resources visible to the build, by name
+   * @param takenLocks locks taken by the build
+   */
+  public void onAcquired(@NotNull final BuildPromotion promotion,
+                         @NotNull final Map<String, Resource> resources,
+                         @NotNull final Map<Lock, String> takenLocks) {
+    final long now = System.currentTimeMillis();
+    final Map<String, Long> blockedSince = myBlockedSince.remove(promotion.getId());
+    if (blockedSince != null) {
+      blockedSince.forEach((resourceId, since) -> {
+        final PerResource metrics = myResources.get(resourceId);
+        if (metrics != null) {
+          metrics.myQueueWait.observe(now - since);
+        }
+      });
+    }
+    if (takenLocks.isEmpty()) return;
+    final SBuild build = promotion.getAssociatedBuild();
+    final List<PerResource> held = new ArrayList<>(takenLocks.size());
+    takenLocks.keySet().forEach(lock -> {
+      final Resource resource = resources.get(lock.getName());
+      if (resource != null) {
+        final PerResource metrics = getMetrics(resource);
+        if (build != null) {
+          metrics.myAcquireTime.observe(now - build.getQueuedDate().getTime());
+        }
+        metrics.myHolders.incrementAndGet();
+        held.add(metrics);
+      }
+    });
+    final Held previous = myHeld.put(promotion.getId(), new Held(now, held));
+    if (previous != null) {
+      previous.myResources.forEach(metrics -> metrics.myHolders.decrementAndGet());
+    }
+  }
+
+  void onReleased(final long promotionId, final long time) {
+    final Held held = myHeld.remove(promotionId);
+    if (held != null) {
+      held.myResources.forEach(metrics -> {
+        metrics.myHoldDuration.observe(time - held.myAcquiredTime);
+        metrics.myHolders.decrementAndGet();
+      });
+    }
+  }
+
+  @NotNull
+  private PerResource getMetrics(@NotNull final Resource resource) {
+    final PerResource result = myResources.computeIfAbsent(resource.getId(), id -> new PerResource());
+    result.myName = resource.getName();
+    return result;
+  }
+
+  /**
+   * Writes the metrics of every resource as plain text
+   */
+  public void report(@NotNull final StringBuilder out) {
+    final SortedMap<String, PerResource> resources = new TreeMap<>(myResources);
+    if (resources.isEmpty()) {
+      out.append("No resources blocked or were locked by the builds since the server start\n");
+      return;
+    }
+    resources.forEach((id, metrics) -> {
+      out.append(metrics.myName).append(" (").append(id).append(")\n");
+      out.append("  blocked evaluations: ").append(metrics.myBlockedEvaluations.sum()).append('\n');
+      out.append("  fair set length: ").append(metrics.myFairSetLength.get()).append('\n');
+      out.append("  holders: ").append(metrics.myHolders.get()).append('\n');
+      report(out, "queue wait", metrics.myQueueWait);
+      report(out, "acquire time", metrics.myAcquireTime);
+      report(out, "hold duration", metrics.myHoldDuration);
+    });
+  }
+
+  private static void report(@NotNull final StringBuilder out, @NotNull final String name, @NotNull final Histogram histogram) {
+    final long count = histogram.getCount();
+    out.append("  ").append(name).append(": count ").append(count);
+    if (count > 0) {
+      out.append(", mean ").append(TimeUnit.MILLISECONDS.toSeconds(histogram.getSum() / count)).append(" s");
+      final long[] bounds = histogram.getBounds();
+      final long[] counts = histogram.getCumulativeCounts();
+      out.append(", buckets");
+      for (int i = 0; i < counts.length; i++) {
+        out.append(i < bounds.length ? " <=" + TimeUnit.MILLISECONDS.toSeconds(bounds[i]) + "s: " : " more: ").append(counts[i] - (i == 0 ? 0 : counts[i - 1]));
+      }
+    }
+    out.append('\n');
+  }
+
+  private static final class PerResource {
+    @NotNull
+    private volatile String myName = "";
+    private final LongAdder myBlockedEvaluations = new LongAdder();
+    private final AtomicInteger myFairSetLength = new AtomicInteger();
+    private final AtomicInteger myHolders = new AtomicInteger();
+    private final Histogram myQueueWait = new Histogram(BOUNDS);
+    private final Histogram myAcquireTime = new Histogram(BOUNDS);
+    private final Histogram myHoldDuration = new Histogram(BOUNDS);
+  }
+
+  private static final class Held {
+    private final long myAcquiredTime;
+    @NotNull
+    private final List<PerResource> myResources;
+
+    Held(final long acquiredTime, @NotNull final List<PerResource> resources) {
+      myAcquiredTime = acquiredTime;
+      myResources = resources;
+    }
+  }
+}
@@ -2,13 +2,10 @@
 
 package jetbrains.buildServer.sharedResources.server.report;
 
-import com.google.gson.JsonIOException;
 import com.google.gson.JsonParseException;
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -18,7 +15,6 @@ import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.resources.Resource;
-import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -36,8 +32,13 @@ public class BuildUsedResourcesReport {
   @NotNull
   private final UsedResourcesSerializer mySerializer;
 
-  public BuildUsedResourcesReport(@NotNull final UsedResourcesSerializer serializer) {
+  @NotNull
+  private final DiagnosticArtifactsWriter myArtifactsWriter;
+
+  public BuildUsedResourcesReport(@NotNull final UsedResourcesSerializer serializer,
+                                  @NotNull final DiagnosticArtifactsWriter artifactsWriter) {
     mySerializer = serializer;
+    myArtifactsWriter = artifactsWriter;
   }
 
   public void save(@NotNull final BuildPromotionEx promo,
@@ -53,22 +54,13 @@ public class BuildUsedResourcesReport {
         LOG.warn("Resource with name " + lock.getName() + " was not found for used resources report for build promotion with id " + promo.getId());
       }
     });
-    final File artifact = new File(promo.getArtifactsDirectory(), ARTIFACT_PATH);
-    try {
-      if (FileUtil.createParentDirs(artifact)) {
-        try (FileWriter w = new FileWriter(artifact)) {
-          mySerializer.write(usedResources, w);
-        }
-      }
-    } catch (IOException | JsonIOException e) {
-      LOG.warnAndDebugDetails("Failed to store resources and locks to " + artifact.getPath() + " for build promotion with id " + promo.getId(), e);
-    }
+    myArtifactsWriter.write(promo, ARTIFACT_PATH, writer -> mySerializer.write(usedResources, writer));
   }
 
   public List<UsedResource> load(@NotNull final SBuild build) {
     final File artifact = new File(build.getArtifactsDirectory(), ARTIFACT_PATH);
     if (artifact.isFile()) {
-      try (FileReader reader = new FileReader(artifact)) {
+      try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(artifact), StandardCharsets.UTF_8))) {
         return mySerializer.read(reader);
       } catch(IOException | JsonParseException e) {
         LOG.warnAndDebugDetails("Failed to load stored resources and locks from " + artifact.getPath() + " for build with id " + build.getBuildId(), e);
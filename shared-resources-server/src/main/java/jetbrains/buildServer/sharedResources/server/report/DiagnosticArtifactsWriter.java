@@ -0,0 +1,191 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.report;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.impl.LogUtil;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.server.BackgroundWriter;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes diagnostic artifacts of the builds (taken locks, used resources) in background,
+ * so that build start does not wait for the artifacts storage.
+ *
+ * Artifacts are queued and written in batches by a single daemon thread.
+ * The queue is bounded: if it is full, the artifact is written by the calling thread.
+ * Artifacts of a build that are still queued or are being written when the build finishes are written
+ * before the finish is processed further.
+ */
+public class DiagnosticArtifactsWriter {
+
+  private static final Logger LOG = Logger.getInstance(DiagnosticArtifactsWriter.class.getName());
+
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  /**
+   * Writes contents of the artifact
+   */
+  public interface ArtifactContent {
+    void writeTo(@NotNull Writer writer) throws IOException;
+  }
+
+  private final boolean myAsync;
+
+  @NotNull
+  private final BackgroundWriter<ArtifactTask> myWriter;
+
+  public DiagnosticArtifactsWriter(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(true);
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildFinished(@NotNull SRunningBuild build) {
+        writePending(build.getBuildPromotion());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull SRunningBuild build) {
+        writePending(build.getBuildPromotion());
+      }
+
+      @Override
+      public void serverShutdown() {
+        shutdown();
+      }
+    });
+  }
+
+  private DiagnosticArtifactsWriter(final boolean async) {
+    myAsync = async;
+    myWriter = new BackgroundWriter<>("Shared Resources artifacts writer",
+                                      async ? TeamCityProperties.getInteger(SharedResourcesPluginConstants.ARTIFACTS_WRITER_QUEUE_SIZE, DEFAULT_QUEUE_SIZE) : 1,
+                                      DiagnosticArtifactsWriter::writeBatch);
+  }
+
+  /**
+   * Creates writer that writes all the artifacts in the calling thread
+   */
+  @NotNull
+  public static DiagnosticArtifactsWriter synchronous() {
+    return new DiagnosticArtifactsWriter(false);
+  }
+
+  /**
+   * Schedules the artifact to be written
+   *
+   * @param promotion    build promotion the artifact belongs to
+   * @param relativePath path of the artifact inside the artifacts directory of the build promotion
+   * @param content      contents of the artifact. Must not depend on any state that can change after the call
+   */
+  public void write(@NotNull final BuildPromotion promotion,
+                    @NotNull final String relativePath,
+                    @NotNull final ArtifactContent content) {
+    final ArtifactTask task = new ArtifactTask(promotion, new File(promotion.getArtifactsDirectory(), relativePath), content);
+    if (!myAsync || !TeamCityProperties.getBooleanOrTrue(SharedResourcesPluginConstants.ARTIFACTS_WRITER_ASYNC)) {
+      task.run();
+      return;
+    }
+    if (!myWriter.offer(task)) {
+      // back-pressure: the writer does not keep up or is shut down, the caller has to wait for the artifact to be written
+      LOG.debug("Diagnostic artifacts are not queued, writing " + task + " in the calling thread");
+      task.run();
+    }
+  }
+
+  /**
+   * Writes queued artifacts of the given build promotion in the calling thread
+   * and waits for its artifacts being written by the background thread
+   */
+  void writePending(@NotNull final BuildPromotion promotion) {
+    final long promotionId = promotion.getId();
+    myWriter.takePending(task -> task.myPromotionId == promotionId).forEach(ArtifactTask::run);
+  }
+
+  /**
+   * Stops the background writing. Queued artifacts are written in the calling thread
+   */
+  void shutdown() {
+    writeBatch(myWriter.shutdown());
+  }
+
+  private static void writeBatch(@NotNull final List<ArtifactTask> batch) {
+    final Set<File> existingDirs = new HashSet<>();
+    for (ArtifactTask task : batch) {
+      task.run(existingDirs);
+    }
+  }
+
+  private static final class ArtifactTask {
+
+    @NotNull
+    private final BuildPromotion myPromotion;
+
+    private final long myPromotionId;
+
+    @NotNull
+    private final File myArtifact;
+
+    @NotNull
+    private final ArtifactContent myContent;
+
+    ArtifactTask(@NotNull final BuildPromotion promotion, @NotNull final File artifact, @NotNull final ArtifactContent content) {
+      myPromotion = promotion;
+      myPromotionId = promotion.getId();
+      myArtifact = artifact;
+      myContent = content;
+    }
+
+    void run() {
+      run(new HashSet<>());
+    }
+
+    /**
+     * @param existingDirs directories already created by the previous tasks of the batch
+     */
+    void run(@NotNull final Set<File> existingDirs) {
+      try {
+        final File dir = myArtifact.getParentFile();
+        if (existingDirs.add(dir) && !FileUtil.createParentDirs(myArtifact)) {
+          existingDirs.remove(dir);
+          LOG.warn("Failed to create parent dirs for " + myArtifact.getPath() + " for build " + LogUtil.describe(myPromotion));
+          return;
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(myArtifact), StandardCharsets.UTF_8))) {
+          myContent.writeTo(writer);
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.warnAndDebugDetails("Failed to write " + myArtifact.getPath() + " for build " + LogUtil.describe(myPromotion), e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return myArtifact.getPath();
+    }
+  }
+}
@@ -1,15 +1,15 @@
 
-
 package jetbrains.buildServer.sharedResources.server.report;
 
-import com.google.gson.*;
-import com.google.gson.internal.Streams;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -18,72 +18,203 @@ import jetbrains.buildServer.sharedResources.model.resources.*;
 import org.jetbrains.annotations.NotNull;
 
 /**
- * Created with IntelliJ IDEA.
+ * Streaming serializer of the used resources report.
+ *
+ * Does not keep any state, a single instance is shared by all the callers.
  *
  * @author Oleg Rybak (oleg.rybak@jetbrains.com)
  */
 public class UsedResourcesSerializer {
 
-  public List<UsedResource> read(@NotNull final Reader reader) {
-    final GsonBuilder builder = new GsonBuilder();
-    builder.setFieldNamingStrategy(STRATEGY);
-    builder.registerTypeAdapter(Resource.class, (InstanceCreator<Resource>)type -> ResourceFactory.newInfiniteResource("", "", "", true));
-    builder.registerTypeAdapter(Lock.class, (InstanceCreator<Lock>)type -> new Lock("", LockType.READ, ""));
-    builder.registerTypeAdapterFactory(MY_TYPE_ADAPTER_FACTORY);
-    return builder.setPrettyPrinting().create().fromJson(reader, new TypeToken<List<UsedResource>>(){}.getType());
+  public List<UsedResource> read(@NotNull final Reader reader) throws IOException {
+    final JsonReader in = new JsonReader(reader);
+    in.setLenient(true);
+    try {
+      final List<UsedResource> result = new ArrayList<>();
+      in.beginArray();
+      while (in.hasNext()) {
+        result.add(readUsedResource(in));
+      }
+      in.endArray();
+      return result;
+    } catch (IllegalStateException | NumberFormatException e) {
+      // unexpected token
+      throw new JsonSyntaxException(e);
+    }
   }
 
-  public void write(Collection<UsedResource> usedResources, Writer writer) {
-    final GsonBuilder builder = new GsonBuilder();
-    builder.setFieldNamingStrategy(STRATEGY);
-    builder.setPrettyPrinting();
-    builder.create().toJson(usedResources, writer);
+  public void write(@NotNull final Collection<UsedResource> usedResources, @NotNull final Writer writer) throws IOException {
+    final JsonWriter out = new JsonWriter(writer);
+    out.beginArray();
+    for (UsedResource usedResource : usedResources) {
+      out.beginObject();
+      out.name("resource");
+      writeResource(out, usedResource.getResource());
+      out.name("locks").beginArray();
+      for (Lock lock : usedResource.getLocks()) {
+        out.beginObject();
+        out.name("name").value(lock.getName());
+        out.name("type").value(lock.getType().name());
+        out.name("value").value(lock.getValue());
+        if (lock.isWeighted()) {
+          out.name("weight").value(lock.getWeight());
+        }
+        out.endObject();
+      }
+      out.endArray();
+      out.endObject();
+    }
+    out.endArray();
+    out.flush();
   }
 
-  private static final FieldNamingStrategy STRATEGY = field -> {
-    String name = field.getName();
-    if (name.startsWith("my")) {
-      char c[] = name.substring(2).toCharArray();
-      c[0] = Character.toLowerCase(c[0]);
-      return new String(c);
-    } else {
-      return name;
+  private static void writeResource(@NotNull final JsonWriter out, @NotNull final Resource resource) throws IOException {
+    out.beginObject();
+    if (resource instanceof CustomResource) {
+      out.name("values").beginArray();
+      for (String value : ((CustomResource)resource).getValues()) {
+        out.value(value);
+      }
+      out.endArray();
+    } else if (resource instanceof QuotedResource) {
+      out.name("quota").value(((QuotedResource)resource).getQuota());
     }
-  };
+    out.name("name").value(resource.getName());
+    out.name("projectId").value(resource.getProjectId());
+    out.name("type").value(resource.getType().name());
+    out.name("id").value(resource.getId());
+    out.name("state").value(resource.isEnabled());
+    out.endObject();
+  }
 
-  private final TypeAdapterFactory MY_TYPE_ADAPTER_FACTORY = new CustomTypeAdapterFactory();
+  @NotNull
+  private static UsedResource readUsedResource(@NotNull final JsonReader in) throws IOException {
+    Resource resource = null;
+    final List<Lock> locks = new ArrayList<>();
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "resource":
+          resource = readResource(in);
+          break;
+        case "locks":
+          in.beginArray();
+          while (in.hasNext()) {
+            locks.add(readLock(in));
+          }
+          in.endArray();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+    if (resource == null) {
+      throw new JsonParseException("Used resource does not contain resource at " + in.getPath());
+    }
+    return new UsedResource(resource, locks);
+  }
 
-  private static final class CustomTypeAdapterFactory implements TypeAdapterFactory {
-    @Override
-    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
-      if (type.getRawType() != Resource.class) {
-        return null;
+  @NotNull
+  private static Resource readResource(@NotNull final JsonReader in) throws IOException {
+    String id = "";
+    String projectId = "";
+    String name = "";
+    ResourceType type = null;
+    boolean state = true;
+    int quota = -1;
+    List<String> values = null;
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "id":
+          id = nextString(in);
+          break;
+        case "projectId":
+          projectId = nextString(in);
+          break;
+        case "name":
+          name = nextString(in);
+          break;
+        case "type":
+          type = ResourceType.fromString(nextString(in));
+          break;
+        case "state":
+          state = in.nextBoolean();
+          break;
+        case "quota":
+          quota = in.nextInt();
+          break;
+        case "values":
+          values = new ArrayList<>();
+          in.beginArray();
+          while (in.hasNext()) {
+            values.add(nextString(in));
+          }
+          in.endArray();
+          break;
+        default:
+          in.skipValue();
       }
+    }
+    in.endObject();
+    if (type == ResourceType.QUOTED) {
+      return ResourceFactory.newQuotedResource(id, projectId, name, quota, state);
+    } else if (type == ResourceType.CUSTOM && values != null) {
+      return ResourceFactory.newCustomResource(id, projectId, name, values, state);
+    }
+    throw new JsonParseException("Not a valid Resource JSON at " + in.getPath());
+  }
 
-      final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+  @NotNull
+  private static Lock readLock(@NotNull final JsonReader in) throws IOException {
+    String name = "";
+    LockType type = LockType.READ;
+    String value = "";
+    int weight = Lock.DEFAULT_WEIGHT;
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "name":
+          name = nextString(in);
+          break;
+        case "type":
+          type = parseLockType(nextString(in));
+          break;
+        case "value":
+          value = nextString(in);
+          break;
+        case "weight":
+          weight = in.nextInt();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+    return new Lock(name, type, value, weight);
+  }
 
-      return new TypeAdapter<T>() {
-        @Override
-        public void write(final JsonWriter jsonWriter, final T t) throws IOException {
-          delegate.write(jsonWriter, t);
-        }
+  @NotNull
+  private static LockType parseLockType(@NotNull final String str) {
+    for (LockType type : LockType.values()) {
+      if (type.name().equals(str)) {
+        return type;
+      }
+    }
+    final LockType result = LockType.byName(str);
+    if (result == null) {
+      throw new JsonParseException("Unknown lock type: " + str);
+    }
+    return result;
+  }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        public T read(final JsonReader jsonReader) throws JsonParseException {
-          JsonElement tree = Streams.parse(jsonReader);
-          JsonObject object = tree.getAsJsonObject();
-          if (object.has("type")) {
-            ResourceType resourceType = ResourceType.fromString(object.get("type").getAsString());
-            if (resourceType == ResourceType.QUOTED) {
-              return (T)gson.getDelegateAdapter(CustomTypeAdapterFactory.this, TypeToken.get(QuotedResource.class)).fromJsonTree(tree);
-            } else if (resourceType == ResourceType.CUSTOM) {
-              return (T)gson.getDelegateAdapter(CustomTypeAdapterFactory.this, TypeToken.get(CustomResource.class)).fromJsonTree(tree);
-            }
-          }
-          throw new JsonParseException("Cannot deserialize " + type + ". It is not a valid Resource JSON.");
-        }
-      };
+  @NotNull
+  private static String nextString(@NotNull final JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return "";
     }
+    return in.nextString();
   }
-}
\ No newline at end of file
+}
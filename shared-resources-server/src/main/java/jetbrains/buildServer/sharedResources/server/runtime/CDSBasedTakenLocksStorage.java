@@ -1,19 +1,19 @@
 package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.File;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.LogUtil;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.report.DiagnosticArtifactsWriter;
 import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -22,20 +22,53 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
   private static final String FILE_NAME = "taken_locks.txt";
   static final String FILE_PATH = SharedResourcesPluginConstants.BASE_ARTIFACT_PATH + "/" + FILE_NAME; // package visibility for tests
   private final static Logger LOG = Logger.getInstance(CDSBasedTakenLocksStorage.class);
-  private static final String SHARED_RESOURCES_TAKEN_LOCKS_CDS_ID = "SharedResourcesTakenLocks";
+  static final String SHARED_RESOURCES_TAKEN_LOCKS_CDS_ID = "SharedResourcesTakenLocks"; // package visibility for tests
   private static final String BUILD_ID_PREFIX = "buildId:";
 
+  /**
+   * Header of the entries stored in the compact format.
+   * Entries without the header are stored in the legacy format: {@code name\ttype\tvalue} per line
+   */
+  @VisibleForTesting
+  static final String COMPACT_FORMAT_HEADER = "#2\n";
+  private static final char READ_LOCK = 'r';
+  private static final char WRITE_LOCK = 'w';
+  /**
+   * Read lock with weight: {@code R<name>\t<value>\t<weight>}
+   */
+  private static final char WEIGHTED_READ_LOCK = 'R';
+
+  /**
+   * Lock names are repeated in the entries of all builds that lock the same resource
+   */
+  private static final Interner<String> ourLockNames = Interners.newWeakInterner();
+
   private final BuildPromotionManager myBuildPromotionManager;
   private final ServerResponsibility myServerResponsibility;
   private final ProjectManager myProjectManager;
   private final BuildsManager myBuildsManager;
+  private final DiagnosticArtifactsWriter myArtifactsWriter;
+
+  /**
+   * In-memory registry of the taken locks, mirrors the contents of the custom data storage.
+   * Is loaded from the storage when the node becomes responsible for managing builds
+   * (server startup or node takeover) and is kept up to date by {@link #store} and by build finish events.
+   * The storage itself is only written to afterwards.
+   *
+   * {@code null} if the registry is not loaded
+   */
+  @Nullable
+  private volatile ConcurrentMap<Long, StoredLocks> myRegistry = null;
+  private final Object myRegistryLock = new Object();
 
   public CDSBasedTakenLocksStorage(@NotNull ProjectManager projectManager,
                                    @NotNull BuildPromotionManager buildPromotionManager,
                                    @NotNull BuildsManager buildsManager,
                                    @NotNull ServerResponsibility serverResponsibility,
-                                   @NotNull EventDispatcher<BuildServerListener> dispatcher) {
+                                   @NotNull EventDispatcher<BuildServerListener> dispatcher,
+                                   @NotNull DiagnosticArtifactsWriter artifactsWriter) {
     myBuildPromotionManager = buildPromotionManager;
+    myArtifactsWriter = artifactsWriter;
     myBuildsManager = buildsManager;
     myServerResponsibility = serverResponsibility;
     myProjectManager = projectManager;
@@ -51,27 +84,49 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
       }
 
       private void removeTakenLocks(@NotNull BuildPromotion buildPromotion) {
-        removeTakenLocksForEntry(buildLocksKey(buildPromotion));
+        synchronized (myRegistryLock) {
+          final ConcurrentMap<Long, StoredLocks> registry = myRegistry;
+          if (registry != null) {
+            registry.remove(buildPromotion.getId());
+          }
+          removeTakenLocksForEntry(buildLocksKey(buildPromotion));
+        }
       }
     });
   }
 
   @Override
   public void store(@NotNull BuildPromotion buildPromotion, @NotNull Map<Lock, String> takenLocks) {
-    saveToStorage(buildPromotion, takenLocks);
+    final Map<String, Lock> storedLocks = toStoredLocks(takenLocks);
+    synchronized (myRegistryLock) {
+      saveToStorage(buildPromotion, storedLocks);
+      final ConcurrentMap<Long, StoredLocks> registry = myRegistry;
+      if (registry != null) {
+        if (storedLocks.isEmpty()) {
+          registry.remove(buildPromotion.getId());
+        } else {
+          registry.put(buildPromotion.getId(), new StoredLocks(buildPromotion, storedLocks));
+        }
+      }
+    }
     // save taken locks artifact for diagnostics purposes
-    saveTakenLocksArtifact(buildPromotion, takenLocks);
+    saveTakenLocksArtifact(buildPromotion, storedLocks);
   }
 
   @NotNull
   @Override
   public Map<String, Lock> load(@NotNull BuildPromotion buildPromotion) {
+    final ConcurrentMap<Long, StoredLocks> registry = getRegistry();
+    if (registry != null) {
+      final StoredLocks stored = registry.get(buildPromotion.getId());
+      return stored == null ? Collections.emptyMap() : stored.myLocks;
+    }
     String value = getTakenLocksStorage().getValue(buildLocksKey(buildPromotion));
     if (value == null) {
       return Collections.emptyMap();
     }
 
-    return deserializeTakenLocks(value);
+    return decodeTakenLocks(value);
   }
 
   @NotNull
@@ -82,10 +137,67 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
   @NotNull
   @Override
   public Map<BuildPromotion, Map<String, Lock>> getAllTakenLocks() {
+    final ConcurrentMap<Long, StoredLocks> registry = getRegistry();
+    if (registry == null) {
+      return readAllTakenLocks();
+    }
+    final Map<BuildPromotion, Map<String, Lock>> result = new HashMap<>(registry.size());
+    for (StoredLocks stored: registry.values()) {
+      final SBuild build = stored.myPromotion.getAssociatedBuild();
+      if (build != null && build.isFinished()) {
+        // finish event of the build was missed, its locks are stale
+        LOG.debug("Removing the stale locks belonging to an already finished build: " + LogUtil.describe(build));
+        synchronized (myRegistryLock) {
+          registry.remove(stored.myPromotion.getId(), stored);
+          removeTakenLocksForEntry(buildLocksKey(stored.myPromotion));
+        }
+        continue;
+      }
+      result.put(stored.myPromotion, stored.myLocks);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the registry of taken locks, loads it from the storage if needed.
+   * The registry is used only if the current node is responsible for managing builds,
+   * as taken locks are updated only by such a node.
+   *
+   * @return registry of taken locks or {@code null}, if the current node does not manage builds
+   */
+  @Nullable
+  private ConcurrentMap<Long, StoredLocks> getRegistry() {
+    if (!myServerResponsibility.canManageBuilds()) {
+      // responsibility may be lost, the registry will be reloaded after the takeover
+      myRegistry = null;
+      return null;
+    }
+    ConcurrentMap<Long, StoredLocks> result = myRegistry;
+    if (result == null) {
+      synchronized (myRegistryLock) {
+        result = myRegistry;
+        if (result == null) {
+          result = new ConcurrentHashMap<>();
+          for (Map.Entry<BuildPromotion, Map<String, Lock>> entry: readAllTakenLocks().entrySet()) {
+            result.put(entry.getKey().getId(), new StoredLocks(entry.getKey(), Collections.unmodifiableMap(entry.getValue())));
+          }
+          myRegistry = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads taken locks of the running builds from the storage, removes stale entries
+   */
+  @NotNull
+  private Map<BuildPromotion, Map<String, Lock>> readAllTakenLocks() {
     Map<String, String> vals = getTakenLocksStorage().getValues();
     if (vals == null) return Collections.emptyMap();
 
     Map<Long, Map<String, Lock>> unfilteredLocks = new HashMap<>();
+    Set<Long> legacyEntries = new HashSet<>();
     for (Map.Entry<String, String> lockEntry: vals.entrySet()) {
       if (!lockEntry.getKey().startsWith(BUILD_ID_PREFIX)) {
         LOG.warn("Incorrect lock entry prefix " + lockEntry.getKey() + ", the entry will be removed");
@@ -95,7 +207,10 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
 
       try {
         Long buildId = Long.parseLong(lockEntry.getKey().substring(BUILD_ID_PREFIX.length()));
-        unfilteredLocks.put(buildId, deserializeTakenLocks(lockEntry.getValue()));
+        unfilteredLocks.put(buildId, decodeTakenLocks(lockEntry.getValue()));
+        if (!isCompactFormat(lockEntry.getValue())) {
+          legacyEntries.add(buildId);
+        }
       } catch (NumberFormatException e) {
         // broken entry
         LOG.warnAndDebugDetails("Could not parse build id from " + lockEntry.getKey() + ", the entry will be removed", e);
@@ -106,9 +221,13 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
     Map<BuildPromotion, Map<String, Lock>> result = new HashMap<>();
     // we need to go through the locks to ensure that they are taken by the existing builds
     for (SBuild build: myBuildsManager.findBuildInstances(unfilteredLocks.keySet())) {
-      unfilteredLocks.remove(build.getBuildId());
+      final Map<String, Lock> locks = unfilteredLocks.remove(build.getBuildId());
       if (build instanceof SRunningBuild) {
-        result.put(build.getBuildPromotion(), unfilteredLocks.get(build.getBuildId()));
+        result.put(build.getBuildPromotion(), locks);
+        if (legacyEntries.contains(build.getBuildId()) && !locks.isEmpty() && myServerResponsibility.canManageBuilds()) {
+          // entry was written by the previous version of the plugin, migrate it to the compact format
+          getTakenLocksStorage().putValue(buildLocksKey(build.getBuildId()), encodeTakenLocks(locks.values()));
+        }
         continue;
       }
 
@@ -138,6 +257,10 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
 
   @Override
   public boolean locksStored(@NotNull BuildPromotion buildPromotion) {
+    final ConcurrentMap<Long, StoredLocks> registry = getRegistry();
+    if (registry != null) {
+      return registry.containsKey(buildPromotion.getId());
+    }
     return getTakenLocksStorage().getValue(buildLocksKey(buildPromotion)) != null;
   }
 
@@ -177,23 +300,115 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
     return res;
   }
 
+  /**
+   * Encodes taken locks in the compact format: header followed by {@code <type char><name>\t<value>} per line.
+   * Weighted read locks have the weight appended: {@code R<name>\t<value>\t<weight>}.
+   * Values of the locks are expected to be trimmed
+   */
+  @VisibleForTesting
   @NotNull
-  static String serializeTakenLocks(@NotNull Map<Lock, String> takenLocks) {
+  static String encodeTakenLocks(@NotNull final Collection<Lock> locks) {
+    final StringBuilder result = new StringBuilder(COMPACT_FORMAT_HEADER);
+    for (Lock lock: locks) {
+      if (lock.isWeighted()) {
+        result.append(WEIGHTED_READ_LOCK)
+              .append(lock.getName())
+              .append('\t')
+              .append(lock.getValue())
+              .append('\t')
+              .append(lock.getWeight())
+              .append('\n');
+      } else {
+        result.append(lock.getType() == LockType.READ ? READ_LOCK : WRITE_LOCK)
+              .append(lock.getName())
+              .append('\t')
+              .append(lock.getValue())
+              .append('\n');
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Decodes taken locks stored either in the compact or in the legacy format
+   */
+  @VisibleForTesting
+  @NotNull
+  static Map<String, Lock> decodeTakenLocks(@NotNull final String serializedValue) {
+    if (!isCompactFormat(serializedValue)) {
+      return deserializeTakenLocks(serializedValue);
+    }
+    final Map<String, Lock> result = new HashMap<>();
+    int lineStart = COMPACT_FORMAT_HEADER.length();
+    while (lineStart < serializedValue.length()) {
+      int lineEnd = serializedValue.indexOf('\n', lineStart);
+      if (lineEnd < 0) {
+        lineEnd = serializedValue.length();
+      }
+      final int separator = serializedValue.indexOf('\t', lineStart);
+      if (separator > lineStart + 1 && separator < lineEnd) {
+        final char type = serializedValue.charAt(lineStart);
+        if (type == READ_LOCK || type == WRITE_LOCK) {
+          final String name = ourLockNames.intern(serializedValue.substring(lineStart + 1, separator));
+          final String value = separator + 1 == lineEnd ? "" : serializedValue.substring(separator + 1, lineEnd);
+          result.put(name, new Lock(name, type == READ_LOCK ? LockType.READ : LockType.WRITE, value));
+        } else if (type == WEIGHTED_READ_LOCK) {
+          final int weightSeparator = serializedValue.lastIndexOf('\t', lineEnd - 1);
+          if (weightSeparator > separator) {
+            final String name = ourLockNames.intern(serializedValue.substring(lineStart + 1, separator));
+            final String value = serializedValue.substring(separator + 1, weightSeparator);
+            result.put(name, new Lock(name, LockType.READ, value, parseWeight(serializedValue.substring(weightSeparator + 1, lineEnd))));
+          }
+        }
+      }
+      lineStart = lineEnd + 1;
+    }
+    return result;
+  }
+
+  private static int parseWeight(@NotNull final String weight) {
+    try {
+      return Integer.parseInt(weight);
+    } catch (NumberFormatException e) {
+      return Lock.DEFAULT_WEIGHT;
+    }
+  }
+
+  private static boolean isCompactFormat(@NotNull final String serializedValue) {
+    return serializedValue.startsWith(COMPACT_FORMAT_HEADER);
+  }
+
+  /**
+   * Serializes taken locks in the legacy format, which is still used for the diagnostic artifact
+   */
+  @NotNull
+  static String serializeTakenLocks(@NotNull Collection<Lock> takenLocks) {
     StringBuilder serializedLocks = new StringBuilder();
-    takenLocks.forEach((lock, value) -> {
-      serializedLocks.append(serializeTakenLock(lock, value)).append('\n');
-    });
+    for (Lock lock: takenLocks) {
+      serializedLocks.append(serializeTakenLock(lock, lock.getValue())).append('\n');
+    }
     return serializedLocks.toString();
   }
 
-  private void saveToStorage(@NotNull BuildPromotion buildPromotion, @NotNull Map<Lock, String> takenLocks) {
-    if (takenLocks.isEmpty()) {
+  private void saveToStorage(@NotNull BuildPromotion buildPromotion, @NotNull Map<String, Lock> storedLocks) {
+    if (storedLocks.isEmpty()) {
       removeTakenLocksForEntry(buildLocksKey(buildPromotion));
     } else {
-      getTakenLocksStorage().putValue(buildLocksKey(buildPromotion), serializeTakenLocks(takenLocks));
+      getTakenLocksStorage().putValue(buildLocksKey(buildPromotion), encodeTakenLocks(storedLocks.values()));
     }
   }
 
+  @NotNull
+  private static Map<String, Lock> toStoredLocks(@NotNull Map<Lock, String> takenLocks) {
+    final Map<String, Lock> result = new HashMap<>(takenLocks.size());
+    // values are restored the same way they are restored from the storage
+    takenLocks.forEach((lock, value) -> {
+      final String name = ourLockNames.intern(lock.getName());
+      result.put(name, new Lock(name, lock.getType(), value.trim(), lock.getWeight()));
+    });
+    return Collections.unmodifiableMap(result);
+  }
+
   @NotNull
   private static String buildLocksKey(@NotNull BuildPromotion promotion) {
     return buildLocksKey(promotion.getId());
@@ -204,18 +419,21 @@ public class CDSBasedTakenLocksStorage implements LocksStorage {
     return BUILD_ID_PREFIX + buildId;
   }
 
-  private void saveTakenLocksArtifact(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<Lock, String> takenLocks) {
-    if (!takenLocks.isEmpty()) {
-      try {
-        final File artifact = new File(buildPromotion.getArtifactsDirectory(), FILE_PATH);
-        if (FileUtil.createParentDirs(artifact)) {
-          FileUtil.writeFile(artifact, serializeTakenLocks(takenLocks), StandardCharsets.UTF_8);
-        } else {
-          LOG.warn("Failed to create parent dirs for file with taken locks for build " + LogUtil.describe(buildPromotion));
-        }
-      } catch (IOException e) {
-        LOG.warnAndDebugDetails("Failed to store taken locks for build " + LogUtil.describe(buildPromotion), e);
-      }
+  private void saveTakenLocksArtifact(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<String, Lock> storedLocks) {
+    if (!storedLocks.isEmpty()) {
+      myArtifactsWriter.write(buildPromotion, FILE_PATH, writer -> writer.write(serializeTakenLocks(storedLocks.values())));
+    }
+  }
+
+  private static final class StoredLocks {
+    @NotNull
+    private final BuildPromotion myPromotion;
+    @NotNull
+    private final Map<String, Lock> myLocks;
+
+    StoredLocks(@NotNull final BuildPromotion promotion, @NotNull final Map<String, Lock> locks) {
+      myPromotion = promotion;
+      myLocks = locks;
     }
   }
 }
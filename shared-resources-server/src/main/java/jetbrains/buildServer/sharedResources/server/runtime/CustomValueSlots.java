@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongObjectHashMap;
+import java.util.*;
+import javax.annotation.concurrent.NotThreadSafe;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tracks free and occupied values of a resource with custom values.
+ *
+ * Every value of the resource occupies its own slot, so duplicate values are treated as separate slots:
+ * a resource with values {@code [a, a, b]} can be locked by two builds with value {@code a}.
+ * Slots are tracked by value index of the resource, see {@link CustomResource#getValueIndex(String)}.
+ */
+@NotThreadSafe
+public class CustomValueSlots {
+
+  @NotNull
+  private final CustomResource myResource;
+
+  @NotNull
+  private final BitSet myOccupied;
+
+  public CustomValueSlots(@NotNull final CustomResource resource) {
+    myResource = resource;
+    myOccupied = new BitSet(resource.getSlotsCount());
+  }
+
+  /**
+   * Creates slots of the resource, occupied by the taken locks and by the values reserved during the current distribution cycle
+   *
+   * @param resource       resource with custom values
+   * @param takenLock      locks taken on the resource, if any
+   * @param reservedValues indices of the values reserved during the current distribution cycle, keyed by promotion id
+   * @return slots of the resource
+   */
+  @NotNull
+  public static CustomValueSlots occupiedBy(@NotNull final CustomResource resource,
+                                            @Nullable final TakenLock takenLock,
+                                            @NotNull final TLongObjectHashMap<int[]> reservedValues) {
+    final CustomValueSlots result = new CustomValueSlots(resource);
+    reservedValues.forEachValue(valueIndices -> {
+      result.occupyAll(valueIndices);
+      return true;
+    });
+    if (takenLock != null) {
+      takenLock.forEachReadLockValues((bp, valueIndices) -> {
+        if (reservedValues.containsKey(bp.getId())) return; // already occupied
+        result.occupyAll(valueIndices);
+      });
+      takenLock.forEachWriteLockValues((bp, valueIndices) -> result.occupyAll(valueIndices));
+    }
+    return result;
+  }
+
+  /**
+   * Occupies first free slot with the value of the given index
+   *
+   * @param valueIndex index of the value to occupy, see {@link CustomResource#getValueIndex(String)}
+   * @return {@code true} if a free slot was occupied, {@code false} if the resource has no free slots with the given value
+   */
+  public boolean occupy(final int valueIndex) {
+    for (int slot : myResource.getSlots(valueIndex)) {
+      if (!myOccupied.get(slot)) {
+        myOccupied.set(slot);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void occupyAll(@NotNull final int[] valueIndices) {
+    for (int valueIndex : valueIndices) {
+      occupy(valueIndex);
+    }
+  }
+
+  /**
+   * Checks whether any slot with the value of the given index is occupied
+   *
+   * @param valueIndex index of the value to check
+   * @return {@code true} if the value is occupied at least once
+   */
+  public boolean isOccupied(final int valueIndex) {
+    for (int slot : myResource.getSlots(valueIndex)) {
+      if (myOccupied.get(slot)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns indices of the values of the first free slots. Indices are returned only if all of the values are available
+   *
+   * @param count number of values to return
+   * @return indices of the free values or {@code null} if there are less than {@code count} free slots
+   */
+  @Nullable
+  public int[] getNextFreeValueIndices(final int count) {
+    final int[] result = new int[count];
+    int found = 0;
+    for (int slot = myOccupied.nextClearBit(0); slot < myResource.getSlotsCount() && found < count; slot = myOccupied.nextClearBit(slot + 1)) {
+      result[found++] = myResource.getSlotValueIndex(slot);
+    }
+    return found == count ? result : null;
+  }
+}
@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import gnu.trove.TLongObjectHashMap;
 import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.serverSide.BuildPromotion;
@@ -9,6 +10,8 @@ import jetbrains.buildServer.serverSide.buildDistribution.BuildDistributorInput;
 import jetbrains.buildServer.serverSide.impl.buildDistribution.BuildDistributorInputEx;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.DistributionData;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
 import org.jetbrains.annotations.NotNull;
 
 public class DistributionDataAccessor {
@@ -31,8 +34,25 @@ public class DistributionDataAccessor {
     return myData.getFairSet();
   }
 
+  public boolean markFairSetInitialized() {
+    return myData.markFairSetInitialized();
+  }
+
   @NotNull
   public ReservedValuesProvider getReservedValuesProvider() {
     return myData.getReservedValuesProvider();
   }
-}
\ No newline at end of file
+
+  @NotNull
+  public TakenLocksSnapshot getTakenLocksSnapshot() {
+    return myData.getTakenLocksSnapshot();
+  }
+
+  /**
+   * Returns locks of the running composite builds resolved during the current distribution cycle, keyed by composite promotion id
+   */
+  @NotNull
+  public TLongObjectHashMap<Map<Resource, Lock>> getResolvedChainLocks() {
+    return myData.getResolvedChainLocks();
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Comparator;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Orders build promotions waiting for locks in the fair set.
+ *
+ * Builds from the higher priority class come first, builds of the same priority class are ordered by the time they were queued.
+ * Builds with unknown queued time go after the builds with known one.
+ */
+public class QueuePriorityComparator implements Comparator<BuildPromotion> {
+
+  private static final int DEFAULT_PRIORITY = 0;
+
+  @NotNull
+  private final ToIntFunction<BuildPromotion> myPriority;
+
+  @NotNull
+  private final ToLongFunction<BuildPromotion> myQueuedTime;
+
+  public QueuePriorityComparator(@NotNull final PriorityClassManager priorityClassManager) {
+    this(promotion -> {
+      final SBuildType buildType = promotion.getBuildType();
+      return buildType == null ? DEFAULT_PRIORITY : priorityClassManager.getBuildTypePriorityClass(buildType).getPriority();
+    }, promotion -> {
+      final SQueuedBuild queuedBuild = promotion.getQueuedBuild();
+      return queuedBuild == null ? Long.MAX_VALUE : queuedBuild.getWhenQueued().getTime();
+    });
+  }
+
+  private QueuePriorityComparator(@NotNull final ToIntFunction<BuildPromotion> priority,
+                                  @NotNull final ToLongFunction<BuildPromotion> queuedTime) {
+    myPriority = priority;
+    myQueuedTime = queuedTime;
+  }
+
+  @NotNull
+  static QueuePriorityComparator create(@NotNull final ToIntFunction<BuildPromotion> priority,
+                                        @NotNull final ToLongFunction<BuildPromotion> queuedTime) {
+    return new QueuePriorityComparator(priority, queuedTime);
+  }
+
+  @Override
+  public int compare(@NotNull final BuildPromotion first, @NotNull final BuildPromotion second) {
+    final int byPriority = Integer.compare(myPriority.applyAsInt(second), myPriority.applyAsInt(first));
+    if (byPriority != 0) {
+      return byPriority;
+    }
+    return Long.compare(myQueuedTime.applyAsLong(first), myQueuedTime.applyAsLong(second));
+  }
+
+  /**
+   * Checks whether the first promotion has to be served strictly before the second one
+   */
+  public boolean precedes(@NotNull final BuildPromotion first, @NotNull final BuildPromotion second) {
+    return compare(first, second) < 0;
+  }
+}
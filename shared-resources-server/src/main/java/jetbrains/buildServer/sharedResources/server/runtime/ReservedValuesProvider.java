@@ -22,46 +22,42 @@ import org.jetbrains.annotations.NotNull;
 public class ReservedValuesProvider {
   private final static Logger LOG = Logger.getInstance(ReservedValuesProvider.class);
 
+  private final static TLongObjectHashMap<int[]> NO_RESERVED_VALUES = new TLongObjectHashMap<>();
+
   /**
    * Storage for actual locked values associated with the build
-   * One value per resource per build is currently supported
+   * One lock per resource per build is supported. Values are stored as value indices of the resource,
+   * see {@link jetbrains.buildServer.sharedResources.model.resources.CustomResource#getValueIndex(String)}.
+   * Weighted lock reserves several values
    */
-  private final Map<String, TLongObjectHashMap<String>> myReservedValues = new HashMap<>();
+  private final Map<String, TLongObjectHashMap<int[]>> myReservedValues = new HashMap<>();
 
   /**
    * Remembers values of the locks reserved for the current build promotion.
    *
-   * @param promotion   promotion to whose reserved values to remember
-   * @param reservedValues map ({@code resourceId -> value}) of requested resource values
+   * @param promotion      promotion to whose reserved values to remember
+   * @param reservedValues map ({@code resourceId -> value indices}) of requested resource values
    */
-  public void rememberReservedValues(@NotNull final BuildPromotionEx promotion, @NotNull final Map<String, String> reservedValues) {
+  public void rememberReservedValues(@NotNull final BuildPromotionEx promotion, @NotNull final Map<String, int[]> reservedValues) {
     final long promotionId = promotion.getId();
-    reservedValues.forEach((resourceId, value) -> {
+    reservedValues.forEach((resourceId, valueIndices) -> {
       // store the value
-      myReservedValues.computeIfAbsent(resourceId, it -> new TLongObjectHashMap<>()).put(promotionId, value);
+      myReservedValues.computeIfAbsent(resourceId, it -> new TLongObjectHashMap<>()).put(promotionId, valueIndices);
     });
   }
 
   /**
-   * Returns set of values reserved during the current distribution cycle
+   * Returns values reserved during the current distribution cycle
    *
    * @param resource         resource to compute for
-   * @return map of values for the given resource where key is id of the build which reserved the value
-   * assigned to promotions other that the given one
+   * @return value indices for the given resource keyed by id of the build which reserved the values.
+   * Returned map must not be modified
    */
   @NotNull
-  public Map<Long, String> getReservedValues(@NotNull final Resource resource) {
-    // every promotion can lock at most one value of the resource
-    final Map<Long, String> result = new HashMap<>();
-    final TLongObjectHashMap<String> reservedValues = myReservedValues.get(resource.getId());
-    if (reservedValues != null) {
-      reservedValues.forEachEntry((promoId, value) -> {
-        result.put(promoId, value);
-        return true;
-      });
-    }
-
-    return result;
+  public TLongObjectHashMap<int[]> getReservedValues(@NotNull final Resource resource) {
+    // every promotion can lock at most one value of the resource or several values by a weighted lock
+    final TLongObjectHashMap<int[]> result = myReservedValues.get(resource.getId());
+    return result != null ? result : NO_RESERVED_VALUES;
   }
 
   /**
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.users.User;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.*;
+
+/**
+ * Queued builds waiting for the resources.
+ *
+ * Unlike the fair set, which lives for one distribution cycle, the queue is kept across the distribution cycles.
+ * A build is added to the queue of the resource when the resource prevents it from starting for the first time
+ * and is removed from all the queues when it leaves the build queue.
+ * Builds in the queue of the resource are ordered by the time they started to wait for it.
+ * Builds waiting for write lock form the initial fair set of every distribution cycle, see {@link TakenLocksImpl}.
+ * A build that is not checked by the precondition for a while, e.g. because another precondition holds it back,
+ * is removed from the queues, so it does not block the resources it may never take.
+ *
+ * If reservations are enabled, a resource with builds waiting for write lock on it is reserved for the longest waiting one of them
+ * for a limited time. Other builds can not take locks on the reserved resource, so it is freed for the waiting build
+ */
+public class ResourceWaitQueue {
+
+  private static final long DEFAULT_AGING_THRESHOLD_SECONDS = 0;
+
+  private static final long DEFAULT_RESERVATION_TIMEOUT_SECONDS = 1800;
+
+  private static final long DEFAULT_EVALUATION_TIMEOUT_SECONDS = 300;
+
+  /**
+   * Resource id -> (promotion id -> waiting build), in the order of waiting
+   */
+  @NotNull
+  private final Map<String, LinkedHashMap<Long, Waiting>> myWaiting = new HashMap<>();
+
+  /**
+   * Resource id -> active reservation
+   */
+  @NotNull
+  private final Map<String, Reservation> myReservations = new HashMap<>();
+
+  @NotNull
+  private final LongSupplier myClock;
+
+  public ResourceWaitQueue(@NotNull final EventDispatcher<BuildServerListener> dispatcher) {
+    this(dispatcher, System::currentTimeMillis);
+  }
+
+  ResourceWaitQueue(@NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                    @NotNull final LongSupplier clock) {
+    myClock = clock;
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildRemovedFromQueue(@NotNull SQueuedBuild queued, User user, String comment) {
+        // the build has either started or was removed, it does not wait anymore
+        remove(queued.getBuildPromotion().getId());
+      }
+    });
+  }
+
+  /**
+   * Records that the queued build can not start because of the given resources
+   *
+   * @param promotion build promotion of the queued build
+   * @param blockedBy resources that are not available with the locks requested on them
+   */
+  public synchronized void onBlocked(@NotNull final BuildPromotion promotion, @NotNull final Map<Resource, Lock> blockedBy) {
+    final long now = myClock.getAsLong();
+    blockedBy.forEach((resource, lock) -> {
+      final Waiting waiting = myWaiting.computeIfAbsent(resource.getId(), id -> new LinkedHashMap<>())
+                                       .computeIfAbsent(promotion.getId(), id -> new Waiting(promotion, now));
+      // the build keeps its place in the queue if the requested lock changes
+      waiting.myWrite = lock.getType() == LockType.WRITE;
+      waiting.myEvaluated = now;
+    });
+  }
+
+  /**
+   * Records that the given resources do not prevent the queued build from starting anymore.
+   * The build is removed from the queues of these resources
+   */
+  public synchronized void onPassed(@NotNull final BuildPromotion promotion, @NotNull final Collection<Resource> passed) {
+    for (Resource resource : passed) {
+      final Map<Long, Waiting> waiting = myWaiting.get(resource.getId());
+      if (waiting != null && waiting.remove(promotion.getId()) != null && waiting.isEmpty()) {
+        myWaiting.remove(resource.getId());
+      }
+    }
+  }
+
+  synchronized void remove(final long promotionId) {
+    final Iterator<LinkedHashMap<Long, Waiting>> it = myWaiting.values().iterator();
+    while (it.hasNext()) {
+      final Map<Long, Waiting> waiting = it.next();
+      waiting.remove(promotionId);
+      if (waiting.isEmpty()) {
+        it.remove();
+      }
+    }
+    myReservations.values().removeIf(reservation -> reservation.myPromotionId == promotionId);
+  }
+
+  /**
+   * Finds the build that waits for the resource longer than the aging threshold and longer than the given build.
+   * Builds that were not checked by the precondition within the evaluation timeout are skipped:
+   * they may be held back by something else and would block the resource for nothing.
+   * Aging is disabled by default
+   *
+   * @param resource    resource to check
+   * @param promotionId id of the promotion of the build that requests the resource
+   * @param excluded    ids of the promotions that should not be taken into account, e.g. builds already scheduled to start
+   * @return wait time of the found build, in milliseconds, or {@code null} if there is no such build
+   */
+  @Nullable
+  public synchronized Long findAgedPredecessor(@NotNull final Resource resource,
+                                               final long promotionId,
+                                               @NotNull final LongPredicate excluded) {
+    final long threshold = getAgingThreshold();
+    if (threshold <= 0) {
+      return null;
+    }
+    final Map<Long, Waiting> waiting = myWaiting.get(resource.getId());
+    if (waiting == null) {
+      return null;
+    }
+    final long now = myClock.getAsLong();
+    final long evaluationTimeout = getEvaluationTimeout();
+    for (Map.Entry<Long, Waiting> entry : waiting.entrySet()) {
+      final long waitTime = now - entry.getValue().mySince;
+      if (waitTime < threshold || entry.getKey() == promotionId) {
+        // builds are ordered by the wait start, the rest of them waited less
+        return null;
+      }
+      if (evaluationTimeout > 0 && now - entry.getValue().myEvaluated > evaluationTimeout) {
+        continue;
+      }
+      if (!excluded.test(entry.getKey())) {
+        return waitTime;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the build the resource is reserved for or would be reserved for by {@link #reserve}.
+   * Does not change the reservations, e.g. when the distribution is emulated
+   *
+   * @param resource resource to check
+   * @param excluded ids of the promotions that should not be taken into account, e.g. builds already scheduled to start
+   * @return id of the promotion of the build the resource is reserved for or {@code null} if the resource is not reserved
+   */
+  @Nullable
+  public synchronized Long getReservation(@NotNull final Resource resource, @NotNull final LongPredicate excluded) {
+    return findReservation(resource, excluded, false);
+  }
+
+  /**
+   * Reserves the resource for the longest waiting build that waits for write lock on it and returns the build the resource is reserved for.
+   *
+   * The reservation is kept until the build leaves the queue or the reservation times out.
+   * Build whose reservation has timed out can not reserve the resource again, the resource is reserved for the next waiting build
+   *
+   * @param resource resource to check
+   * @param excluded ids of the promotions that should not be taken into account, e.g. builds already scheduled to start
+   * @return id of the promotion of the build the resource is reserved for or {@code null} if the resource is not reserved
+   */
+  @Nullable
+  public synchronized Long reserve(@NotNull final Resource resource, @NotNull final LongPredicate excluded) {
+    return findReservation(resource, excluded, true);
+  }
+
+  @Nullable
+  private Long findReservation(@NotNull final Resource resource, @NotNull final LongPredicate excluded, final boolean update) {
+    if (!TeamCityProperties.getBoolean(RESERVATIONS_ENABLED)) {
+      return null;
+    }
+    final long now = myClock.getAsLong();
+    final long timeout = TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(RESERVATION_TIMEOUT_SECONDS, DEFAULT_RESERVATION_TIMEOUT_SECONDS));
+    final Map<Long, Waiting> waiting = myWaiting.get(resource.getId());
+    Reservation reservation = myReservations.get(resource.getId());
+    Reservation expired = null;
+    if (reservation != null && now - reservation.mySince >= timeout) {
+      expired = reservation;
+      reservation = null;
+      if (update) {
+        final Waiting expiredWaiting = waiting == null ? null : waiting.get(expired.myPromotionId);
+        if (expiredWaiting != null) {
+          expiredWaiting.myReservationExpired = true;
+        }
+        myReservations.remove(resource.getId());
+      }
+    }
+    if (reservation == null && waiting != null) {
+      for (Map.Entry<Long, Waiting> entry : waiting.entrySet()) {
+        final Waiting candidate = entry.getValue();
+        final boolean candidateExpired = candidate.myReservationExpired || expired != null && expired.myPromotionId == entry.getKey();
+        if (candidate.myWrite && !candidateExpired && !excluded.test(entry.getKey())) {
+          reservation = new Reservation(entry.getKey(), now);
+          if (update) {
+            myReservations.put(resource.getId(), reservation);
+          }
+          break;
+        }
+      }
+    }
+    if (reservation == null || excluded.test(reservation.myPromotionId)) {
+      // locks of the build scheduled to start are already taken, the reservation is not needed
+      return null;
+    }
+    return reservation.myPromotionId;
+  }
+
+  /**
+   * Returns builds waiting for write locks that were checked by the precondition recently.
+   * Builds that were not checked longer than the evaluation timeout are removed from the queues
+   *
+   * @return map of resource id -> builds waiting for write lock on the resource, in the order of waiting.
+   * Empty map if the evaluation timeout is not positive
+   */
+  @NotNull
+  public synchronized Map<String, List<BuildPromotion>> getWaitingWriters() {
+    final long timeout = getEvaluationTimeout();
+    if (timeout <= 0) {
+      return Collections.emptyMap();
+    }
+    removeNotEvaluatedSince(myClock.getAsLong() - timeout);
+    final Map<String, List<BuildPromotion>> result = new HashMap<>();
+    myWaiting.forEach((resourceId, waiting) -> waiting.values().forEach(it -> {
+      if (it.myWrite) {
+        result.computeIfAbsent(resourceId, id -> new ArrayList<>()).add(it.myPromotion);
+      }
+    }));
+    return result;
+  }
+
+  private void removeNotEvaluatedSince(final long time) {
+    final Iterator<Map.Entry<String, LinkedHashMap<Long, Waiting>>> it = myWaiting.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, LinkedHashMap<Long, Waiting>> entry = it.next();
+      final Reservation reservation = myReservations.get(entry.getKey());
+      entry.getValue().values().removeIf(waiting -> {
+        if (waiting.myEvaluated >= time) {
+          return false;
+        }
+        if (reservation != null && reservation.myPromotionId == waiting.myPromotion.getId()) {
+          myReservations.remove(entry.getKey());
+        }
+        return true;
+      });
+      if (entry.getValue().isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private long getEvaluationTimeout() {
+    return TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(WAIT_QUEUE_EVALUATION_TIMEOUT_SECONDS, DEFAULT_EVALUATION_TIMEOUT_SECONDS));
+  }
+
+  private long getAgingThreshold() {
+    return TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(WAIT_AGING_THRESHOLD_SECONDS, DEFAULT_AGING_THRESHOLD_SECONDS));
+  }
+
+  private static final class Waiting {
+
+    @NotNull
+    private final BuildPromotion myPromotion;
+
+    private final long mySince;
+
+    /**
+     * Last time the build was blocked by the resource
+     */
+    private long myEvaluated;
+
+    private boolean myWrite;
+
+    private boolean myReservationExpired;
+
+    private Waiting(@NotNull final BuildPromotion promotion, final long since) {
+      myPromotion = promotion;
+      mySince = since;
+      myEvaluated = since;
+    }
+  }
+
+  private static final class Reservation {
+
+    private final long myPromotionId;
+
+    private final long mySince;
+
+    private Reservation(final long promotionId, final long since) {
+      myPromotionId = promotionId;
+      mySince = since;
+    }
+  }
+}
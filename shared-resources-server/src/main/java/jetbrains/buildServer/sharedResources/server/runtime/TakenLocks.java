@@ -28,6 +28,15 @@ public interface TakenLocks {
   Map<Resource, TakenLock> collectTakenLocks(@NotNull Collection<RunningBuildEx> runningBuilds,
                                              @NotNull final Collection<QueuedBuildInfo> startingQueuedBuilds);
 
+  /**
+   * Adds locks of the queued builds, that were scheduled to start after the taken locks had been collected
+   *
+   * @param takenLocks           taken locks previously returned by {@link #collectTakenLocks(Collection, Collection)}
+   * @param startingQueuedBuilds queued builds which were scheduled to start
+   */
+  void addStartingBuilds(@NotNull final Map<Resource, TakenLock> takenLocks,
+                         @NotNull final Collection<QueuedBuildInfo> startingQueuedBuilds);
+
   Map<Resource, String> getUnavailableLocks(@NotNull final Collection<Lock> locksToTake,
                                             @NotNull final Map<Resource, TakenLock> takenLocks,
                                             @NotNull final String projectId,
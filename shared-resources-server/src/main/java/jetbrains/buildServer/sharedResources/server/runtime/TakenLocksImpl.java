@@ -2,9 +2,15 @@
 
 package jetbrains.buildServer.sharedResources.server.runtime;
 
+import gnu.trove.TLongHashSet;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.sharedResources.model.TakenLock;
@@ -17,7 +23,6 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
-import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.impl.Lazy;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -29,6 +34,10 @@ import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstan
  */
 public class TakenLocksImpl implements TakenLocks {
 
+  private static final int DEFAULT_PARALLEL_COLLECTION_THRESHOLD = 2000;
+
+  private static final int DEFAULT_PARALLEL_COLLECTION_THREADS = 4;
+
   @NotNull
   private final Locks myLocks;
 
@@ -41,14 +50,32 @@ public class TakenLocksImpl implements TakenLocks {
   @NotNull
   private final SharedResourcesFeatures myFeatures;
 
+  @NotNull
+  private final QueuePriorityComparator myPriorityComparator;
+
+  @NotNull
+  private final ResourceWaitQueue myWaitQueue;
+
+  /**
+   * Pool collecting the taken locks on large servers, created on first use
+   */
+  @Nullable
+  private volatile ForkJoinPool myCollectionPool;
+
+  private volatile boolean myDisposed = false;
+
   public TakenLocksImpl(@NotNull final Locks locks,
                         @NotNull final Resources resources,
                         @NotNull final LocksStorage locksStorage,
-                        @NotNull final SharedResourcesFeatures features) {
+                        @NotNull final SharedResourcesFeatures features,
+                        @NotNull final QueuePriorityComparator priorityComparator,
+                        @NotNull final ResourceWaitQueue waitQueue) {
     myLocks = locks;
     myResources = resources;
     myLocksStorage = locksStorage;
     myFeatures = features;
+    myPriorityComparator = priorityComparator;
+    myWaitQueue = waitQueue;
   }
 
   @NotNull
@@ -70,37 +97,137 @@ public class TakenLocksImpl implements TakenLocks {
     }
     startingQueuedBuilds.forEach(qb -> buildPromotions.add((BuildPromotionEx)qb.getBuildPromotionInfo()));
 
+    final int threshold = TeamCityProperties.getInteger(SharedResourcesPluginConstants.PARALLEL_COLLECTION_THRESHOLD, DEFAULT_PARALLEL_COLLECTION_THRESHOLD);
+    final ForkJoinPool pool = threshold > 0 && buildPromotions.size() >= threshold ? getCollectionPool() : null;
+    if (pool != null) {
+      return collectInParallel(pool, new ArrayList<>(buildPromotions), takenLocks);
+    }
+    return collect(buildPromotions, takenLocks);
+  }
+
+  @NotNull
+  private Map<Resource, TakenLock> collect(@NotNull final Collection<BuildPromotion> buildPromotions,
+                                           @NotNull final Map<BuildPromotion, Map<String, Lock>> storedLocks) {
     final Map<Resource, TakenLock> result = new HashMap<>();
     CachingProjectResourcesMap projectResourcesMap = new CachingProjectResourcesMap(myResources);
     for (BuildPromotion bp : buildPromotions) {
-      final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(bp);
-      if (features.isEmpty()) continue;
+      addPromotionLocks(bp, storedLocks.get(bp), projectResourcesMap, result);
+    }
+    return result;
+  }
 
-      // at this point we have features
-      Map<String, Lock> locks = takenLocks.get(bp);
-      if (locks == null) {
-        locks = myLocks.fromBuildFeaturesAsMap(features); // in the future: <String, Set<Lock>>
-      }
-      if (locks.isEmpty()) continue;
-
-      final SBuildType buildType = bp.getBuildType();
-      if (buildType != null) {
-        // get resources defined in project tree, respecting inheritance
-        final Map<String, Resource> resources = projectResourcesMap.getResourcesMap(buildType.getProject());
-        // resolve locks against resources defined in project tree
-        locks.forEach((name, lock) -> {
-          // collection, promotion, resource, lock
-          final Resource resource = resources.get(name);
-          if (resource != null) {
-            updateTakenLocks(resource, lock, (BuildPromotionEx)bp, result);
-          }
-        });
-      }
+  /**
+   * Splits the promotions into partitions, one per thread of the pool, and merges taken locks collected for the partitions.
+   * The first partition is processed by the calling thread
+   */
+  @NotNull
+  private Map<Resource, TakenLock> collectInParallel(@NotNull final ForkJoinPool pool,
+                                                     @NotNull final List<BuildPromotion> buildPromotions,
+                                                     @NotNull final Map<BuildPromotion, Map<String, Lock>> storedLocks) {
+    final int partitions = pool.getParallelism() + 1;
+    final int partitionSize = (buildPromotions.size() + partitions - 1) / partitions;
+    final List<ForkJoinTask<Map<Resource, TakenLock>>> tasks = new ArrayList<>(partitions - 1);
+    for (int from = partitionSize; from < buildPromotions.size(); from += partitionSize) {
+      final List<BuildPromotion> partition = buildPromotions.subList(from, Math.min(from + partitionSize, buildPromotions.size()));
+      tasks.add(pool.submit(() -> collect(partition, storedLocks)));
     }
+    final Map<Resource, TakenLock> result = collect(buildPromotions.subList(0, Math.min(partitionSize, buildPromotions.size())), storedLocks);
+    for (ForkJoinTask<Map<Resource, TakenLock>> task : tasks) {
+      task.join().forEach((resource, takenLock) -> {
+        final TakenLock existing = result.putIfAbsent(resource, takenLock);
+        if (existing != null) {
+          existing.addAll(takenLock);
+        }
+      });
+    }
+    return result;
+  }
 
+  /**
+   * @return pool collecting the taken locks or {@code null} if the component is disposed
+   */
+  @Nullable
+  private ForkJoinPool getCollectionPool() {
+    ForkJoinPool result = myCollectionPool;
+    if (result == null) {
+      synchronized (this) {
+        result = myCollectionPool;
+        if (result == null && !myDisposed) {
+          final AtomicInteger counter = new AtomicInteger();
+          // worker threads are daemons and are terminated when idle
+          result = new ForkJoinPool(getCollectionThreads(), pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Shared Resources taken locks collector " + counter.incrementAndGet());
+            return thread;
+          }, null, false);
+          myCollectionPool = result;
+        }
+      }
+    }
     return result;
   }
 
+  /**
+   * Number of threads is read when the pool is created, so that the property set after the plugin is loaded is respected
+   */
+  private static int getCollectionThreads() {
+    return Math.max(1, TeamCityProperties.getInteger(SharedResourcesPluginConstants.PARALLEL_COLLECTION_THREADS,
+                                                     Math.min(DEFAULT_PARALLEL_COLLECTION_THREADS, Runtime.getRuntime().availableProcessors())));
+  }
+
+  /**
+   * Shuts down the pool collecting the taken locks. Taken locks are collected by the calling thread afterwards
+   */
+  public void dispose() {
+    final ForkJoinPool pool;
+    synchronized (this) {
+      myDisposed = true;
+      pool = myCollectionPool;
+      myCollectionPool = null;
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Override
+  public void addStartingBuilds(@NotNull final Map<Resource, TakenLock> takenLocks,
+                                @NotNull final Collection<QueuedBuildInfo> startingQueuedBuilds) {
+    CachingProjectResourcesMap projectResourcesMap = new CachingProjectResourcesMap(myResources);
+    for (QueuedBuildInfo qb : startingQueuedBuilds) {
+      addPromotionLocks((BuildPromotionEx)qb.getBuildPromotionInfo(), null, projectResourcesMap, takenLocks);
+    }
+  }
+
+  private void addPromotionLocks(@NotNull final BuildPromotion bp,
+                                 @Nullable final Map<String, Lock> storedLocks,
+                                 @NotNull final CachingProjectResourcesMap projectResourcesMap,
+                                 @NotNull final Map<Resource, TakenLock> result) {
+    final Collection<SharedResourcesFeature> features = myFeatures.searchForFeatures(bp);
+    if (features.isEmpty()) return;
+
+    // at this point we have features
+    Map<String, Lock> locks = storedLocks;
+    if (locks == null) {
+      locks = myLocks.fromBuildFeaturesAsMap(features); // in the future: <String, Set<Lock>>
+    }
+    if (locks.isEmpty()) return;
+
+    final SBuildType buildType = bp.getBuildType();
+    if (buildType != null) {
+      // get resources defined in project tree, respecting inheritance
+      final Map<String, Resource> resources = projectResourcesMap.getResourcesMap(buildType.getProject());
+      // resolve locks against resources defined in project tree
+      locks.forEach((name, lock) -> {
+        // collection, promotion, resource, lock
+        final Resource resource = resources.get(name);
+        if (resource != null) {
+          updateTakenLocks(resource, lock, (BuildPromotionEx)bp, result);
+        }
+      });
+    }
+  }
+
   private void updateTakenLocks(@NotNull final Resource resource,
                                 @NotNull final Lock lock,
                                 @NotNull final BuildPromotionEx bpEx,
@@ -128,6 +255,7 @@ public class TakenLocksImpl implements TakenLocks {
                                                    @NotNull final BuildPromotion promotion) {
     final Map<String, Resource> resources = myResources.getResourcesMap(projectId);
     final Map<Resource, String> result = new HashMap<>();
+    initFairSet(distributionDataAccessor);
     locksToTake.forEach(lock -> {
       final Resource resource = resources.get(lock.getName());
       if (resource != null) {
@@ -150,6 +278,7 @@ public class TakenLocksImpl implements TakenLocks {
                                                    @NotNull final BuildPromotion promotion) {
     final Map<Resource, String> result = new HashMap<>();
     Map<Resource, TakenLock> chainTakenLocks = purifyTakenLocks(takenLocks, chainLocks);
+    initFairSet(distributionDataAccessor);
     locksToTake.forEach((name, lock) -> {
       final Resource resource = chainNodeResources.get(name);
       if (resource != null) {
@@ -169,17 +298,21 @@ public class TakenLocksImpl implements TakenLocks {
     return cachedResources.computeIfAbsent(btProjectId, myResources::getResourcesMap);
   }
 
+  /**
+   * Hides locks taken by the members of the build chain. Taken locks are not copied, views are created instead
+   */
   private Map<Resource, TakenLock> purifyTakenLocks(final Map<Resource, TakenLock> takenLocks,
                                                     final Map<Resource, Map<BuildPromotionEx, Lock>> chainLocks) {
-    Map<Resource, TakenLock> result = new HashMap<>();
-    takenLocks.forEach((rc, tl) -> {
-      Map<BuildPromotionEx, Lock> chainTakenLock = chainLocks.get(rc);
-      if (chainTakenLock != null) {
-        result.put(rc, new TakenLock(rc,
-                                     CollectionsUtil.filterMapByKeys(tl.getReadLocks(), key -> !chainTakenLock.containsKey(key)),
-                                     CollectionsUtil.filterMapByKeys(tl.getWriteLocks(), key -> !chainTakenLock.containsKey(key))));
-      } else {
-        result.put(rc, tl);
+    if (chainLocks.isEmpty()) {
+      return takenLocks;
+    }
+    Map<Resource, TakenLock> result = new HashMap<>(takenLocks);
+    chainLocks.forEach((rc, chainTakenLock) -> {
+      final TakenLock tl = takenLocks.get(rc);
+      if (tl != null) {
+        final TLongHashSet chainPromotionIds = new TLongHashSet(chainTakenLock.size());
+        chainTakenLock.keySet().forEach(promotion -> chainPromotionIds.add(promotion.getId()));
+        result.put(rc, tl.without(chainPromotionIds));
       }
     });
     return result;
@@ -217,9 +350,9 @@ public class TakenLocksImpl implements TakenLocks {
     final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
       case READ:   // check at least one value is available
-        // check for unique writeLocks
-        List<BuildPromotion> promosInFairSet = distributionDataAccessor.getFairSet().get(resource.getId());
-        if (promosInFairSet != null && !promosInFairSet.isEmpty()) {
+        // check for unique writeLocks requested by the builds that have to be served first
+        List<BuildPromotion> promosInFairSet = getPrecedingWriters(distributionDataAccessor, resource, buildPromotion);
+        if (!promosInFairSet.isEmpty()) {
           String description = describeLockingPromotions(promosInFairSet);
           result.put(resource, "(write lock requested by " + description + ")");
           break;
@@ -227,20 +360,19 @@ public class TakenLocksImpl implements TakenLocks {
         // check for write locks
         if (takenLock.hasWriteLocks()) {
           // write lock can be in chain head, read locks can be in chain parts
-          String description = describeLockingPromotions(takenLock.getReadLocks().keySet(), takenLock.getWriteLocks().keySet());
+          String description = describeLockingPromotions(takenLock.getReadLockHolders(), takenLock.getWriteLockHolders());
           result.put(resource, "(locked by " + description + ")");
           break;
         }
         // 2) SPECIFIC case
         if (!lock.isAnyValueLock()) { // we have custom lock
           final String requiredValue = lock.getValue();
-          final Set<String> takenValues = new HashSet<>();
-          takenValues.addAll(takenLock.getReadLocks().values());
-          takenValues.addAll(takenLock.getWriteLocks().values());
-          takenValues.addAll(distributionDataAccessor.getReservedValuesProvider().getReservedValues(resource).values());
-          if (takenValues.contains(requiredValue)) {
+          // value that the resource does not have can not be occupied
+          final int requiredValueIndex = resource.getValueIndex(requiredValue);
+          if (requiredValueIndex != -1 && CustomValueSlots.occupiedBy(resource, takenLock, distributionDataAccessor.getReservedValuesProvider().getReservedValues(resource))
+                                                          .isOccupied(requiredValueIndex)) {
             StringBuilder builder = new StringBuilder("(required value '" + requiredValue + "' is occupied");
-            BuildPromotionEx occupyingPromo = occupyingPromo(takenLock, requiredValue);
+            BuildPromotionEx occupyingPromo = occupyingPromo(takenLock, requiredValueIndex);
             if (occupyingPromo != null) {
               String description = describeLockingPromotions(Collections.singleton(occupyingPromo));
               builder.append(" by ");
@@ -251,9 +383,9 @@ public class TakenLocksImpl implements TakenLocks {
             break;
           }
         }
-        // 3) check for any unoccupied value
-        if (resource.getValues().size() <= takenLock.getLocksCount()) {
-          String description = describeLockingPromotions(takenLock.getReadLocks().keySet());
+        // 3) check for enough unoccupied values. Weighted lock takes as many values as its weight
+        if (resource.getValues().size() < takenLock.getTakenUnits() + lock.getWeight()) {
+          String description = describeLockingPromotions(takenLock.getReadLockHolders());
           result.put(resource, "(all available values are occupied by " + description + ")");
           break;
           // quota exceeded
@@ -262,11 +394,12 @@ public class TakenLocksImpl implements TakenLocks {
       case WRITE:
         // 'ALL' case
         if (takenLock.hasReadLocks() || takenLock.hasWriteLocks()) {
-          addToFairSet(distributionDataAccessor, resource, buildPromotion);
-          String description = describeLockingPromotions(takenLock.getReadLocks().keySet(), takenLock.getWriteLocks().keySet());
+          addToFairSet(distributionDataAccessor, resource.getId(), buildPromotion);
+          String description = describeLockingPromotions(takenLock.getReadLockHolders(), takenLock.getWriteLockHolders());
           result.put(resource, "(locked by " + description + ")");
           break;
         }
+        checkPrecedingWriters(distributionDataAccessor, resource, buildPromotion, result);
         break;
     }
   }
@@ -280,24 +413,26 @@ public class TakenLocksImpl implements TakenLocks {
     final TakenLock takenLock = getOrCreateTakenLock(takenLocks, resource);
     switch (lock.getType()) {
       case READ:
-        // some build requested write lock on the current resource before us
-        List<BuildPromotion> promosInFairSet = distributionDataAccessor.getFairSet().get(resource.getId());
-        if (promosInFairSet != null && !promosInFairSet.isEmpty()) {
+        // some build that has to be served before us requested write lock on the current resource
+        List<BuildPromotion> promosInFairSet = getPrecedingWriters(distributionDataAccessor, resource, buildPromotion);
+        if (!promosInFairSet.isEmpty()) {
           String description = describeLockingPromotions(promosInFairSet);
           result.put(resource, "(write lock requested by " + description + ")");
           break;
         }
         // Check that no WriteLocks exist
         if (takenLock.hasWriteLocks()) {
-          String description = describeLockingPromotions(takenLock.getReadLocks().keySet(), takenLock.getWriteLocks().keySet());
+          String description = describeLockingPromotions(takenLock.getReadLockHolders(), takenLock.getWriteLockHolders());
           result.put(resource, "(locked by " + description + ")");
           break;
         }
-        if (isOverQuota(takenLock, resource)) {
+        if (isOverQuota(takenLock, resource, lock.getWeight())) {
           if (resource.getQuota() == 0) {
             result.put(resource, "(has zero quota available)");
+          } else if (lock.getWeight() > resource.getQuota()) {
+            result.put(resource, "(lock weight " + lock.getWeight() + " exceeds quota " + resource.getQuota() + ")");
           } else {
-            String description = describeLockingPromotions(takenLock.getReadLocks().keySet());
+            String description = describeLockingPromotions(takenLock.getReadLockHolders());
             result.put(resource, "(locked by " + description + ")");
           }
           break;
@@ -305,14 +440,16 @@ public class TakenLocksImpl implements TakenLocks {
         break;
       case WRITE:
         // if anyone is accessing the resource
-        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks() || isOverQuota(takenLock, resource)) {
-          addToFairSet(distributionDataAccessor, resource, buildPromotion);
+        if (takenLock.hasReadLocks() || takenLock.hasWriteLocks() || isOverQuota(takenLock, resource, lock.getWeight())) {
+          addToFairSet(distributionDataAccessor, resource.getId(), buildPromotion);
           if (resource.getQuota() == 0) {
             result.put(resource, "(has zero quota available)");
           } else {
-            String description = describeLockingPromotions(takenLock.getReadLocks().keySet(), takenLock.getWriteLocks().keySet());
+            String description = describeLockingPromotions(takenLock.getReadLockHolders(), takenLock.getWriteLockHolders());
             result.put(resource, "(locked by " + description + ")");
           }
+        } else {
+          checkPrecedingWriters(distributionDataAccessor, resource, buildPromotion, result);
         }
     }
   }
@@ -332,32 +469,102 @@ public class TakenLocksImpl implements TakenLocks {
     return parts.isEmpty() ? "unknown" : String.join(", ", parts);
   }
 
-  private boolean isOverQuota(@NotNull final TakenLock takenLock, @NotNull final QuotedResource resource) {
-    return !resource.isInfinite() && takenLock.getLocksCount() >= resource.getQuota();
+  /**
+   * Checks whether the lock of the given weight does not fit into the quota left by the taken locks
+   */
+  private boolean isOverQuota(@NotNull final TakenLock takenLock, @NotNull final QuotedResource resource, final int weight) {
+    return !resource.isInfinite() && takenLock.getTakenUnits() + weight > resource.getQuota();
   }
 
+  /**
+   * Puts the builds waiting for write locks since the previous distribution cycles into the fair set,
+   * so their order does not depend on the order in which the queued builds are processed.
+   * Only the builds recently checked by the precondition are taken, see {@link ResourceWaitQueue#getWaitingWriters()}
+   */
+  private void initFairSet(@NotNull final DistributionDataAccessor distributionDataAccessor) {
+    if (distributionDataAccessor.markFairSetInitialized()) {
+      myWaitQueue.getWaitingWriters().forEach((resourceId, promotions) -> promotions.forEach(
+        promotion -> addToFairSet(distributionDataAccessor, resourceId, promotion)));
+    }
+  }
+
+  /**
+   * Adds the build waiting for write lock to the fair set of the resource.
+   * Fair set is kept ordered by build priority class and queued time, see {@link QueuePriorityComparator}.
+   * Builds of the same rank are kept in the order they were added
+   */
   private void addToFairSet(@NotNull final DistributionDataAccessor distributionDataAccessor,
-                            @NotNull final Resource resource,
+                            @NotNull final String resourceId,
                             @NotNull final BuildPromotion buildPromotion) {
-    distributionDataAccessor.getFairSet()
-                            .computeIfAbsent(resource.getId(), it -> new ArrayList<>())
-                            .add(buildPromotion);
+    final List<BuildPromotion> waiting = distributionDataAccessor.getFairSet().computeIfAbsent(resourceId, it -> new ArrayList<>());
+    if (waiting.contains(buildPromotion)) {
+      return;
+    }
+    int idx = waiting.size();
+    while (idx > 0 && myPriorityComparator.precedes(buildPromotion, waiting.get(idx - 1))) {
+      idx--;
+    }
+    waiting.add(idx, buildPromotion);
   }
 
-  @Nullable
-  private BuildPromotionEx occupyingPromo(@NotNull final TakenLock takenLock,
-                                          @NotNull final String value) {
-    for (Map.Entry<BuildPromotionEx, String> entry : takenLock.getReadLocks().entrySet()) {
-      if (value.equals(entry.getValue())) {
-        return entry.getKey();
+  /**
+   * Returns builds waiting for write lock on the resource which are not ranked below the given build.
+   * Builds of the same rank that are already in the fair set are served first
+   */
+  @NotNull
+  private List<BuildPromotion> getPrecedingWriters(@NotNull final DistributionDataAccessor distributionDataAccessor,
+                                                   @NotNull final Resource resource,
+                                                   @NotNull final BuildPromotion buildPromotion) {
+    final List<BuildPromotion> waiting = distributionDataAccessor.getFairSet().get(resource.getId());
+    if (waiting == null || waiting.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<BuildPromotion> result = new ArrayList<>();
+    for (BuildPromotion promotion : waiting) {
+      if (myPriorityComparator.precedes(buildPromotion, promotion)) {
+        // fair set is ordered, the rest of the builds are ranked below the given one
+        break;
+      }
+      if (!promotion.equals(buildPromotion)) {
+        result.add(promotion);
       }
     }
+    return result;
+  }
 
-    for (Map.Entry<BuildPromotionEx, String> entry : takenLock.getWriteLocks().entrySet()) {
-      if (entry.getValue().contains(value)) {
-        return entry.getKey();
+  /**
+   * Prevents write lock on a free resource from being taken while builds ranked above the given one are waiting for it
+   */
+  private void checkPrecedingWriters(@NotNull final DistributionDataAccessor distributionDataAccessor,
+                                     @NotNull final Resource resource,
+                                     @NotNull final BuildPromotion buildPromotion,
+                                     @NotNull final Map<Resource, String> result) {
+    final List<BuildPromotion> preceding = getPrecedingWriters(distributionDataAccessor, resource, buildPromotion);
+    if (!preceding.isEmpty()) {
+      addToFairSet(distributionDataAccessor, resource.getId(), buildPromotion);
+      result.put(resource, "(write lock requested by " + describeLockingPromotions(preceding) + ")");
+    }
+  }
+
+  @Nullable
+  private BuildPromotionEx occupyingPromo(@NotNull final TakenLock takenLock,
+                                          final int valueIndex) {
+    final List<BuildPromotionEx> result = new ArrayList<>(1);
+    final TakenLock.ValueIndicesConsumer consumer = (promotion, valueIndices) -> {
+      if (result.isEmpty() && contains(valueIndices, valueIndex)) {
+        result.add(promotion);
       }
+    };
+    takenLock.forEachReadLockValues(consumer);
+    takenLock.forEachWriteLockValues(consumer);
+    return result.isEmpty() ? null : result.get(0);
+  }
+
+  private static boolean contains(@NotNull final int[] values, final int value) {
+    for (int v : values) {
+      if (v == value) return true;
     }
-    return null;
+    return false;
   }
+
 }
\ No newline at end of file
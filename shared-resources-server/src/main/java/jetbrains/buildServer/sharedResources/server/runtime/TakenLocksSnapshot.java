@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongHashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.annotation.concurrent.NotThreadSafe;
+import jetbrains.buildServer.serverSide.RunningBuildEx;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Contains locks taken by the running builds and by the queued builds scheduled to start during the current distribution cycle.
+ *
+ * Locks are collected once per distribution cycle and then updated incrementally
+ * when new queued builds are scheduled to start.
+ */
+@NotThreadSafe
+public class TakenLocksSnapshot {
+
+  @Nullable
+  private Map<Resource, TakenLock> myTakenLocks;
+
+  /**
+   * Ids of the promotions of the queued builds scheduled to start, whose locks are already present in the snapshot
+   */
+  private final TLongHashSet myAccountedPromotionIds = new TLongHashSet();
+
+  /**
+   * Returns taken locks for the current distribution cycle
+   *
+   * @param takenLocks            taken locks collector
+   * @param runningBuildsSupplier supplier of the running builds. Is used only if the snapshot has to be (re)created
+   * @param startingQueuedBuilds  queued builds which were scheduled to start
+   * @return map of taken locks in format {@code <Resource, TakenLock>}
+   */
+  @NotNull
+  public Map<Resource, TakenLock> getTakenLocks(@NotNull final TakenLocks takenLocks,
+                                               @NotNull final Supplier<? extends Collection<RunningBuildEx>> runningBuildsSupplier,
+                                               @NotNull final Collection<QueuedBuildInfo> startingQueuedBuilds) {
+    if (myTakenLocks != null) {
+      final List<QueuedBuildInfo> newlyStarting = new ArrayList<>();
+      int accounted = 0;
+      for (QueuedBuildInfo qb : startingQueuedBuilds) {
+        if (myAccountedPromotionIds.contains(qb.getBuildPromotionInfo().getId())) {
+          accounted++;
+        } else {
+          newlyStarting.add(qb);
+        }
+      }
+      if (accounted == myAccountedPromotionIds.size()) {
+        if (!newlyStarting.isEmpty()) {
+          takenLocks.addStartingBuilds(myTakenLocks, newlyStarting);
+          newlyStarting.forEach(qb -> myAccountedPromotionIds.add(qb.getBuildPromotionInfo().getId()));
+        }
+        return myTakenLocks;
+      }
+      // some of the accounted builds are not scheduled to start anymore, their locks must be dropped
+    }
+    myTakenLocks = takenLocks.collectTakenLocks(runningBuildsSupplier.get(), startingQueuedBuilds);
+    myAccountedPromotionIds.clear();
+    startingQueuedBuilds.forEach(qb -> myAccountedPromotionIds.add(qb.getBuildPromotionInfo().getId()));
+    return myTakenLocks;
+  }
+
+  /**
+   * Checks whether the queued build is scheduled to start in the current distribution cycle
+   *
+   * @param promotionId id of the build promotion of the queued build
+   * @return {@code true} if the build was among the starting queued builds passed to the last {@link #getTakenLocks} call
+   */
+  public boolean isScheduledToStart(final long promotionId) {
+    return myAccountedPromotionIds.contains(promotionId);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.model;
+
+import gnu.trove.TLongHashSet;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = TakenLock.class)
+public class TakenLockTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("r1", "PROJECT_ID", "resource1", 10, true);
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testView() {
+    final BuildPromotionEx reader = createPromotion(1L);
+    final BuildPromotionEx weightedReader = createPromotion(2L);
+    final BuildPromotionEx writer = createPromotion(3L);
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(reader, new Lock(myResource.getName(), LockType.READ));
+    takenLock.addLock(weightedReader, new Lock(myResource.getName(), LockType.READ, "", 3));
+    assertEquals(2, takenLock.getLocksCount());
+    assertEquals(4, takenLock.getTakenUnits());
+
+    final TLongHashSet excluded = new TLongHashSet();
+    excluded.add(2L);
+    excluded.add(3L);
+    final TakenLock view = takenLock.without(excluded);
+    assertEquals(1, view.getLocksCount());
+    assertEquals(1, view.getTakenUnits());
+    assertEquals(1, view.getReadLockHolders().size());
+    assertSame(reader, view.getReadLockHolders().get(0));
+    assertEmpty(view.getReadWeights().keySet());
+
+    // view reflects the changes of the taken lock, but hides the excluded promotions
+    takenLock.addLock(writer, new Lock(myResource.getName(), LockType.WRITE));
+    assertTrue(takenLock.hasWriteLocks());
+    assertFalse(view.hasWriteLocks());
+    assertEquals(1, view.getLocksCount());
+  }
+
+  @Test
+  public void testAddAll() {
+    final BuildPromotionEx reader = createPromotion(1L);
+    final BuildPromotionEx weightedReader = createPromotion(2L);
+    final BuildPromotionEx writer = createPromotion(3L);
+    final TakenLock takenLock = new TakenLock(myResource);
+    takenLock.addLock(reader, new Lock(myResource.getName(), LockType.READ));
+    final TakenLock other = new TakenLock(myResource);
+    other.addLock(weightedReader, new Lock(myResource.getName(), LockType.READ, "", 3));
+    other.addLock(writer, new Lock(myResource.getName(), LockType.WRITE));
+
+    takenLock.addAll(other);
+    assertEquals(3, takenLock.getLocksCount());
+    assertEquals(5, takenLock.getTakenUnits());
+    assertEquals(Integer.valueOf(3), takenLock.getReadWeights().get(weightedReader));
+    assertSame(writer, takenLock.getWriteLockHolders().get(0));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testViewIsReadOnly() {
+    final TakenLock view = new TakenLock(myResource).without(new TLongHashSet(new long[]{1L}));
+    view.addLock(createPromotion(2L), new Lock(myResource.getName(), LockType.READ));
+  }
+
+  @NotNull
+  private BuildPromotionEx createPromotion(final long id) {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+}
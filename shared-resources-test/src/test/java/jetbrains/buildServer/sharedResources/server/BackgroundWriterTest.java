@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package jetbrains.buildServer.sharedResources.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.TestFor;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = BackgroundWriter.class)
+public class BackgroundWriterTest extends BaseTestCase {
+
+  @Test
+  public void testTakePendingWaitsForInFlight() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+    final BackgroundWriter<Integer> writer = new BackgroundWriter<>("test writer", 10, batch -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      processed.addAll(batch);
+    });
+    try {
+      assertTrue(writer.offer(1));
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      assertTrue(writer.offer(2));
+      assertTrue(writer.offer(3));
+      final Thread releaser = new Thread(() -> {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {
+        }
+        release.countDown();
+      });
+      releaser.start();
+      // task 1 is in flight, task 2 is still queued
+      assertEquals(Collections.singletonList(2), writer.takePending(task -> task <= 2));
+      assertTrue(processed.contains(1));
+      assertFalse(processed.contains(2));
+      releaser.join();
+    } finally {
+      release.countDown();
+      writer.shutdown();
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final BackgroundWriter<Integer> writer = new BackgroundWriter<>("test writer", 1, batch -> {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    try {
+      assertTrue(writer.offer(1));
+      // either the worker took task 1 and task 2 fills the queue, or task 2 is rejected already
+      writer.offer(2);
+      assertFalse(writer.offer(3));
+    } finally {
+      release.countDown();
+      writer.shutdown();
+    }
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+    final BackgroundWriter<Integer> writer = new BackgroundWriter<>("test writer", 10, processed::addAll);
+    assertTrue(writer.offer(1));
+    final List<Integer> notProcessed = writer.shutdown();
+    final List<Integer> all = new ArrayList<>(processed);
+    all.addAll(notProcessed);
+    assertEquals(Collections.singletonList(1), all);
+    assertFalse(writer.offer(2));
+    assertEmpty(writer.shutdown());
+  }
+}
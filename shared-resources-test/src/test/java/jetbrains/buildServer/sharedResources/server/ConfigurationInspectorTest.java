@@ -3,7 +3,10 @@
 package jetbrains.buildServer.sharedResources.server;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildTypeEx;
 import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -13,8 +16,11 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -404,6 +410,123 @@ public class ConfigurationInspectorTest extends BaseTestCase {
     assertEquals("Correct build type should not produce errors", 0, result.size());
   }
 
+  @Test
+  public void testInspect_Promotion_CachedUntilResourcesChange() {
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class);
+    final BuildTypeEx buildType = m.mock(BuildTypeEx.class);
+    final Lock lock = new Lock("lock1", LockType.READ);
+    final AtomicLong version = new AtomicLong(1);
+
+    m.checking(new Expectations() {{
+      allowing(promotion).getBuildType();
+      will(returnValue(buildType));
+
+      allowing(buildType).getProject();
+      will(returnValue(myProject));
+
+      allowing(myProject).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(myFeatures).searchForFeatures(promotion);
+      will(returnValue(Collections.singleton(myFeature)));
+
+      allowing(myFeature).getLockedResources();
+      will(returnValue(Collections.singletonMap("lock1", lock)));
+
+      allowing(myResources).getVersion();
+      will(new CustomAction("return current version") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return version.get();
+        }
+      });
+
+      // resources are inspected once per version
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      exactly(2).of(myResources).getAllOwnResources(myProject);
+      will(returnValue(Collections.emptyList()));
+
+      exactly(2).of(myResources).getOwnResources(myProject);
+      will(returnValue(Collections.emptyList()));
+    }});
+
+    final Map<Lock, String> result = myInspector.inspect(promotion);
+    assertEquals(1, result.size());
+    assertSame(result, myInspector.inspect(promotion));
+
+    version.incrementAndGet();
+    final Map<Lock, String> updated = myInspector.inspect(promotion);
+    assertNotSame(result, updated);
+    assertEquals(result, updated);
+    assertSame(updated, myInspector.inspect(promotion));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_InvalidWeight() {
+    final Lock lock = new Lock("lock1", LockType.READ, "", Lock.INVALID_WEIGHT);
+    final Map<Lock, String> result = inspectSingleLock(lock, ResourceFactory.newQuotedResource("lock1", PROJECT_ID, "lock1", 10, true));
+    assertEquals("Lock with invalid weight should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' has invalid weight: weight must be a positive integer", result.get(lock));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_WeightedLockWithValue() {
+    final Lock lock = new Lock("lock1", LockType.READ, "value1", 2);
+    final Map<Lock, String> result = inspectSingleLock(lock, ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("value1", "value2"), true));
+    assertEquals("Weighted lock with a specific value should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' requires 2 values and cannot specify the value", result.get(lock));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_WeightExceedsValues() {
+    final Lock lock = new Lock("lock1", LockType.READ, "", 3);
+    final Map<Lock, String> result = inspectSingleLock(lock, ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("value1", "value2"), true));
+    assertEquals("Lock weight greater than the number of values should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' requires 3 values, but the resource has 2", result.get(lock));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_WeightedLockOnValuesWithSeparator() {
+    final Lock lock = new Lock("lock1", LockType.READ, "", 2);
+    final Map<Lock, String> result = inspectSingleLock(lock, ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("value1", "value;2"), true));
+    assertEquals("Weighted lock on values containing the separator should produce error", 1, result.size());
+    assertEquals("Resource 'lock1' has values containing ';' and cannot be locked by several values at once", result.get(lock));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_WeightExceedsQuota() {
+    final Lock lock = new Lock("lock1", LockType.READ, "", 3);
+    final Map<Lock, String> result = inspectSingleLock(lock, ResourceFactory.newQuotedResource("lock1", PROJECT_ID, "lock1", 2, true));
+    assertEquals("Lock weight greater than the quota should produce error", 1, result.size());
+    assertEquals("Lock on resource 'lock1' requires 3 units, but the quota is 2", result.get(lock));
+  }
+
+  @Test
+  public void testInspect_SingleFeature_WeightedLock_Correct() {
+    assertEmpty(inspectSingleLock(new Lock("lock1", LockType.READ, "", 2),
+                                  ResourceFactory.newCustomResource("lock1", PROJECT_ID, "lock1", Arrays.asList("value1", "value2"), true)).keySet());
+  }
+
+  private Map<Lock, String> inspectSingleLock(@NotNull final Lock lock, @NotNull final Resource resource) {
+    final List<Resource> resources = Collections.singletonList(resource);
+    m.checking(new Expectations() {{
+      oneOf(myFeature).getLockedResources();
+      will(returnValue(Collections.singletonMap(lock.getName(), lock)));
+
+      oneOf(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      oneOf(myResources).getAllOwnResources(myProject);
+      will(returnValue(resources));
+
+      oneOf(myResources).getOwnResources(myProject);
+      will(returnValue(resources));
+    }});
+    return myInspector.inspect(myProject, myFeature);
+  }
+
   @AfterMethod
   @Override
   protected void tearDown() throws Exception {
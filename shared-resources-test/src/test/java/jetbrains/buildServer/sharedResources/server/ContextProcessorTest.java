@@ -4,6 +4,11 @@ package jetbrains.buildServer.sharedResources.server;
 
 import com.intellij.openapi.util.text.StringUtil;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.sharedResources.model.Lock;
@@ -15,15 +20,24 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.history.ResourceUsageHistory;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import static jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants.getReservedResourceAttributeKey;
+
 /**
  * Created with IntelliJ IDEA.
  *
@@ -43,6 +57,8 @@ public class ContextProcessorTest extends BaseTestCase {
   private BuildPromotionEx myBuildPromotion;
   private BuildStartContext myBuildStartContext;
   private BuildUsedResourcesReport myReport;
+  private ResourceUsageHistory myUsageHistory;
+  private ResourceMetrics myMetrics;
 
   /** Class under test */
   private SharedResourcesContextProcessor myProcessor;
@@ -54,6 +70,8 @@ public class ContextProcessorTest extends BaseTestCase {
     super.setUp();
     m = new Mockery() {{
       setImposteriser(ClassImposteriser.INSTANCE);
+      // builds can be started concurrently
+      setThreadingPolicy(new Synchroniser());
     }};
     myFeatures = m.mock(SharedResourcesFeatures.class);
     myLocks = m.mock(Locks.class);
@@ -65,7 +83,9 @@ public class ContextProcessorTest extends BaseTestCase {
     myBuildType = m.mock(BuildTypeEx.class);
     myBuildPromotion = m.mock(BuildPromotionEx.class, "my-build-promotion");
     myReport = m.mock(BuildUsedResourcesReport.class);
-    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, myReport);
+    myUsageHistory = m.mock(ResourceUsageHistory.class);
+    myMetrics = m.mock(ResourceMetrics.class);
+    myProcessor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, myLocksStorage, myReport, myUsageHistory, myMetrics, new PhaseTimings());
     m.checking(createCommonExpectations());
   }
 
@@ -410,6 +430,167 @@ public class ContextProcessorTest extends BaseTestCase {
     myProcessor.updateParameters(myBuildStartContext);
   }
 
+  @Test
+  public void testAnyValueLocks_SameResource() throws Exception {
+    final Resource resource = ResourceFactory.newCustomResource("resource1", PROJECT_ID, "CustomResource", Arrays.asList("value1", "value2"), true);
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    final Map<String, String> values = startConcurrently(resource, resource, 500, overlapped);
+    // builds locking the same custom resource are processed one at a time
+    assertFalse("Second build was processed while the first one held the resource", overlapped.get());
+    assertEquals("value1", values.get("build1"));
+    assertEquals("value2", values.get("build2"));
+  }
+
+  @Test
+  public void testAnyValueLocks_UnrelatedResources() throws Exception {
+    // ids of the resources are mapped to different stripes
+    final Resource resource1 = ResourceFactory.newCustomResource("resource1", PROJECT_ID, "CustomResource1", Arrays.asList("value1", "value2"), true);
+    final Resource resource2 = ResourceFactory.newCustomResource("resource2", PROJECT_ID, "CustomResource2", Arrays.asList("value1", "value2"), true);
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    final Map<String, String> values = startConcurrently(resource1, resource2, 10000, overlapped);
+    assertTrue("Build locking an unrelated resource was blocked", overlapped.get());
+    assertEquals("value1", values.get("build1"));
+    assertEquals("value2", values.get("build2"));
+  }
+
+  /**
+   * Starts two builds with ANY locks on the given resources in parallel.
+   * The build that stores its locks first waits for the other build to get its value
+   *
+   * @param overlapped set to {@code true} if the other build got its value while the first build was being processed
+   * @return values provided to the builds, by build name
+   */
+  @NotNull
+  private Map<String, String> startConcurrently(@NotNull final Resource resource1,
+                                                @NotNull final Resource resource2,
+                                                final long waitMillis,
+                                                @NotNull final AtomicBoolean overlapped) throws Exception {
+    final CountDownLatch provided = new CountDownLatch(2);
+    final AtomicBoolean first = new AtomicBoolean(true);
+    final LocksStorage locksStorage = new LocksStorage() {
+      @Override
+      public void store(@NotNull final BuildPromotion buildPromotion, @NotNull final Map<Lock, String> takenLocks) {
+        if (first.getAndSet(false)) {
+          try {
+            overlapped.set(provided.await(waitMillis, TimeUnit.MILLISECONDS));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+
+      @NotNull
+      @Override
+      public Map<String, Lock> load(@NotNull final BuildPromotion buildPromotion) {
+        return Collections.emptyMap();
+      }
+
+      @NotNull
+      @Override
+      public Map<BuildPromotion, Map<String, Lock>> getAllTakenLocks() {
+        return Collections.emptyMap();
+      }
+
+      @Override
+      public boolean locksStored(@NotNull final BuildPromotion buildPromotion) {
+        return false;
+      }
+    };
+    final Map<String, Resource> resources = new HashMap<>();
+    resources.put(resource1.getName(), resource1);
+    resources.put(resource2.getName(), resource2);
+    m.checking(new Expectations() {{
+      allowing(myResources).getResourcesMap(PROJECT_ID);
+      will(returnValue(resources));
+    }});
+    final Map<String, String> values = new ConcurrentHashMap<>();
+    final List<BuildStartContext> contexts = Arrays.asList(mockStartingBuild("build1", 1L, resource1, "value1", values, provided),
+                                                           mockStartingBuild("build2", 2L, resource2, "value2", values, provided));
+    final SharedResourcesContextProcessor processor = new SharedResourcesContextProcessor(myFeatures, myLocks, myResources, locksStorage, myReport,
+                                                                                          myUsageHistory, myMetrics, new PhaseTimings());
+    final List<Throwable> errors = new CopyOnWriteArrayList<>();
+    final List<Thread> threads = new ArrayList<>();
+    for (BuildStartContext context : contexts) {
+      final Thread thread = new Thread(() -> {
+        try {
+          processor.updateParameters(context);
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(30));
+      assertFalse("Build start did not finish", thread.isAlive());
+    }
+    assertEmpty(errors);
+    return values;
+  }
+
+  @NotNull
+  private BuildStartContext mockStartingBuild(@NotNull final String name,
+                                              final long promotionId,
+                                              @NotNull final Resource resource,
+                                              @NotNull final String reservedValue,
+                                              @NotNull final Map<String, String> values,
+                                              @NotNull final CountDownLatch provided) {
+    final BuildStartContext context = m.mock(BuildStartContext.class, name + "-context");
+    final SRunningBuild build = m.mock(SRunningBuild.class, name);
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, name + "-promotion");
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class, name + "-feature");
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    final Lock lock = new Lock(resource.getName(), LockType.READ);
+    final String lockParamName = "teamcity.locks.readLock." + lock.getName();
+    m.checking(new Expectations() {{
+      allowing(context).getBuild();
+      will(returnValue(build));
+
+      allowing(build).getBuildPromotion();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(promotionId));
+
+      allowing(promotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      allowing(promotion).getProjectId();
+      will(returnValue(PROJECT_ID));
+
+      allowing(promotion).isPartOfBuildChain();
+      will(returnValue(false));
+
+      allowing(promotion).isCompositeBuild();
+      will(returnValue(false));
+
+      // value reserved for the build by the start build precondition
+      allowing(promotion).getAttribute(getReservedResourceAttributeKey(resource.getId()));
+      will(returnValue(reservedValue));
+
+      allowing(myFeatures).searchForFeatures(promotion);
+      will(returnValue(features));
+
+      allowing(myLocks).fromBuildFeaturesAsMap(features);
+      will(returnValue(Collections.singletonMap(lock.getName(), lock)));
+
+      allowing(myLocks).asBuildParameter(lock);
+      will(returnValue(lockParamName));
+
+      allowing(context).addSharedParameter(with(lockParamName), with(any(String.class)));
+      will(new CustomAction("records provided value") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          values.put(name, (String)invocation.getParameter(1));
+          provided.countDown();
+          return null;
+        }
+      });
+    }});
+    return context;
+  }
+
   private Expectations createCommonExpectations() {
     return new Expectations() {{
       oneOf(myBuildStartContext).getBuild();
@@ -437,6 +618,10 @@ public class ContextProcessorTest extends BaseTestCase {
       will(returnValue(false));
 
       allowing(myReport);
+
+      allowing(myUsageHistory);
+
+      allowing(myMetrics);
     }};
   }
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import java.util.Map;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.BuildAgent;
 import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.BuildTypeEx;
 import jetbrains.buildServer.serverSide.QueuedBuildEx;
 import jetbrains.buildServer.serverSide.RunningBuildEx;
@@ -29,9 +30,13 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
 import jetbrains.buildServer.sharedResources.server.runtime.DistributionDataAccessor;
 import jetbrains.buildServer.sharedResources.server.runtime.LocksStorage;
+import jetbrains.buildServer.sharedResources.server.runtime.ResourceWaitQueue;
 import jetbrains.buildServer.sharedResources.server.runtime.TakenLocks;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
@@ -79,6 +84,8 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
 
   private Resources myResources;
 
+  private LocksStorage myLocksStorage;
+
   /**
    * Class under test
    */
@@ -105,7 +112,7 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
     myInspector = m.mock(ConfigurationInspector.class);
     myProject = m.mock(ProjectEx.class);
 
-    final LocksStorage locksStorage = m.mock(LocksStorage.class);
+    myLocksStorage = m.mock(LocksStorage.class);
 
     myResources = m.mock(Resources.class);
     final Map<String, Resource> resourceMap = new HashMap<>();
@@ -121,10 +128,16 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
       allowing(myResources).getResourcesMap(myProjectId);
       will(returnValue(resourceMap));
 
+      allowing(myBuildPromotion).getId();
+      will(returnValue(201L));
+
       allowing(myBuildDistributorInput).getCustomData(with(any(String.class)), with(any(Class.class)));
       will(returnValue(new DistributionData()));
     }});
-    myStartBuildPrecondition = new SharedResourcesStartBuildPrecondition(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager, myInspector, locksStorage, myResources);
+    myStartBuildPrecondition = new SharedResourcesStartBuildPrecondition(myFeatures, myLocks, myTakenLocks, myRunningBuildsManager, myInspector, myLocksStorage, myResources,
+                                                                         new ResourceMetrics(EventDispatcher.create(BuildServerListener.class)),
+                                                                         new PhaseTimings(),
+                                                                         new ResourceWaitQueue(EventDispatcher.create(BuildServerListener.class)));
   }
   
   @Test
@@ -202,6 +215,31 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
     assertNull(result);
   }
 
+  @Test
+  public void testNoFeaturesPresent_DistributionDataNotAccessed() {
+    // no expectations - any access to distribution data fails the test, as well as access to taken locks and resources
+    final BuildDistributorInputEx untouchedInput = m.mock(BuildDistributorInputEx.class, "untouchedInput");
+
+    m.checking(new Expectations() {{
+      oneOf(myQueuedBuild).getBuildPromotionInfo();
+      will(returnValue(myBuildPromotion));
+
+      oneOf(myBuildPromotion).getBuildType();
+      will(returnValue(myBuildType));
+
+      oneOf(myBuildPromotion).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myBuildPromotion).isPartOfBuildChain();
+      will(returnValue(false));
+
+      oneOf(myFeatures).searchForFeatures(myBuildPromotion);
+      will(returnValue(Collections.emptyList()));
+    }});
+    final WaitReason result = myStartBuildPrecondition.canStart(myQueuedBuild, Collections.emptyMap(), untouchedInput, false);
+    assertNull(result);
+  }
+
   @Test
   public void testInvalidLocksPresent() {
     final Collection<SharedResourcesFeature> features = new ArrayList<>();
@@ -314,8 +352,13 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
     final Lock lock2 = new Lock("resource2", LockType.READ);
 
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final BuildPromotionEx someBuild = m.mock(BuildPromotionEx.class, "some-build");
+    m.checking(new Expectations() {{
+      allowing(someBuild).getId();
+      will(returnValue(301L));
+    }});
     final TakenLock tl = new TakenLock(resource2);
-    tl.addLock(m.mock(BuildPromotionEx.class, "some-build"), lock2);
+    tl.addLock(someBuild, lock2);
     takenLocks.put(tl.getResource(), tl);
 
     setupLocks(locksToTake, features, canBeStarted, runningBuilds, takenLocks, Collections.emptyMap());
@@ -342,6 +385,10 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
     final BuildPromotionEx bpex = m.mock(BuildPromotionEx.class, "bpex-lock1");
     final Lock takenLock1 = new Lock("resource1", LockType.WRITE);
 
+    m.checking(new Expectations() {{
+      allowing(bpex).getId();
+      will(returnValue(301L));
+    }});
     final Map<Resource, TakenLock> takenLocks = new HashMap<>();
     final TakenLock tl = new TakenLock(resource1);
     tl.addLock(bpex, takenLock1);
@@ -438,6 +485,88 @@ public class SharedResourcesStartBuildPreconditionTest extends BaseTestCase {
     assertNotNull(result);
   }
 
+  @Test
+  public void testCompositeLocksCached() {
+    final BuildPromotionEx composite = mockRunningComposite();
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).locksStored(composite);
+      will(returnValue(true));
+
+      oneOf(myLocksStorage).load(composite);
+      will(returnValue(Collections.singletonMap("lock1", new Lock("lock1", LockType.READ))));
+    }});
+
+    final Map<Resource, Lock> locks = getCompositeLocks(composite);
+    assertEquals(1, locks.size());
+    assertEquals("lock1", locks.keySet().iterator().next().getName());
+    // locks are loaded once per distribution cycle
+    assertSame(locks, getCompositeLocks(composite));
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testCompositeWithoutLocksCached() {
+    final BuildPromotionEx composite = mockRunningComposite();
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).locksStored(composite);
+      will(returnValue(true));
+
+      oneOf(myLocksStorage).load(composite);
+      will(returnValue(Collections.emptyMap()));
+    }});
+
+    assertEmpty(getCompositeLocks(composite).keySet());
+    assertEmpty(getCompositeLocks(composite).keySet());
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testCompositeLocksNotStoredYet() {
+    final BuildPromotionEx composite = mockRunningComposite();
+    m.checking(new Expectations() {{
+      oneOf(myLocksStorage).locksStored(composite);
+      will(returnValue(false));
+
+      oneOf(myLocksStorage).locksStored(composite);
+      will(returnValue(true));
+
+      oneOf(myLocksStorage).load(composite);
+      will(returnValue(Collections.singletonMap("lock1", new Lock("lock1", LockType.READ))));
+    }});
+
+    assertEmpty(getCompositeLocks(composite).keySet());
+    // composite build stored its locks later in the same distribution cycle
+    assertEquals(1, getCompositeLocks(composite).size());
+    m.assertIsSatisfied();
+  }
+
+  private BuildPromotionEx mockRunningComposite() {
+    final BuildPromotionEx result = m.mock(BuildPromotionEx.class, "composite");
+    final Resource resource = ResourceFactory.newInfiniteResource("lock1", myProjectId, "lock1", true);
+    m.checking(new Expectations() {{
+      allowing(result).getId();
+      will(returnValue(401L));
+
+      allowing(result).getBuildType();
+      will(returnValue(myBuildType));
+
+      allowing(myBuildType).getProject();
+      will(returnValue(myProject));
+
+      allowing(myProject).getProjectPath();
+      will(returnValue(Collections.singletonList(myProject)));
+
+      allowing(myResources).getOwnResources(myProject);
+      will(returnValue(Collections.singletonList(resource)));
+    }});
+    return result;
+  }
+
+  private Map<Resource, Lock> getCompositeLocks(final BuildPromotionEx composite) {
+    // every call emulates a distribution of another build in the same cycle
+    return myStartBuildPrecondition.getCompositeLocks(new DistributionDataAccessor(myBuildDistributorInput), new CachingProjectResourcesMap(myResources), composite);
+  }
+
   private void setupLocks(final Map<String, Lock> locksToTake,
                           final Collection<SharedResourcesFeature> features,
                           final Map<QueuedBuildInfo, BuildAgent> canBeStarted,
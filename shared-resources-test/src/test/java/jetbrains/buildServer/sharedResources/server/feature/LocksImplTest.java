@@ -245,6 +245,65 @@ public class LocksImplTest extends BaseTestCase {
     }
   }
 
+  @Test
+  public void testFromFeatureParameters_Weighted() {
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(
+      Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock:4\nlock2 readLock\nlock3 writeLock:4\nlock4 readLock:x"));
+    assertEquals(4, result.size());
+    assertEquals(4, result.get("lock1").getWeight());
+    assertEquals("", result.get("lock1").getValue());
+    assertEquals(Lock.DEFAULT_WEIGHT, result.get("lock2").getWeight());
+    // write locks take the whole resource
+    assertEquals(Lock.DEFAULT_WEIGHT, result.get("lock3").getWeight());
+    assertEquals(Lock.INVALID_WEIGHT, result.get("lock4").getWeight());
+  }
+
+  @Test
+  public void testFromFeatureParameters_InvalidWeight() {
+    final Map<String, Lock> result = myLocks.fromFeatureParameters(
+      Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock:abc\nlock2 readLock:0\nlock3 readLock:-2\nlock4 readLock: VAL\nlock5 writeLock:x\nlock6 readLock:2 VAL"));
+    assertEquals(6, result.size());
+    for (String name : Arrays.asList("lock1", "lock2", "lock3", "lock4", "lock5")) {
+      assertFalse(name, result.get(name).hasValidWeight());
+    }
+    assertEquals("VAL", result.get("lock4").getValue());
+    assertTrue(result.get("lock6").hasValidWeight());
+    assertEquals(2, result.get("lock6").getWeight());
+  }
+
+  @Test
+  public void testAsFeatureParameter_InvalidWeight() {
+    final Map<String, Lock> parsed = myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock:abc"));
+    // invalid weight is kept when the locks are written back, so that the error is not hidden
+    final String str = myLocks.asFeatureParameter(parsed.values());
+    assertEquals("lock1 readLock:0 ", str);
+    assertFalse(myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, str)).get("lock1").hasValidWeight());
+  }
+
+  @Test
+  public void testAsFeatureParameter_Weighted() {
+    final List<Lock> locks = Arrays.asList(new Lock("lock1", LockType.READ, "", 4), new Lock("lock2", LockType.READ));
+    final String str = myLocks.asFeatureParameter(locks);
+    assertEquals("lock1 readLock:4 \nlock2 readLock ", str);
+    final Map<String, Lock> parsed = myLocks.fromFeatureParameters(Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, str));
+    assertEquals(new HashSet<>(locks), new HashSet<>(parsed.values()));
+  }
+
+  @Test
+  public void testFromFeatureParameters_SharedForIdenticalLocks() {
+    final Map<String, String> params1 = Collections.singletonMap(LOCKS_FEATURE_PARAM_KEY, "lock1 readLock\nlock2 writeLock VAL2");
+    final Map<String, String> params2 = new HashMap<>(params1);
+    final Map<String, Lock> result1 = myLocks.fromFeatureParameters(params1);
+    final Map<String, Lock> result2 = myLocks.fromFeatureParameters(params2);
+    assertEquals(2, result1.size());
+    assertSame(result1, result2);
+    try {
+      result1.remove("lock1");
+      fail("Parsed locks must not be modifiable");
+    } catch (UnsupportedOperationException ignored) {
+    }
+  }
+
   @Test
   public void testToFeatureParams_Values() throws Exception {
     int N = TestUtils.RANDOM_UPPER_BOUNDARY;
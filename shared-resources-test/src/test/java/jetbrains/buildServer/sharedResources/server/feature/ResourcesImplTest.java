@@ -4,6 +4,7 @@ package jetbrains.buildServer.sharedResources.server.feature;
 
 import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -14,6 +15,7 @@ import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeature;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatureImpl;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
@@ -313,6 +315,53 @@ public class ResourcesImplTest extends BaseTestCase {
     assertEquals(1, resources.getCount(myProject));
   }
 
+  @Test
+  @SuppressWarnings("Duplicates")
+  public void testGetResourcesMap_Cached() {
+    final EventDispatcher<BuildServerListener> dispatcher = EventDispatcher.create(BuildServerListener.class);
+    final ResourcesImpl cachingResources = new ResourcesImpl(myProjectManager, myResourceProjectFeatures, dispatcher);
+    final List<ResourceProjectFeature> projectFeatures = Collections.singletonList(
+      createFeature(ResourceFactory.newInfiniteResource("project1", myProjectId, "RESOURCE_1", true))
+    );
+    final SProjectFeatureDescriptor addedFeature = m.mock(SProjectFeatureDescriptor.class, "addedFeature");
+
+    m.checking(new Expectations() {{
+      allowing(addedFeature).getType();
+      will(returnValue(SharedResourcesPluginConstants.FEATURE_TYPE));
+
+      allowing(myProjectManager).findProjectById(myProjectId);
+      will(returnValue(myProject));
+
+      allowing(myProject).getProjectId();
+      will(returnValue(myProjectId));
+
+      allowing(myRootProject).getProjectId();
+      will(returnValue(myRootProjectId));
+
+      // resources are resolved once before and once after the change of project features
+      exactly(2).of(myProject).getProjectPath();
+      will(returnValue(Arrays.asList(myRootProject, myProject)));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myProject);
+      will(returnValue(projectFeatures));
+
+      exactly(2).of(myResourceProjectFeatures).getOwnFeatures(myRootProject);
+      will(returnValue(Collections.emptyList()));
+    }});
+
+    final Map<String, Resource> result = cachingResources.getResourcesMap(myProjectId);
+    assertEquals(1, result.size());
+    assertSame(result, cachingResources.getResourcesMap(myProjectId));
+    assertEquals(1, cachingResources.getResources(myProject).size());
+    final long version = cachingResources.getVersion();
+
+    dispatcher.getMulticaster().projectFeatureAdded(myProject, addedFeature);
+    assertTrue(cachingResources.getVersion() != version);
+
+    assertEquals(1, cachingResources.getResourcesMap(myProjectId).size());
+    assertEquals(1, cachingResources.getResourcesMap(myProjectId).size());
+  }
+
   private ResourceProjectFeature createFeature(@NotNull final Resource resource) {
     final SProjectFeatureDescriptor descriptor = m.mock(SProjectFeatureDescriptor.class, "descriptor" + resource.getProjectId() + "_" + resource.getId());
     m.checking(new Expectations() {{
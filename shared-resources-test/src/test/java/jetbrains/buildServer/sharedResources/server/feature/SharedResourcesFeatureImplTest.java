@@ -2,8 +2,7 @@
 
 package jetbrains.buildServer.sharedResources.server.feature;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildTypeTemplate;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
@@ -11,6 +10,10 @@ import jetbrains.buildServer.serverSide.SBuildType;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
 import jetbrains.buildServer.util.TestFor;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.testng.annotations.BeforeMethod;
@@ -77,15 +80,20 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
   private final String oldName = "lock2";
   private final String newName = "lock3";
 
-  private void setupCommonExpectations() {
+  private void setupCommonExpectations(@NotNull final String from, @NotNull final String to) {
     final String newLocksAsString = "lock1 readLock\nlock3 writeLock";
     params.put(FeatureParams.LOCKS_FEATURE_PARAM_KEY, newLocksAsString);
+    // parsed locks are not modified in place, serialized collection is a copy with the renamed lock
+    final Set<Lock> expectedLocks = new HashSet<>();
+    myLockedResources.values().forEach(lock -> expectedLocks.add(lock.getName().equals(from)
+                                                                 ? new Lock(to, lock.getType(), lock.getValue(), lock.getWeight())
+                                                                 : lock));
 
     m.checking(new Expectations() {{
       oneOf(myLocks).fromFeatureParameters(myBuildFeatureDescriptor);
       will(returnValue(myLockedResources));
 
-      oneOf(myLocks).asFeatureParameter(myLockedResources.values());
+      oneOf(myLocks).asFeatureParameter(with(locks(expectedLocks)));
       will(returnValue(newLocksAsString));
 
       oneOf(myBuildFeatureDescriptor).getId();
@@ -102,7 +110,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
 
   @Test
   public void testUpdateLock_BuildType() {
-    setupCommonExpectations();
+    setupCommonExpectations(oldName, newName);
     m.checking(new Expectations() {{
       oneOf(myBuildType).updateBuildFeature("", "", params);
       will(returnValue(true));
@@ -119,7 +127,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
   @Test
   @TestFor (issues = "TW-26249")
   public void testUpdateLock_Value() {
-    setupCommonExpectations();
+    setupCommonExpectations("lock_with_value1", "lock_with_value2");
     m.checking(new Expectations() {{
       oneOf(myBuildType).updateBuildFeature("", "", params);
       will(returnValue(true));
@@ -136,7 +144,7 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
 
   @Test
   public void testUpdateLock_BuildTypeTemplate() {
-    setupCommonExpectations();
+    setupCommonExpectations(oldName, newName);
     m.checking(new Expectations() {{
       oneOf(myBuildType).updateBuildFeature("", "", params);
       will(returnValue(false));
@@ -162,4 +170,24 @@ public class SharedResourcesFeatureImplTest extends BaseTestCase {
     lock = locks.get(newName);
     assertNotNull(lock);
   }
-}
\ No newline at end of file
+
+  /**
+   * Matches collection of locks with the same names, types, values and weights as the expected ones
+   */
+  @NotNull
+  private static Matcher<Collection<Lock>> locks(@NotNull final Set<Lock> expected) {
+    return new BaseMatcher<Collection<Lock>>() {
+      @Override
+      public boolean matches(final Object item) {
+        if (!(item instanceof Collection)) return false;
+        final Collection<?> actual = (Collection<?>)item;
+        return actual.size() == expected.size() && expected.equals(new HashSet<>(actual));
+      }
+
+      @Override
+      public void describeTo(final Description description) {
+        description.appendValueList("locks [", ", ", "]", expected);
+      }
+    };
+  }
+}
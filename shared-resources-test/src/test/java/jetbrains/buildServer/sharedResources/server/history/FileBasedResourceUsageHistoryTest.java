@@ -0,0 +1,173 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.history;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = FileBasedResourceUsageHistory.class)
+public class FileBasedResourceUsageHistoryTest extends BaseTestCase {
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * Midnight, UTC
+   */
+  private static final long DAY_START = TimeUnit.DAYS.toMillis(19000);
+
+  private File myDirectory;
+
+  private FileBasedResourceUsageHistory myHistory;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDirectory = createTempDir();
+    myHistory = new FileBasedResourceUsageHistory(myDirectory);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    myHistory.close();
+    super.tearDown();
+  }
+
+  @Test
+  public void testUsagesInWindow() {
+    myHistory.recordAcquired(1L, usage("resource1", 1L, DAY_START - HOUR, DAY_START + HOUR), DAY_START + HOUR);
+    myHistory.recordAcquired(2L, usage("resource2", 2L, DAY_START, DAY_START + HOUR), DAY_START + HOUR);
+    myHistory.recordReleased(1L, DAY_START + 3 * HOUR);
+    myHistory.recordAcquired(3L, usage("resource1", 3L, DAY_START + 2 * HOUR, DAY_START + 5 * HOUR), DAY_START + 5 * HOUR);
+
+    final List<ResourceUsage> usages = myHistory.getUsages("resource1", DAY_START, DAY_START + 4 * HOUR);
+    assertEquals(1, usages.size());
+    assertEquals(1L, usages.get(0).getPromotionId());
+    assertEquals(DAY_START + HOUR, usages.get(0).getAcquiredTime());
+    assertEquals(DAY_START + 3 * HOUR, usages.get(0).getReleasedTime());
+
+    final ResourceUtilization utilization = myHistory.getUtilization("resource1", DAY_START, DAY_START + 6 * HOUR);
+    assertEquals(2, utilization.getUsagesCount());
+    // [1h, 3h] and [5h, 6h] - not released yet
+    assertEquals(3 * HOUR, utilization.getBusyTime());
+    assertEquals(0.5, utilization.getBusyRatio(), 0.0001);
+    assertEquals(2 * HOUR + 3 * HOUR / 2, utilization.getAverageWaitTime());
+  }
+
+  @Test
+  public void testLockHeldSinceThePreviousDay() {
+    myHistory.recordAcquired(1L, usage("resource1", 1L, DAY_START - 2 * HOUR, DAY_START - HOUR), DAY_START - HOUR);
+    myHistory.recordReleased(1L, DAY_START + HOUR);
+
+    final List<ResourceUsage> usages = myHistory.getUsages("resource1", DAY_START, DAY_START + 2 * HOUR);
+    assertEquals(1, usages.size());
+    final ResourceUtilization utilization = myHistory.getUtilization("resource1", DAY_START, DAY_START + 2 * HOUR);
+    assertEquals(HOUR, utilization.getBusyTime());
+    // the wait happened before the window
+    assertEquals(0, utilization.getAverageWaitTime());
+  }
+
+  @Test
+  public void testReadFromDisk() throws Exception {
+    myHistory.recordAcquired(1L, usage("resource1", 1L, DAY_START, DAY_START + HOUR), DAY_START + HOUR);
+    myHistory.recordReleased(1L, DAY_START + 2 * HOUR);
+    myHistory.close();
+
+    myHistory = new FileBasedResourceUsageHistory(myDirectory);
+    final List<ResourceUsage> usages = myHistory.getUsages("resource1", DAY_START, DAY_START + 3 * HOUR);
+    assertEquals(1, usages.size());
+    assertEquals(LockType.READ, usages.get(0).getLockType());
+    assertEquals("value", usages.get(0).getValue());
+    assertEquals(DAY_START, usages.get(0).getQueuedTime());
+    assertEquals(DAY_START + 2 * HOUR, usages.get(0).getReleasedTime());
+  }
+
+  @Test
+  public void testIncompleteRecordIsDropped() throws Exception {
+    myHistory.recordAcquired(1L, usage("resource1", 1L, DAY_START, DAY_START + HOUR), DAY_START + HOUR);
+    myHistory.close();
+    final File[] files = myDirectory.listFiles();
+    assertNotNull(files);
+    assertEquals(1, files.length);
+    // emulate crash while writing a record
+    try (FileOutputStream out = new FileOutputStream(files[0], true)) {
+      out.write(new byte[]{2, 0, 0});
+    }
+
+    myHistory = new FileBasedResourceUsageHistory(myDirectory);
+    myHistory.recordAcquired(2L, usage("resource1", 2L, DAY_START, DAY_START + 2 * HOUR), DAY_START + 2 * HOUR);
+    myHistory.close();
+
+    myHistory = new FileBasedResourceUsageHistory(myDirectory);
+    assertEquals(2, myHistory.getUsages("resource1", DAY_START, DAY_START + 3 * HOUR).size());
+  }
+
+  @Test
+  public void testLongValue() {
+    // ALL lock on a resource with many custom values records all of them, writeUTF is limited to 64K bytes
+    final String value = String.join(";", Collections.nCopies(20000, "значение"));
+    myHistory.recordAcquired(1L, Collections.singletonList(new ResourceUsage("resource1", 1L, LockType.WRITE, value, DAY_START, DAY_START + HOUR, ResourceUsage.UNKNOWN)), DAY_START + HOUR);
+    myHistory.recordAcquired(2L, usage("resource1", 2L, DAY_START, DAY_START + 2 * HOUR), DAY_START + 2 * HOUR);
+    myHistory.close();
+
+    myHistory = new FileBasedResourceUsageHistory(myDirectory);
+    final List<ResourceUsage> usages = myHistory.getUsages("resource1", DAY_START, DAY_START + 3 * HOUR);
+    assertEquals(2, usages.size());
+    assertEquals(value, usages.get(0).getValue());
+    assertEquals("value", usages.get(1).getValue());
+  }
+
+  @Test
+  public void testRecordedAfterClose() {
+    myHistory.recordAcquired(1L, usage("resource1", 1L, DAY_START, DAY_START + HOUR), DAY_START + HOUR);
+    myHistory.close();
+    // history is closed on server shutdown, builds finishing after that are still recorded
+    myHistory.recordReleased(1L, DAY_START + 2 * HOUR);
+
+    final FileBasedResourceUsageHistory history = new FileBasedResourceUsageHistory(myDirectory);
+    try {
+      final List<ResourceUsage> usages = history.getUsages("resource1", DAY_START, DAY_START + 3 * HOUR);
+      assertEquals(1, usages.size());
+      assertEquals(DAY_START + 2 * HOUR, usages.get(0).getReleasedTime());
+    } finally {
+      history.close();
+    }
+  }
+
+  @Test
+  public void testReleaseWithoutAcquisitionIsIgnored() {
+    myHistory.recordReleased(1L, DAY_START);
+    assertEquals(0, myDirectory.list().length);
+  }
+
+  @NotNull
+  private static List<ResourceUsage> usage(@NotNull final String resourceId, final long promotionId, final long queued, final long acquired) {
+    return Collections.singletonList(new ResourceUsage(resourceId, promotionId, LockType.READ, "value", queued, acquired, ResourceUsage.UNKNOWN));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings.Phase;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = PhaseTimings.class)
+public class PhaseTimingsTest extends BaseTestCase {
+
+  private final AtomicBoolean myEnabled = new AtomicBoolean();
+
+  private PhaseTimings myTimings;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myEnabled.set(false);
+    myTimings = new PhaseTimings(myEnabled::get);
+  }
+
+  @Test
+  public void testDisabled() {
+    myTimings.stop(Phase.CAN_START, myTimings.start());
+    final String report = report();
+    assertTrue(report, report.startsWith("Timings are disabled"));
+    assertTrue(report, getLine(report, Phase.CAN_START).matches(".* 0 +0 +- +- +- +0 +0"));
+  }
+
+  @Test
+  public void testEnabled() {
+    myEnabled.set(true);
+    myTimings.stop(Phase.CAN_START, myTimings.start());
+    myTimings.stop(Phase.CAN_START, myTimings.start());
+    myTimings.stop(Phase.UPDATE_PARAMETERS, myTimings.start());
+    final String report = report();
+    assertTrue(report, report.startsWith("Timings are enabled"));
+    assertTrue(report, getLine(report, Phase.CAN_START).matches(Phase.CAN_START.getDescription() + " +2 .*"));
+    assertTrue(report, getLine(report, Phase.UPDATE_PARAMETERS).matches(Phase.UPDATE_PARAMETERS.getDescription() + " +1 .*"));
+    assertTrue(report, getLine(report, Phase.TAKEN_LOCKS).matches(Phase.TAKEN_LOCKS.getDescription() + " +0 .*"));
+  }
+
+  @Test
+  public void testPercentile() {
+    // buckets: <=10: 5, <=50: 4, <=100: 1, rest are empty
+    final long[] counts = {5, 9, 10, 10, 10, 10, 10, 10, 10, 10, 10, 10};
+    assertEquals("<=10", PhaseTimings.percentile(counts, 10, 0.5));
+    assertEquals("<=50", PhaseTimings.percentile(counts, 10, 0.9));
+    assertEquals("<=100", PhaseTimings.percentile(counts, 10, 0.99));
+    assertEquals("-", PhaseTimings.percentile(new long[12], 0, 0.5));
+  }
+
+  @NotNull
+  private String report() {
+    final StringBuilder out = new StringBuilder();
+    myTimings.report(out);
+    return out.toString();
+  }
+
+  @NotNull
+  private static String getLine(@NotNull final String report, @NotNull final Phase phase) {
+    for (String line : report.split("\n")) {
+      if (line.startsWith(phase.getDescription() + " ")) {
+        return line.trim();
+      }
+    }
+    fail("No line for " + phase + " in:\n" + report);
+    return "";
+  }
+}
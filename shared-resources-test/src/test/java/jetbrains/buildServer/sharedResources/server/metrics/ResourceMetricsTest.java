@@ -0,0 +1,126 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.metrics;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = ResourceMetrics.class)
+public class ResourceMetricsTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private ResourceMetrics myMetrics;
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("r1", "PROJECT_ID", "resource1", 1, true);
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myMetrics = new ResourceMetrics(EventDispatcher.create(BuildServerListener.class));
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testBlockedAndAcquired() {
+    final BuildPromotion waiting = createPromotion(1L);
+    final BuildPromotion other = createPromotion(2L);
+    final Map<String, List<BuildPromotion>> fairSet = Collections.singletonMap("r1", Arrays.asList(waiting, other));
+
+    myMetrics.onBlocked(waiting, Collections.singleton(myResource), fairSet);
+    myMetrics.onBlocked(waiting, Collections.singleton(myResource), fairSet);
+    myMetrics.onAcquired(waiting, Collections.singletonMap("resource1", myResource), Collections.singletonMap(new Lock("resource1", LockType.READ), ""));
+
+    final String reported = report();
+    assertReported(reported, "resource1 (r1)");
+    assertReported(reported, "  blocked evaluations: 2");
+    assertReported(reported, "  fair set length: 2");
+    assertReported(reported, "  holders: 1");
+    assertTrue(reported, reported.contains("  queue wait: count 1, mean 0 s, buckets <=1s: 1 "));
+    assertReported(reported, "  hold duration: count 0");
+  }
+
+  @Test
+  public void testReleased() {
+    final BuildPromotion promotion = createPromotion(1L);
+    myMetrics.onAcquired(promotion, Collections.singletonMap("resource1", myResource), Collections.singletonMap(new Lock("resource1", LockType.WRITE), ""));
+    myMetrics.onReleased(1L, System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2));
+
+    final String reported = report();
+    assertReported(reported, "  holders: 0");
+    assertReported(reported, "  hold duration: count 1, mean 7200 s, buckets <=1s: 0 <=10s: 0 <=30s: 0 <=60s: 0 <=300s: 0 <=900s: 0 <=1800s: 0 <=3600s: 0 <=14400s: 1 more: 0");
+
+    // second release of the same build is ignored
+    myMetrics.onReleased(1L, System.currentTimeMillis());
+    assertTrue(report().contains("  hold duration: count 1,"));
+  }
+
+  @Test
+  public void testNoMetricsWithoutResources() {
+    final String reported = report();
+    assertReported(reported, "No resources blocked or were locked by the builds since the server start");
+    assertFalse(reported.contains("holders"));
+  }
+
+  @NotNull
+  private String report() {
+    final StringBuilder out = new StringBuilder();
+    myMetrics.report(out);
+    return out.toString();
+  }
+
+  private static void assertReported(@NotNull final String reported, @NotNull final String line) {
+    assertTrue("Expected [" + line + "] in:\n" + reported, reported.contains(line + "\n"));
+  }
+
+  @NotNull
+  private BuildPromotion createPromotion(final long id) {
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+
+      allowing(promotion).getAssociatedBuild();
+      will(returnValue(null));
+    }});
+    return promotion;
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jetbrains.buildServer.sharedResources.server.report;
+
+import java.io.File;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = DiagnosticArtifactsWriter.class)
+public class DiagnosticArtifactsWriterTest extends BaseTestCase {
+
+  private static final String PATH = ".teamcity/test/artifact.txt";
+
+  private Mockery m;
+
+  private File myArtifactsDir;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myArtifactsDir = createTempDir();
+  }
+
+  @Test
+  public void testSynchronous() throws Exception {
+    final DiagnosticArtifactsWriter writer = DiagnosticArtifactsWriter.synchronous();
+    writer.write(createPromotion(1L), PATH, w -> w.write("content"));
+    assertEquals("content", FileUtil.readText(new File(myArtifactsDir, PATH)));
+  }
+
+  @Test
+  public void testPendingWrittenOnRequest() throws Exception {
+    final DiagnosticArtifactsWriter writer = new DiagnosticArtifactsWriter(EventDispatcher.create(BuildServerListener.class));
+    try {
+      final BuildPromotion promotion = createPromotion(1L);
+      for (int i = 0; i < 100; i++) {
+        final String path = PATH + i;
+        writer.write(promotion, path, w -> w.write("content"));
+        // artifact is either queued, being written by the background thread or already written
+        writer.writePending(promotion);
+        assertEquals("content", FileUtil.readText(new File(myArtifactsDir, path)));
+      }
+    } finally {
+      writer.shutdown();
+    }
+  }
+
+  @Test
+  public void testWrittenOnShutdown() throws Exception {
+    final DiagnosticArtifactsWriter writer = new DiagnosticArtifactsWriter(EventDispatcher.create(BuildServerListener.class));
+    final BuildPromotion promotion = createPromotion(1L);
+    writer.shutdown();
+    writer.write(promotion, PATH, w -> w.write("content"));
+    // no background writing after shutdown
+    assertEquals("content", FileUtil.readText(new File(myArtifactsDir, PATH)));
+  }
+
+  @NotNull
+  private BuildPromotion createPromotion(final long id) {
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+
+      allowing(promotion).getArtifactsDirectory();
+      will(returnValue(myArtifactsDir));
+    }});
+    return promotion;
+  }
+}
@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.sharedResources.server.report;
 
+import com.google.gson.JsonParseException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
@@ -58,6 +59,26 @@ public class UsedResourcesSerializerTest extends BaseTestCase {
     doTest("custom.json", usedResource);
   }
 
+  @Test
+  public void testReadPrettyPrinted() throws Exception {
+    // reports of the builds started by the previous versions of the plugin
+    List<UsedResource> usedResources;
+    try (StringReader reader = new StringReader(read("custom_pretty.json"))) {
+      usedResources = mySerializer.read(reader);
+    }
+    assertEquals(1, usedResources.size());
+    final UsedResource ur = usedResources.get(0);
+    assertEquals(ResourceFactory.newCustomResource("myId", "projectId", "resource_name", Arrays.asList("a", "b", "c", "d"), true), ur.getResource());
+    assertEquals(new Lock("resource_name", LockType.READ, "a"), ur.getLocks().iterator().next());
+  }
+
+  @Test(expectedExceptions = JsonParseException.class)
+  public void testReadInvalidResource() throws Exception {
+    try (StringReader reader = new StringReader("[{\"resource\":{\"name\":\"resource_name\",\"type\":\"UNKNOWN\"},\"locks\":[]}]")) {
+      mySerializer.read(reader);
+    }
+  }
+
   private void doTest(@NotNull final String fileName, @NotNull final UsedResource usedResource) throws Exception {
     String result;
     try (StringWriter writer = new StringWriter()) {
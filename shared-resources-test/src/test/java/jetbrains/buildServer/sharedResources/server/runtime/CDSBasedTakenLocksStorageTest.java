@@ -14,11 +14,13 @@ import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.CustomDataStorage;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.server.report.DiagnosticArtifactsWriter;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
@@ -45,7 +47,8 @@ public class CDSBasedTakenLocksStorageTest extends BaseServerTestCase {
                                                    myFixture.getBuildPromotionManager(),
                                                    myFixture.getBuildsManager(),
                                                    myFixture.getServerResponsibility(),
-                                                   myFixture.getEventDispatcher());
+                                                   myFixture.getEventDispatcher(),
+                                                   DiagnosticArtifactsWriter.synchronous());
   }
 
   @Test
@@ -93,13 +96,53 @@ public class CDSBasedTakenLocksStorageTest extends BaseServerTestCase {
 
   @Test
   public void empty_locks_map() {
-    String serialized = CDSBasedTakenLocksStorage.serializeTakenLocks(Collections.emptyMap());
+    String serialized = CDSBasedTakenLocksStorage.serializeTakenLocks(Collections.emptyList());
     Map<String, Lock> deserialized = CDSBasedTakenLocksStorage.deserializeTakenLocks(serialized);
     then(deserialized).isEmpty();
   }
 
   @Test
-  public void testStore_NoValues() {
+  public void encode_decode() {
+    final String encoded = CDSBasedTakenLocksStorage.encodeTakenLocks(Arrays.asList(new Lock("lock1", LockType.READ),
+                                                                                   new Lock("lock2", LockType.WRITE, "My Value 2")));
+    then(encoded).startsWith(CDSBasedTakenLocksStorage.COMPACT_FORMAT_HEADER);
+    final Map<String, Lock> decoded = CDSBasedTakenLocksStorage.decodeTakenLocks(encoded);
+    then(decoded).hasSize(2);
+    then(decoded.get("lock1").getType()).isEqualTo(LockType.READ);
+    then(decoded.get("lock1").getValue()).isEmpty();
+    then(decoded.get("lock2").getType()).isEqualTo(LockType.WRITE);
+    then(decoded.get("lock2").getValue()).isEqualTo("My Value 2");
+  }
+
+  @Test
+  public void encode_decode_weighted() {
+    final String encoded = CDSBasedTakenLocksStorage.encodeTakenLocks(Arrays.asList(new Lock("lock1", LockType.READ, "", 4),
+                                                                                   new Lock("lock2", LockType.READ)));
+    final Map<String, Lock> decoded = CDSBasedTakenLocksStorage.decodeTakenLocks(encoded);
+    then(decoded).hasSize(2);
+    then(decoded.get("lock1").getType()).isEqualTo(LockType.READ);
+    then(decoded.get("lock1").getWeight()).isEqualTo(4);
+    then(decoded.get("lock1").getValue()).isEmpty();
+    then(decoded.get("lock2").getWeight()).isEqualTo(Lock.DEFAULT_WEIGHT);
+  }
+
+  @Test
+  public void decode_legacy_format() {
+    final Map<String, Lock> decoded = CDSBasedTakenLocksStorage.decodeTakenLocks("lock1\treadLock\t \nlock2\twriteLock\tMy Value 2\n");
+    then(decoded).hasSize(2);
+    then(decoded.get("lock1").getType()).isEqualTo(LockType.READ);
+    then(decoded.get("lock1").getValue()).isEmpty();
+    then(decoded.get("lock2").getValue()).isEqualTo("My Value 2");
+  }
+
+  @Test
+  public void decode_incorrect_values() {
+    final Map<String, Lock> decoded = CDSBasedTakenLocksStorage.decodeTakenLocks(CDSBasedTakenLocksStorage.COMPACT_FORMAT_HEADER + "rlock1\t\nHELLO!\nxlock2\t\n");
+    then(decoded).containsOnlyKeys("lock1");
+  }
+
+  @Test
+  public void testStore_NoValues() throws Exception {
     SRunningBuild build = myFixture.startBuild();
 
     final Map<Lock, String> takenLocks = new HashMap<>();
@@ -117,6 +160,10 @@ public class CDSBasedTakenLocksStorageTest extends BaseServerTestCase {
     then(result.values()).contains(lock1, lock2);
     then(result.get(lock1.getName()).getValue()).isEmpty();
     then(result.get(lock2.getName()).getValue()).isEmpty();
+
+    // diagnostic artifact contains the locks in the legacy format
+    final File artifact = new File(build.getBuildPromotion().getArtifactsDirectory(), CDSBasedTakenLocksStorage.FILE_PATH);
+    then(CDSBasedTakenLocksStorage.deserializeTakenLocks(FileUtil.readText(artifact))).isEqualTo(result);
   }
 
   @Test
@@ -176,4 +223,81 @@ public class CDSBasedTakenLocksStorageTest extends BaseServerTestCase {
 
     then(myLocksStorage.locksStored(build.getBuildPromotion())).isFalse();
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGetAllTakenLocks_UpdatedByEvents() {
+    SRunningBuild build = myFixture.startBuild();
+    then(myLocksStorage.getAllTakenLocks()).isEmpty();
+
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    takenLocks.put(new Lock("lock1", LockType.READ), "");
+    takenLocks.put(new Lock("lock2", LockType.WRITE), "value");
+    myLocksStorage.store(build.getBuildPromotion(), takenLocks);
+
+    final Map<BuildPromotion, Map<String, Lock>> allTakenLocks = myLocksStorage.getAllTakenLocks();
+    then(allTakenLocks).hasSize(1);
+    then(allTakenLocks.get(build.getBuildPromotion())).hasSize(2);
+    then(allTakenLocks.get(build.getBuildPromotion()).get("lock2").getValue()).isEqualTo("value");
+
+    finishBuild();
+
+    then(myLocksStorage.getAllTakenLocks()).isEmpty();
+  }
+
+  @Test
+  public void testGetAllTakenLocks_LoadedFromStorage() {
+    SRunningBuild build = myFixture.startBuild();
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    takenLocks.put(new Lock("lock1", LockType.READ), "");
+    myLocksStorage.store(build.getBuildPromotion(), takenLocks);
+
+    // emulate server restart: new storage instance has to read the locks from custom data storage
+    final LocksStorage restarted = new CDSBasedTakenLocksStorage(myFixture.getProjectManager(),
+                                                                 myFixture.getBuildPromotionManager(),
+                                                                 myFixture.getBuildsManager(),
+                                                                 myFixture.getServerResponsibility(),
+                                                                 myFixture.getEventDispatcher(),
+                                                                 DiagnosticArtifactsWriter.synchronous());
+    then(restarted.locksStored(build.getBuildPromotion())).isTrue();
+    final Map<BuildPromotion, Map<String, Lock>> allTakenLocks = restarted.getAllTakenLocks();
+    then(allTakenLocks).hasSize(1);
+    then(allTakenLocks.get(build.getBuildPromotion())).containsOnlyKeys("lock1");
+  }
+
+  @Test
+  public void testGetAllTakenLocks_FinishEventMissed() {
+    // storage does not receive build events
+    final LocksStorage storage = new CDSBasedTakenLocksStorage(myFixture.getProjectManager(),
+                                                               myFixture.getBuildPromotionManager(),
+                                                               myFixture.getBuildsManager(),
+                                                               myFixture.getServerResponsibility(),
+                                                               EventDispatcher.create(BuildServerListener.class),
+                                                               DiagnosticArtifactsWriter.synchronous());
+    SRunningBuild build = myFixture.startBuild();
+    final Map<Lock, String> takenLocks = new HashMap<>();
+    takenLocks.put(new Lock("lock1", LockType.READ), "");
+    storage.store(build.getBuildPromotion(), takenLocks);
+    then(storage.getAllTakenLocks()).hasSize(1);
+
+    finishBuild();
+
+    then(storage.getAllTakenLocks()).isEmpty();
+    then(storage.locksStored(build.getBuildPromotion())).isFalse();
+  }
+
+  @Test
+  public void testGetAllTakenLocks_LegacyFormatMigrated() {
+    SRunningBuild build = myFixture.startBuild();
+    final CustomDataStorage cds = myFixture.getProjectManager().getRootProject().getCustomDataStorage(CDSBasedTakenLocksStorage.SHARED_RESOURCES_TAKEN_LOCKS_CDS_ID);
+    final String key = "buildId:" + build.getBuildId();
+    cds.putValue(key, "lock1\treadLock\t \nlock2\twriteLock\tvalue\n");
+
+    final Map<BuildPromotion, Map<String, Lock>> allTakenLocks = myLocksStorage.getAllTakenLocks();
+    then(allTakenLocks.get(build.getBuildPromotion())).containsOnlyKeys("lock1", "lock2");
+    then(allTakenLocks.get(build.getBuildPromotion()).get("lock2").getValue()).isEqualTo("value");
+
+    final String migrated = cds.getValue(key);
+    then(migrated).startsWith(CDSBasedTakenLocksStorage.COMPACT_FORMAT_HEADER);
+    then(CDSBasedTakenLocksStorage.decodeTakenLocks(migrated)).isEqualTo(allTakenLocks.get(build.getBuildPromotion()));
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import gnu.trove.TLongObjectHashMap;
+import java.util.Arrays;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.sharedResources.model.resources.CustomResource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = CustomValueSlots.class)
+public class CustomValueSlotsTest extends BaseTestCase {
+
+  private final CustomResource myResource = (CustomResource)ResourceFactory.newCustomResource("id", "project", "resource", Arrays.asList("a", "b", "a", "c"), true);
+
+  private final int a = myResource.getValueIndex("a");
+
+  private final int b = myResource.getValueIndex("b");
+
+  private final int c = myResource.getValueIndex("c");
+
+  @Test
+  public void testNextFreeValue() {
+    final CustomValueSlots slots = new CustomValueSlots(myResource);
+    assertNextFree(slots, a);
+    assertTrue(slots.occupy(a));
+    assertNextFree(slots, b);
+    assertTrue(slots.occupy(b));
+    assertNextFree(slots, a);
+    assertTrue(slots.occupy(a));
+    assertNextFree(slots, c);
+    assertTrue(slots.occupy(c));
+    assertNull(slots.getNextFreeValueIndices(1));
+  }
+
+  @Test
+  public void testDuplicateValues() {
+    final CustomValueSlots slots = new CustomValueSlots(myResource);
+    assertFalse(slots.isOccupied(a));
+    assertTrue(slots.occupy(a));
+    assertTrue(slots.isOccupied(a));
+    assertTrue(slots.occupy(a));
+    assertFalse(slots.occupy(a));
+    assertNextFree(slots, b);
+  }
+
+  @Test
+  public void testUnknownValue() {
+    assertEquals(-1, myResource.getValueIndex("unknown"));
+    assertEquals(0, myResource.resolveValueIndices("unknown").length);
+  }
+
+  @Test
+  public void testOccupiedByReservedValues() {
+    final CustomValueSlots slots = CustomValueSlots.occupiedBy(myResource, null, reserved(1L, "a"));
+    assertTrue(slots.isOccupied(a));
+    assertNextFree(slots, b);
+  }
+
+  @Test
+  public void testNextFreeValues() {
+    final CustomValueSlots slots = new CustomValueSlots(myResource);
+    assertTrue(slots.occupy(b));
+    assertNextFree(slots, a, a, c);
+    // all or nothing
+    assertNull(slots.getNextFreeValueIndices(4));
+  }
+
+  @Test
+  public void testOccupiedByJoinedReservedValues() {
+    final String joined = CustomResource.joinValues(Arrays.asList("a", "b"));
+    assertEquals(Arrays.asList("a", "b"), CustomResource.splitValues(joined));
+    final CustomValueSlots slots = CustomValueSlots.occupiedBy(myResource, null, reserved(1L, joined));
+    assertTrue(slots.isOccupied(b));
+    assertNextFree(slots, a, c);
+    assertNull(slots.getNextFreeValueIndices(3));
+  }
+
+  @Test
+  public void testValueIndices() {
+    assertEquals("a", myResource.getValue(a));
+    assertTrue(Arrays.equals(new int[]{0, 2}, myResource.getSlots(a)));
+    assertEquals(c, myResource.getSlotValueIndex(3));
+    assertTrue(Arrays.equals(new int[]{a, c}, myResource.resolveValueIndices(CustomResource.joinValues(Arrays.asList("a", "unknown", "c")))));
+
+    final CustomValueSlots slots = new CustomValueSlots(myResource);
+    assertTrue(slots.occupy(a));
+    assertTrue(slots.isOccupied(a));
+    assertFalse(slots.isOccupied(c));
+    assertNextFree(slots, b, a);
+  }
+
+  private static void assertNextFree(@NotNull final CustomValueSlots slots, final int... expectedValueIndices) {
+    final int[] actual = slots.getNextFreeValueIndices(expectedValueIndices.length);
+    assertTrue(Arrays.toString(actual), Arrays.equals(expectedValueIndices, actual));
+  }
+
+  @NotNull
+  private TLongObjectHashMap<int[]> reserved(final long promotionId, @NotNull final String value) {
+    final TLongObjectHashMap<int[]> result = new TLongObjectHashMap<>();
+    result.put(promotionId, myResource.resolveValueIndices(value));
+    return result;
+  }
+}
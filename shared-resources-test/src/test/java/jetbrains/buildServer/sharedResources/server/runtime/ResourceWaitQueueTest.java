@@ -0,0 +1,240 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
+import jetbrains.buildServer.sharedResources.model.Lock;
+import jetbrains.buildServer.sharedResources.model.LockType;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.sharedResources.model.resources.ResourceFactory;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = ResourceWaitQueue.class)
+public class ResourceWaitQueueTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private EventDispatcher<BuildServerListener> myDispatcher;
+
+  private final AtomicLong myTime = new AtomicLong();
+
+  private ResourceWaitQueue myQueue;
+
+  private final Resource myResource = ResourceFactory.newQuotedResource("r1", "PROJECT_ID", "resource1", 1, true);
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery();
+    myTime.set(TimeUnit.DAYS.toMillis(1));
+    myDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myQueue = new ResourceWaitQueue(myDispatcher, myTime::get);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testAgedPredecessor() {
+    final BuildPromotion first = createPromotion(1L);
+    final BuildPromotion second = createPromotion(2L);
+    myQueue.onBlocked(first, read());
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(1));
+    myQueue.onBlocked(second, read());
+
+    // aging is disabled by default
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    assertNull(myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+    myTime.addAndGet(-TimeUnit.HOURS.toMillis(1));
+
+    setInternalProperty(SharedResourcesPluginConstants.WAIT_AGING_THRESHOLD_SECONDS, "600");
+    // nobody waited long enough
+    assertNull(myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(10));
+    // the builds are still checked by the precondition
+    myQueue.onBlocked(first, read());
+    myQueue.onBlocked(second, read());
+    assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(11)), myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+    assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(11)), myQueue.findAgedPredecessor(myResource, 2L, id -> false));
+    // the longest waiting build has no predecessors
+    assertNull(myQueue.findAgedPredecessor(myResource, 1L, id -> false));
+    // the longest waiting build is scheduled to start
+    assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(10)), myQueue.findAgedPredecessor(myResource, 3L, id -> id == 1L));
+  }
+
+  @Test
+  public void testAgedPredecessorNotEvaluated() {
+    setInternalProperty(SharedResourcesPluginConstants.WAIT_AGING_THRESHOLD_SECONDS, "600");
+    final BuildPromotion first = createPromotion(1L);
+    final BuildPromotion second = createPromotion(2L);
+    myQueue.onBlocked(first, read());
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(1));
+    myQueue.onBlocked(second, read());
+
+    // both builds are checked in every cycle
+    for (int i = 0; i < 3; i++) {
+      myTime.addAndGet(TimeUnit.MINUTES.toMillis(4));
+      myQueue.onBlocked(first, read());
+      myQueue.onBlocked(second, read());
+    }
+    assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(13)), myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+
+    // the first build is held back by another precondition, the next one takes precedence
+    for (int i = 0; i < 2; i++) {
+      myTime.addAndGet(TimeUnit.MINUTES.toMillis(4));
+      myQueue.onBlocked(second, read());
+    }
+    assertEquals(Long.valueOf(TimeUnit.MINUTES.toMillis(20)), myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+    assertNull(myQueue.findAgedPredecessor(myResource, 2L, id -> false));
+
+    // the reader is not starved when none of the aged builds is checked anymore
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(10));
+    assertNull(myQueue.findAgedPredecessor(myResource, 3L, id -> false));
+  }
+
+  @Test
+  public void testRemovedFromQueue() {
+    setInternalProperty(SharedResourcesPluginConstants.WAIT_AGING_THRESHOLD_SECONDS, "600");
+    final BuildPromotion first = createPromotion(1L);
+    myQueue.onBlocked(first, read());
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    myQueue.onBlocked(first, read());
+    assertNotNull(myQueue.findAgedPredecessor(myResource, 2L, id -> false));
+
+    final SQueuedBuild queued = m.mock(SQueuedBuild.class);
+    m.checking(new Expectations() {{
+      allowing(queued).getBuildPromotion();
+      will(returnValue(first));
+    }});
+    myDispatcher.getMulticaster().buildRemovedFromQueue(queued, null, null);
+    assertNull(myQueue.findAgedPredecessor(myResource, 2L, id -> false));
+  }
+
+  @Test
+  public void testReservation() {
+    final BuildPromotion reader = createPromotion(1L);
+    final BuildPromotion writer1 = createPromotion(2L);
+    final BuildPromotion writer2 = createPromotion(3L);
+    myQueue.onBlocked(reader, read());
+    myQueue.onBlocked(writer1, write());
+    myQueue.onBlocked(writer2, write());
+
+    // reservations are disabled by default
+    assertNull(myQueue.reserve(myResource, id -> false));
+
+    setInternalProperty(SharedResourcesPluginConstants.RESERVATIONS_ENABLED, "true");
+    assertEquals(Long.valueOf(2L), myQueue.reserve(myResource, id -> false));
+    // the reserved build is scheduled to start
+    assertNull(myQueue.reserve(myResource, id -> id == 2L));
+
+    // the reservation times out, the resource is reserved for the next waiting writer
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    assertEquals(Long.valueOf(3L), myQueue.reserve(myResource, id -> false));
+
+    myQueue.remove(3L);
+    assertNull(myQueue.reserve(myResource, id -> false));
+  }
+
+  @Test
+  public void testReservationQueryIsReadOnly() {
+    final BuildPromotion writer1 = createPromotion(1L);
+    final BuildPromotion writer2 = createPromotion(2L);
+    myQueue.onBlocked(writer1, write());
+    myQueue.onBlocked(writer2, write());
+    setInternalProperty(SharedResourcesPluginConstants.RESERVATIONS_ENABLED, "true");
+
+    assertEquals(Long.valueOf(1L), myQueue.getReservation(myResource, id -> false));
+    // the query did not reserve the resource, so there is no reservation to time out
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    assertEquals(Long.valueOf(1L), myQueue.getReservation(myResource, id -> false));
+
+    assertEquals(Long.valueOf(1L), myQueue.reserve(myResource, id -> false));
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    // the reservation timed out, the next waiting writer would get the resource
+    assertEquals(Long.valueOf(2L), myQueue.getReservation(myResource, id -> false));
+    // the query did not reserve the resource for the next writer either, so its reservation can not time out
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    assertEquals(Long.valueOf(2L), myQueue.getReservation(myResource, id -> false));
+  }
+
+  @Test
+  public void testWaitingWriterNotEvaluated() {
+    final BuildPromotion writer1 = createPromotion(1L);
+    final BuildPromotion writer2 = createPromotion(2L);
+    myQueue.onBlocked(writer1, write());
+    myQueue.onBlocked(writer2, write());
+    assertEquals(Arrays.asList(writer1, writer2), myQueue.getWaitingWriters().get(myResource.getId()));
+
+    // the first writer is held back by another precondition and is not checked anymore
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(3));
+    myQueue.onBlocked(writer2, write());
+    myTime.addAndGet(TimeUnit.MINUTES.toMillis(3));
+    assertEquals(Collections.singletonList(writer2), myQueue.getWaitingWriters().get(myResource.getId()));
+    // the removed writer does not take precedence over the build that is still checked
+    setInternalProperty(SharedResourcesPluginConstants.WAIT_AGING_THRESHOLD_SECONDS, "600");
+    myTime.addAndGet(TimeUnit.HOURS.toMillis(1));
+    myQueue.onBlocked(writer2, read());
+    assertNull(myQueue.findAgedPredecessor(myResource, 2L, id -> false));
+
+    // initialization of the fair set is disabled
+    myQueue.onBlocked(writer2, write());
+    setInternalProperty(SharedResourcesPluginConstants.WAIT_QUEUE_EVALUATION_TIMEOUT_SECONDS, "0");
+    assertEmpty(myQueue.getWaitingWriters().keySet());
+  }
+
+  @NotNull
+  private Map<Resource, Lock> read() {
+    return Collections.singletonMap(myResource, new Lock(myResource.getName(), LockType.READ));
+  }
+
+  @NotNull
+  private Map<Resource, Lock> write() {
+    return Collections.singletonMap(myResource, new Lock(myResource.getName(), LockType.WRITE));
+  }
+
+  @NotNull
+  private BuildPromotion createPromotion(final long id) {
+    final BuildPromotion promotion = m.mock(BuildPromotion.class, "promotion-" + id);
+    m.checking(new Expectations() {{
+      allowing(promotion).getId();
+      will(returnValue(id));
+    }});
+    return promotion;
+  }
+}
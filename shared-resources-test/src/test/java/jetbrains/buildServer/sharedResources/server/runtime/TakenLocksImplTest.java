@@ -4,12 +4,15 @@ package jetbrains.buildServer.sharedResources.server.runtime;
 
 import com.intellij.openapi.util.Trinity;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
 import jetbrains.buildServer.serverSide.impl.ProjectEx;
 import jetbrains.buildServer.serverSide.impl.buildDistribution.BuildDistributorInputEx;
 import jetbrains.buildServer.serverSide.impl.projects.ProjectImpl;
+import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.DistributionData;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
@@ -20,10 +23,14 @@ import jetbrains.buildServer.sharedResources.server.feature.Locks;
 import jetbrains.buildServer.sharedResources.server.feature.Resources;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeature;
 import jetbrains.buildServer.sharedResources.server.feature.SharedResourcesFeatures;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
+import org.jmock.api.Invocation;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -67,6 +74,12 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   private final String myProjectId = "MY_PROJECT_ID";
 
+  private final Map<BuildPromotion, Integer> myPriorities = new HashMap<>();
+
+  private ResourceWaitQueue myWaitQueue;
+
+  private final Map<Object, Long> myPromotionIds = new IdentityHashMap<>();
+
 
   @BeforeMethod
   @Override
@@ -74,6 +87,8 @@ public class TakenLocksImplTest extends BaseTestCase {
     super.setUp();
     m = new Mockery() {{
       setImposteriser(ClassImposteriser.INSTANCE);
+      // taken locks can be collected by several threads
+      setThreadingPolicy(new Synchroniser());
     }};
     myLocks = m.mock(Locks.class);
     myResources = m.mock(Resources.class);
@@ -92,12 +107,25 @@ public class TakenLocksImplTest extends BaseTestCase {
       allowing(myPromotion).getId();
       will(returnValue(201L));
 
+      // taken locks are kept by promotion id
+      allowing(any(BuildPromotion.class)).method("getId");
+      will(new CustomAction("returns promotion id") {
+        @Override
+        public Object invoke(final Invocation invocation) {
+          return myPromotionIds.computeIfAbsent(invocation.getInvokedObject(), it -> 1000L + myPromotionIds.size());
+        }
+      });
+
       allowing(myBuildDistributorInput).getCustomData(with(any(String.class)), with(any(Class.class)));
       will(returnValue(new DistributionData()));
     }});
 
     myAccessor = new DistributionDataAccessor(myBuildDistributorInput);
-    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures);
+    myPriorities.clear();
+    myPromotionIds.clear();
+    myWaitQueue = new ResourceWaitQueue(EventDispatcher.create(BuildServerListener.class));
+    myTakenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures,
+                                      QueuePriorityComparator.create(p -> myPriorities.getOrDefault(p, 0), p -> 0L), myWaitQueue);
   }
 
   @Test
@@ -114,11 +142,52 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   @Test
   public void testCollectRunningBuilds_Stored() {
-    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
-    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
+    final Resource resource1 = ResourceFactory.newInfiniteResource("resource1_id", myProjectId, "resource1", true);
+    final Resource resource2 = ResourceFactory.newInfiniteResource("resource2_id", myProjectId, "resource2", true);
+    final Collection<RunningBuildEx> runningBuilds = setupRunningBuilds_Stored(resource1, resource2);
 
+    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(runningBuilds, Collections.emptyList());
+    assertNotNull(result);
+    assertEquals(2, result.size());
+    final TakenLock tl1 = result.get(resource1);
+    assertNotNull(tl1);
+    assertEquals(2, tl1.getReadLocks().size());
+
+    final TakenLock tl2 = result.get(resource2);
+    assertNotNull(tl2);
+    assertTrue(tl2.hasWriteLocks());
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testCollectRunningBuilds_Parallel() {
     final Resource resource1 = ResourceFactory.newInfiniteResource("resource1_id", myProjectId, "resource1", true);
     final Resource resource2 = ResourceFactory.newInfiniteResource("resource2_id", myProjectId, "resource2", true);
+    final Collection<RunningBuildEx> runningBuilds = setupRunningBuilds_Stored(resource1, resource2);
+
+    final Map<Resource, TakenLock> sequential = myTakenLocks.collectTakenLocks(runningBuilds, Collections.emptyList());
+    // every build promotion is collected by its own thread
+    setInternalProperty(SharedResourcesPluginConstants.PARALLEL_COLLECTION_THRESHOLD, "1");
+    setInternalProperty(SharedResourcesPluginConstants.PARALLEL_COLLECTION_THREADS, String.valueOf(runningBuilds.size()));
+    try {
+      final Map<Resource, TakenLock> parallel = myTakenLocks.collectTakenLocks(runningBuilds, Collections.emptyList());
+      assertEquals(sequential.keySet(), parallel.keySet());
+      sequential.forEach((resource, takenLock) -> {
+        assertEquals(takenLock.getReadLocks(), parallel.get(resource).getReadLocks());
+        assertEquals(takenLock.getWriteLocks(), parallel.get(resource).getWriteLocks());
+      });
+      assertEquals(2, parallel.get(resource1).getReadLocks().size());
+      assertTrue(parallel.get(resource2).hasWriteLocks());
+    } finally {
+      ((TakenLocksImpl)myTakenLocks).dispose();
+    }
+    m.assertIsSatisfied();
+  }
+
+  @NotNull
+  private Collection<RunningBuildEx> setupRunningBuilds_Stored(@NotNull final Resource resource1, @NotNull final Resource resource2) {
+    final SharedResourcesFeature feature = m.mock(SharedResourcesFeature.class);
+    final Collection<SharedResourcesFeature> features = Collections.singleton(feature);
 
     final Map<String, Resource> resources = new HashMap<String, Resource>() {{
       put(resource1.getName(), resource1);
@@ -220,18 +289,7 @@ public class TakenLocksImplTest extends BaseTestCase {
       will(returnValue("rb2_bt"));
 
     }});
-
-    final Map<Resource, TakenLock> result = myTakenLocks.collectTakenLocks(runningBuilds, Collections.emptyList());
-    assertNotNull(result);
-    assertEquals(2, result.size());
-    final TakenLock tl1 = result.get(resource1);
-    assertNotNull(tl1);
-    assertEquals(2, tl1.getReadLocks().size());
-
-    final TakenLock tl2 = result.get(resource2);
-    assertNotNull(tl2);
-    assertTrue(tl2.hasWriteLocks());
-    m.assertIsSatisfied();
+    return runningBuilds;
   }
 
   @Test
@@ -565,6 +623,40 @@ public class TakenLocksImplTest extends BaseTestCase {
 
   }
 
+  @Test
+  public void testGetUnavailableLocks_WeightedRead_Quota() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource quotedResource = ResourceFactory.newQuotedResource("quoted_resource1_id", myProjectId, "quoted_resource1", 4, true);
+    resources.put(quotedResource.getName(), quotedResource);
+
+    final BuildPromotionEx bp1 = m.mock(BuildPromotionEx.class, "bp1");
+    final BuildTypeEx bp1bt = m.mock(BuildTypeEx.class, "bp1.bt");
+
+    // 3 of 4 units are taken
+    final Map<Resource, TakenLock> takenLocks = new HashMap<Resource, TakenLock>() {{
+      TakenLock tl1 = new TakenLock(quotedResource);
+      tl1.addLock(bp1, new Lock("quoted_resource1", LockType.READ, "", 3));
+      put(tl1.getResource(), tl1);
+    }};
+
+    m.checking(new Expectations() {{
+      allowing(bp1).getBuildType();
+      will(returnValue(bp1bt));
+
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    assertEquals(3, takenLocks.get(quotedResource).getTakenUnits());
+
+    final Collection<Lock> weightedLock = Collections.singletonList(new Lock("quoted_resource1", LockType.READ, "", 2));
+    final Map<Resource, String> result = myTakenLocks.getUnavailableLocks(weightedLock, takenLocks, myProjectId, myAccessor, myPromotion);
+    assertEquals(1, result.size());
+
+    final Collection<Lock> singleLock = Collections.singletonList(new Lock("quoted_resource1", LockType.READ));
+    assertTrue(myTakenLocks.getUnavailableLocks(singleLock, takenLocks, myProjectId, myAccessor, myPromotion).isEmpty());
+  }
+
   @Test
   public void testGetUnavailableLocks_ReadWrite() {
     final Map<String, Resource> resources = new HashMap<>();
@@ -836,6 +928,150 @@ public class TakenLocksImplTest extends BaseTestCase {
     }
   }
 
+  /**
+   * Test setup:
+   * - 1 quoted resource, 1 build holds read lock
+   * - low priority build waits for write lock
+   * - high priority build waits for write lock
+   * - builds of different priorities request read lock
+   *
+   * Expected results:
+   * - fair set is ordered by priority
+   * - read lock is blocked only by the writers not ranked below the reader
+   * - write lock on the free resource is blocked by the high priority writer
+   */
+  @Test
+  public void testGetUnavailableLocks_FairSetPriority() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource resource = ResourceFactory.newQuotedResource("resource_id", myProjectId, "resource", 5, true);
+    resources.put(resource.getName(), resource);
+
+    final Collection<Lock> writeLock = Collections.singleton(new Lock(resource.getName(), LockType.WRITE));
+    final Collection<Lock> readLock = Collections.singleton(new Lock(resource.getName(), LockType.READ));
+
+    final BuildPromotionEx holder = m.mock(BuildPromotionEx.class, "holder");
+    final BuildPromotion low = m.mock(BuildPromotion.class, "low");
+    final BuildPromotion high = m.mock(BuildPromotion.class, "high");
+    myPriorities.put(low, -10);
+    myPriorities.put(high, 10);
+
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final TakenLock tl = new TakenLock(resource);
+    tl.addLock(holder, new Lock(resource.getName(), LockType.READ));
+    takenLocks.put(resource, tl);
+
+    m.checking(new Expectations() {{
+      allowing(any(BuildPromotion.class)).method("getBuildType");
+      will(returnValue(null));
+
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+
+    assertEquals(1, myTakenLocks.getUnavailableLocks(writeLock, takenLocks, myProjectId, myAccessor, low).size());
+    assertEquals(1, myTakenLocks.getUnavailableLocks(writeLock, takenLocks, myProjectId, myAccessor, high).size());
+    assertEquals(Arrays.asList(high, low), myAccessor.getFairSet().get(resource.getId()));
+
+    // reader ranked between the writers is blocked by the high priority one only
+    assertEquals(1, myTakenLocks.getUnavailableLocks(readLock, takenLocks, myProjectId, myAccessor, myPromotion).size());
+    myPriorities.put(myPromotion, 20);
+    assertEmpty(myTakenLocks.getUnavailableLocks(readLock, takenLocks, myProjectId, myAccessor, myPromotion).keySet());
+
+    final Map<Resource, String> freeResult = myTakenLocks.getUnavailableLocks(writeLock, new HashMap<>(), myProjectId, myAccessor, low);
+    assertEquals(1, freeResult.size());
+    assertTrue(freeResult.get(resource).startsWith("(write lock requested by"));
+    assertEmpty(myTakenLocks.getUnavailableLocks(writeLock, new HashMap<>(), myProjectId, myAccessor, high).keySet());
+  }
+
+  /**
+   * Test setup:
+   * - 1 quoted resource
+   * - build waits for write lock on the resource since the previous distribution cycle
+   * - another build requests read lock on the free resource before the waiting build is processed
+   *
+   * Expected results:
+   * - read lock is blocked by the waiting build
+   * - read lock is available once the waiting build does not wait for the resource anymore
+   */
+  @Test
+  public void testGetUnavailableLocks_FairSetAcrossCycles() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource resource = ResourceFactory.newQuotedResource("resource_id", myProjectId, "resource", 5, true);
+    resources.put(resource.getName(), resource);
+
+    final BuildPromotion writer = m.mock(BuildPromotion.class, "writer");
+    m.checking(new Expectations() {{
+      allowing(writer).getId();
+      will(returnValue(101L));
+
+      allowing(writer).getBuildType();
+      will(returnValue(null));
+
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+    myWaitQueue.onBlocked(writer, Collections.singletonMap(resource, new Lock(resource.getName(), LockType.WRITE)));
+
+    final Collection<Lock> readLock = Collections.singleton(new Lock(resource.getName(), LockType.READ));
+    final Map<Resource, String> result = myTakenLocks.getUnavailableLocks(readLock, new HashMap<>(), myProjectId, myAccessor, myPromotion);
+    assertEquals(1, result.size());
+    assertTrue(result.get(resource).startsWith("(write lock requested by"));
+
+    myWaitQueue.onPassed(writer, Collections.singleton(resource));
+    assertEmpty(myTakenLocks.getUnavailableLocks(readLock, new HashMap<>(), myProjectId, createAccessor(), myPromotion).keySet());
+  }
+
+  /**
+   * Test setup:
+   * - 1 quoted resource
+   * - build waited for write lock on the resource, but is not checked by the precondition anymore
+   *   (e.g. it is held back by another precondition)
+   *
+   * Expected results:
+   * - read lock is blocked by the waiting build while it is checked recently
+   * - read lock is available once the waiting build was not checked longer than the timeout
+   */
+  @Test
+  public void testGetUnavailableLocks_FairSetWriterNotEvaluated() {
+    final Map<String, Resource> resources = new HashMap<>();
+    final Resource resource = ResourceFactory.newQuotedResource("resource_id", myProjectId, "resource", 5, true);
+    resources.put(resource.getName(), resource);
+
+    final BuildPromotion writer = m.mock(BuildPromotion.class, "writer");
+    m.checking(new Expectations() {{
+      allowing(writer).getId();
+      will(returnValue(101L));
+
+      allowing(writer).getBuildType();
+      will(returnValue(null));
+
+      allowing(myResources).getResourcesMap(myProjectId);
+      will(returnValue(resources));
+    }});
+    final AtomicLong time = new AtomicLong(TimeUnit.DAYS.toMillis(1));
+    final ResourceWaitQueue waitQueue = new ResourceWaitQueue(EventDispatcher.create(BuildServerListener.class), time::get);
+    final TakenLocksImpl takenLocks = new TakenLocksImpl(myLocks, myResources, myLocksStorage, myFeatures,
+                                                         QueuePriorityComparator.create(p -> 0, p -> 0L), waitQueue);
+    waitQueue.onBlocked(writer, Collections.singletonMap(resource, new Lock(resource.getName(), LockType.WRITE)));
+
+    final Collection<Lock> readLock = Collections.singleton(new Lock(resource.getName(), LockType.READ));
+    time.addAndGet(TimeUnit.MINUTES.toMillis(1));
+    assertEquals(1, takenLocks.getUnavailableLocks(readLock, new HashMap<>(), myProjectId, createAccessor(), myPromotion).size());
+
+    time.addAndGet(TimeUnit.HOURS.toMillis(1));
+    assertEmpty(takenLocks.getUnavailableLocks(readLock, new HashMap<>(), myProjectId, createAccessor(), myPromotion).keySet());
+  }
+
+  @NotNull
+  private DistributionDataAccessor createAccessor() {
+    final BuildDistributorInputEx input = m.mock(BuildDistributorInputEx.class, "input-" + generateRandomName());
+    m.checking(new Expectations() {{
+      allowing(input).getCustomData(with(any(String.class)), with(any(Class.class)));
+      will(returnValue(new DistributionData()));
+    }});
+    return new DistributionDataAccessor(input);
+  }
+
   @Test
   @TestFor (issues = "TW-27930")
   public void testGetUnavailableLocks_ResourceDisabled() {
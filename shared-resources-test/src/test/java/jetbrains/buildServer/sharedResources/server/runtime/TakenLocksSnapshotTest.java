@@ -0,0 +1,138 @@
+/*
+ * Copyright 2000-2025 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.sharedResources.server.runtime;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildPromotionEx;
+import jetbrains.buildServer.serverSide.RunningBuildEx;
+import jetbrains.buildServer.serverSide.buildDistribution.QueuedBuildInfo;
+import jetbrains.buildServer.sharedResources.model.TakenLock;
+import jetbrains.buildServer.sharedResources.model.resources.Resource;
+import jetbrains.buildServer.util.TestFor;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@TestFor(testForClass = TakenLocksSnapshot.class)
+public class TakenLocksSnapshotTest extends BaseTestCase {
+
+  private Mockery m;
+
+  private TakenLocks myTakenLocks;
+
+  private TakenLocksSnapshot mySnapshot;
+
+  private final Collection<RunningBuildEx> myRunningBuilds = Collections.emptyList();
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myTakenLocks = m.mock(TakenLocks.class);
+    mySnapshot = new TakenLocksSnapshot();
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    super.tearDown();
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void testCollectedOnce() {
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final List<QueuedBuildInfo> starting = new ArrayList<>();
+    m.checking(new Expectations() {{
+      oneOf(myTakenLocks).collectTakenLocks(myRunningBuilds, starting);
+      will(returnValue(takenLocks));
+    }});
+
+    assertSame(takenLocks, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting));
+    assertSame(takenLocks, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting));
+  }
+
+  @Test
+  public void testNewStartingBuildsAreAdded() {
+    final Map<Resource, TakenLock> takenLocks = new HashMap<>();
+    final List<QueuedBuildInfo> starting = new ArrayList<>();
+    final QueuedBuildInfo qb1 = createQueuedBuild(1L);
+    final QueuedBuildInfo qb2 = createQueuedBuild(2L);
+    starting.add(qb1);
+
+    m.checking(new Expectations() {{
+      oneOf(myTakenLocks).collectTakenLocks(myRunningBuilds, starting);
+      will(returnValue(takenLocks));
+
+      oneOf(myTakenLocks).addStartingBuilds(takenLocks, Collections.singletonList(qb2));
+    }});
+
+    assertSame(takenLocks, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting));
+    assertTrue(mySnapshot.isScheduledToStart(1L));
+    assertFalse(mySnapshot.isScheduledToStart(2L));
+    starting.add(qb2);
+    assertSame(takenLocks, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting));
+    assertTrue(mySnapshot.isScheduledToStart(2L));
+    // no new builds - nothing to add
+    assertSame(takenLocks, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting));
+  }
+
+  @Test
+  public void testRecollectedWhenStartingBuildIsGone() {
+    final Map<Resource, TakenLock> takenLocks1 = new HashMap<>();
+    final Map<Resource, TakenLock> takenLocks2 = new HashMap<>();
+    final QueuedBuildInfo qb1 = createQueuedBuild(1L);
+    final QueuedBuildInfo qb2 = createQueuedBuild(2L);
+    final List<QueuedBuildInfo> starting1 = Arrays.asList(qb1, qb2);
+    final List<QueuedBuildInfo> starting2 = Collections.singletonList(qb2);
+
+    m.checking(new Expectations() {{
+      oneOf(myTakenLocks).collectTakenLocks(myRunningBuilds, starting1);
+      will(returnValue(takenLocks1));
+
+      oneOf(myTakenLocks).collectTakenLocks(myRunningBuilds, starting2);
+      will(returnValue(takenLocks2));
+    }});
+
+    assertSame(takenLocks1, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting1));
+    assertSame(takenLocks2, mySnapshot.getTakenLocks(myTakenLocks, () -> myRunningBuilds, starting2));
+    assertFalse(mySnapshot.isScheduledToStart(1L));
+    assertTrue(mySnapshot.isScheduledToStart(2L));
+  }
+
+  @NotNull
+  private QueuedBuildInfo createQueuedBuild(final long promotionId) {
+    final QueuedBuildInfo qb = m.mock(QueuedBuildInfo.class, "queued-build-" + promotionId);
+    final BuildPromotionEx promotion = m.mock(BuildPromotionEx.class, "promotion-" + promotionId);
+    m.checking(new Expectations() {{
+      allowing(qb).getBuildPromotionInfo();
+      will(returnValue(promotion));
+
+      allowing(promotion).getId();
+      will(returnValue(promotionId));
+    }});
+    return qb;
+  }
+}
@@ -8,6 +8,7 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.impl.ProjectFeatureDescriptorFactory;
 import jetbrains.buildServer.serverSide.impl.RunningBuildsManagerEx;
 import jetbrains.buildServer.serverSide.parameters.BuildParametersProvider;
+import jetbrains.buildServer.serverSide.priority.PriorityClassManager;
 import jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants;
 import jetbrains.buildServer.sharedResources.model.Lock;
 import jetbrains.buildServer.sharedResources.model.LockType;
@@ -24,9 +25,14 @@ import jetbrains.buildServer.sharedResources.pages.beans.BeansFactory;
 import jetbrains.buildServer.sharedResources.server.*;
 import jetbrains.buildServer.sharedResources.server.analysis.ResourceUsageAnalyzer;
 import jetbrains.buildServer.sharedResources.server.feature.*;
+import jetbrains.buildServer.sharedResources.server.history.FileBasedResourceUsageHistory;
+import jetbrains.buildServer.sharedResources.server.history.ResourceUsageHistory;
+import jetbrains.buildServer.sharedResources.server.metrics.PhaseTimings;
+import jetbrains.buildServer.sharedResources.server.metrics.ResourceMetrics;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeatures;
 import jetbrains.buildServer.sharedResources.server.project.ResourceProjectFeaturesImpl;
 import jetbrains.buildServer.sharedResources.server.report.BuildUsedResourcesReport;
+import jetbrains.buildServer.sharedResources.server.report.DiagnosticArtifactsWriter;
 import jetbrains.buildServer.sharedResources.server.report.UsedResourcesSerializer;
 import jetbrains.buildServer.sharedResources.server.runtime.*;
 import jetbrains.buildServer.util.CollectionsUtil;
@@ -49,28 +55,38 @@ public class SharedResourcesIntegrationTestsSupport {
     final Locks locks = new LocksImpl();
     final SharedResourcesFeatureFactory factory = new SharedResourcesFeatureFactoryImpl(locks);
     final SharedResourcesFeatures features = new SharedResourcesFeaturesImpl(factory);
+    // artifacts are checked by the tests right after the build start
+    final DiagnosticArtifactsWriter artifactsWriter = DiagnosticArtifactsWriter.synchronous();
     final LocksStorage locksStorage = new CDSBasedTakenLocksStorage(fixture.getProjectManager(),
                                                                     fixture.getBuildPromotionManager(),
                                                                     fixture.getBuildsManager(),
                                                                     fixture.getServerResponsibility(),
-                                                                    fixture.getEventDispatcher());
+                                                                    fixture.getEventDispatcher(),
+                                                                    artifactsWriter);
 
-    final BuildUsedResourcesReport buildUsedResourcesReport = new BuildUsedResourcesReport(new UsedResourcesSerializer());
+    final BuildUsedResourcesReport buildUsedResourcesReport = new BuildUsedResourcesReport(new UsedResourcesSerializer(), artifactsWriter);
+
+    final ResourceUsageHistory usageHistory = new FileBasedResourceUsageHistory(fixture.getServerPaths(), fixture.getEventDispatcher(), locksStorage);
+
+    final ResourceMetrics metrics = new ResourceMetrics(fixture.getEventDispatcher());
+    final PhaseTimings timings = new PhaseTimings();
+    final ResourceWaitQueue waitQueue = new ResourceWaitQueue(fixture.getEventDispatcher());
 
     final BuildFeatureParametersProvider provider = new BuildFeatureParametersProvider(features, locks, locksStorage);
 
     final ResourceProjectFeaturesImpl projectFeatures = new ResourceProjectFeaturesImpl();
-    final Resources resources = new ResourcesImpl(fixture.getProjectManager(), projectFeatures);
+    final Resources resources = new ResourcesImpl(fixture.getProjectManager(), projectFeatures, fixture.getEventDispatcher());
 
-    final TakenLocks takenLocks = new TakenLocksImpl(locks, resources, locksStorage, features);
+    final TakenLocks takenLocks = new TakenLocksImpl(locks, resources, locksStorage, features,
+                                                     new QueuePriorityComparator(fixture.getSingletonService(PriorityClassManager.class)), waitQueue);
     final ConfigurationInspector inspector = new ConfigurationInspector(features, resources);
 
     final SharedResourcesStartBuildPrecondition startBuildPrecondition = new SharedResourcesStartBuildPrecondition(features, locks, takenLocks,
                                                                                                        fixture.getSingletonService(RunningBuildsManagerEx.class),
-                                                                                                       inspector, locksStorage, resources);
+                                                                                                       inspector, locksStorage, resources, metrics, timings, waitQueue);
 
     final SharedResourcesContextProcessor processor =
-      new SharedResourcesContextProcessor(features, locks, resources, locksStorage, buildUsedResourcesReport);
+      new SharedResourcesContextProcessor(features, locks, resources, locksStorage, buildUsedResourcesReport, usageHistory, metrics, timings);
 
     final ResourceUsageAnalyzer analyzer = new ResourceUsageAnalyzer(resources, features);
     final ResourceHelper resourceHelper = new ResourceHelper();
@@ -91,6 +107,10 @@ public class SharedResourcesIntegrationTestsSupport {
     fixture.addService(features);
     fixture.addService(projectFeatures);
     fixture.addService(buildUsedResourcesReport);
+    fixture.addService(usageHistory);
+    fixture.addService(metrics);
+    fixture.addService(timings);
+    fixture.addService(waitQueue);
     fixture.addService(startBuildPrecondition);
     fixture.addService(processor);
     fixture.addService(resources);
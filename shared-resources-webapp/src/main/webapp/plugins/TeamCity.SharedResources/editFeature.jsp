@@ -2,6 +2,7 @@
 <%@ include file="/include-internal.jsp" %>
 <%@ page contentType="text/html;charset=UTF-8" language="java" %>
 <%@ page import="jetbrains.buildServer.sharedResources.SharedResourcesPluginConstants" %>
+<%@ page import="jetbrains.buildServer.sharedResources.server.runtime.CustomValueSlots" %>
 <%@ page import="jetbrains.buildServer.sharedResources.server.feature.FeatureParams" %>
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@ taglib prefix="props" tagdir="/WEB-INF/tags/props" %>
@@ -14,6 +15,7 @@
 
 
 <c:set var="locksFeatureParamKey" value="<%=FeatureParams.LOCKS_FEATURE_PARAM_KEY%>"/>
+<c:set var="valuesSeparator" value="<%=CustomValueSlots.VALUES_SEPARATOR%>"/>
 <c:set var="PARAM_RESOURCE_NAME" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_NAME%>"/>
 <c:set var="PARAM_PROJECT_ID" value="<%=SharedResourcesPluginConstants.WEB.PARAM_PROJECT_ID%>"/>
 <c:set var="PARAM_RESOURCE_TYPE" value="<%=SharedResourcesPluginConstants.WEB.PARAM_RESOURCE_TYPE%>"/>
@@ -54,7 +56,7 @@ BS.LocksUtil = {
   },
 
   lockToString: function (lock) {
-    return lock.name + " " + lock.type + " " + (lock.value ? lock.value : "") + "\n";
+    return lock.name + " " + lock.type + (lock.weight > 1 ? ":" + lock.weight : "") + " " + (lock.value ? lock.value : "") + "\n";
   },
 
   lockToTableRow: function (lock) {
@@ -67,12 +69,17 @@ BS.LocksUtil = {
       } else {
         if (lock.value) {
           result.description = "Specific Value: " + lock.value;
+        } else if (lock.weight > 1) {
+          result.description = "Any " + lock.weight + " Values";
         } else {
           result.description = "Any Value";
         }
       }
     } else {
       result.description = this.locksDisplay[lock.type];
+      if (lock.weight > 1) {
+        result.description += " (" + lock.weight + " units of quota)";
+      }
     }
     result.parameter = "teamcity.locks." + lock.type + "." + lock.name;
     return result;
@@ -264,6 +271,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     // filter available resources
     this.fillAvailableResources();
     this.fillAvailableResourcesDropdown();
+    $j('#newLockWeight').val(1);
+    $j('#newCustomLockCount').val(1);
     // sync state (resources / no resources)
     this.displayResourceChooser();
     // sync state (resource type => locks type (quoted => read/write; custom=>ALL/ANY/SPECIFIC))
@@ -310,6 +319,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
         var self = $j(this);
         self.prop("selected", self.val() === customLockType);
       }); // restore lock type
+      $j('#newCustomLockCount').val(currentLock.weight > 1 ? currentLock.weight : 1);
       this.chooseCustomLockType();
       if (customLockType === 'SPECIFIC') {
         // restore selection
@@ -323,6 +333,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
         var self = $j(this);
         self.prop("selected", self.val() === currentLock.type);
       }); // restore lock type
+      $j('#newLockWeight').val(currentLock.weight > 1 ? currentLock.weight : 1);
+      this.chooseQuotedLockType();
     }
     this.showCentered();
     this.bindCtrlEnterHandler(this.submit.bind(this));
@@ -369,7 +381,9 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
 
       BS.Util.hide('row_CustomResource_Type');
       BS.Util.hide('row_QuotedResource_Type');
+      BS.Util.hide('row_QuotedResource_Weight');
       BS.Util.hide('row_CustomResource_Value');
+      BS.Util.hide('row_CustomResource_Count');
       BS.Util.hide('locksDialogSubmit');
     }
   },
@@ -384,13 +398,25 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
       BS.Util.show('row_QuotedResource_Type');
       BS.Util.hide('row_CustomResource_Type');
       BS.Util.hide('row_CustomResource_Value');
+      BS.Util.hide('row_CustomResource_Count');
+      this.chooseQuotedLockType();
     } else {
       BS.Util.show('row_CustomResource_Type');
       BS.Util.hide('row_QuotedResource_Type');
+      BS.Util.hide('row_QuotedResource_Weight');
       this.chooseCustomLockType();
     }
   },
 
+  chooseQuotedLockType: function () {
+    // weight is meaningful only for read locks, write lock takes the whole resource
+    if ('readLock' === $j('#newLockType option:selected').val()) {
+      BS.Util.show('row_QuotedResource_Weight');
+    } else {
+      BS.Util.hide('row_QuotedResource_Weight');
+    }
+  },
+
   chooseCustomLockType: function () {
     var customType = $j('#newCustomLockType option:selected').val();
     if ('SPECIFIC' === customType) {
@@ -399,6 +425,11 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     } else {
       BS.Util.hide('row_CustomResource_Value');
     }
+    if ('ANY' === customType) {
+      BS.Util.show('row_CustomResource_Count');
+    } else {
+      BS.Util.hide('row_CustomResource_Count');
+    }
   },
 
   fillResourceValues: function () {
@@ -429,10 +460,16 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
     ///
     if (resource.type === 'QUOTED') {
       lock.type = $j('#newLockType option:selected').val();
+      if (lock.type === 'readLock') {
+        var weight = parseInt($j('#newLockWeight').val(), 10);
+        lock.weight = weight > 1 ? weight : 1;
+      }
     } else { // CUSTOM
       var typeName = $j('#newCustomLockType option:selected').val();
       if (typeName === 'ANY') {
         lock.type = "readLock";
+        var count = parseInt($j('#newCustomLockCount').val(), 10);
+        lock.weight = count > 1 ? count : 1;
       } else if (typeName === 'SPECIFIC') {
         lock.type = "readLock";
         lock.value = $j('#newCustomLockType_Values option:selected').val();
@@ -487,6 +524,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.weight = ${item.value.weight};
   locks['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
   self.inherited = ${inherited};
@@ -498,6 +536,7 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
   lc.name = '<bs:escapeForJs text="${item.value.name}"/>';
   lc.type = '${item.value.type.name}';
   lc.value = '<bs:escapeForJs text="${item.value.value}"/>';
+  lc.weight = ${item.value.weight};
   invalid['<bs:escapeForJs text="${item.value.name}"/>'] = lc;
   </c:forEach>
 
@@ -529,7 +568,8 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
           <tr id="row_QuotedResource_Type">
             <th><label for="newLockType">Lock type:</label></th>
             <td>
-              <forms:select name="newLockType" id="newLockType" style="width: 90%">
+              <forms:select name="newLockType" id="newLockType" style="width: 90%"
+                            onchange="BS.LocksDialog.chooseQuotedLockType();">
                 <forms:option value="readLock">Read Lock</forms:option>
                 <forms:option value="writeLock">Write Lock</forms:option>
               </forms:select>
@@ -537,6 +577,14 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
             </td>
           </tr>
 
+          <tr id="row_QuotedResource_Weight">
+            <th><label for="newLockWeight">Weight:</label></th>
+            <td>
+              <input type="number" min="1" name="newLockWeight" id="newLockWeight" value="1" style="width: 6em"/>
+              <span class="smallNote">Number of quota units taken by the read lock</span>
+            </td>
+          </tr>
+
           <tr id="row_CustomResource_Type">
             <th>Lock type:</th>
             <td>
@@ -557,6 +605,14 @@ BS.LocksDialog = OO.extend(BS.AbstractModalDialog, {
               <span class="smallNote">Select value of custom resource to lock</span>
             </td>
           </tr>
+
+          <tr id="row_CustomResource_Count">
+            <th><label for="newCustomLockCount">Number of values:</label></th>
+            <td>
+              <input type="number" min="1" name="newCustomLockCount" id="newCustomLockCount" value="1" style="width: 6em"/>
+              <span class="smallNote">Number of values locked at once. The values are provided to the build separated by '${valuesSeparator}'</span>
+            </td>
+          </tr>
         </table>
       </div>
       <div id="lockFromResources_No">